@@ -33,6 +33,8 @@ public class BlockIndexer{
     private Seq<Building>[] damagedTiles = new Seq[Team.all.length];
     /** All ores available on this map. */
     private final ObjectIntMap<Item> allOres = new ObjectIntMap<>(), allWallOres = new ObjectIntMap<>();
+    /** Incremented whenever a tile is added to or removed from the ore index, so that searches over it can be cached. */
+    public int oreVersion;
     /** Stores teams that are present here as tiles. */
     private Seq<Team> activeTeams = new Seq<>(Team.class);
     /** Maps teams to a map of flagged tiles by flag. */
@@ -62,6 +64,7 @@ public class BlockIndexer{
 
             allOres.clear();
             allWallOres.clear();
+            oreVersion++;
             ores = new IntSeq[content.items().size][][];
             wallOres = new IntSeq[content.items().size][][];
             quadWidth = Mathf.ceil(world.width() / (float)quadrantSize);
@@ -158,20 +161,28 @@ public class BlockIndexer{
             if(drop != null){ //floor
                 if(ores[drop.id] == null) ores[drop.id] = new IntSeq[quadWidth][quadHeight];
                 if(ores[drop.id][qx][qy] == null) ores[drop.id][qx][qy] = new IntSeq(false, 16);
-                if(ores[drop.id][qx][qy].addUnique(pos)) allOres.increment(drop); //increment ore count only if not already counted
+                if(ores[drop.id][qx][qy].addUnique(pos)){ //increment ore count only if not already counted
+                    allOres.increment(drop);
+                    oreVersion++;
+                }
             }
             if(wallDrop != null && wallOres != null && wallOres[wallDrop.id] != null && wallOres[wallDrop.id][qx][qy] != null && wallOres[wallDrop.id][qx][qy].removeValue(pos)){ //wall
                 allWallOres.increment(wallDrop, -1);
+                oreVersion++;
             }
         }else{
             if(wallDrop != null){ //wall
                 if(wallOres[wallDrop.id] == null) wallOres[wallDrop.id] = new IntSeq[quadWidth][quadHeight];
                 if(wallOres[wallDrop.id][qx][qy] == null) wallOres[wallDrop.id][qx][qy] = new IntSeq(false, 16);
-                if(wallOres[wallDrop.id][qx][qy].addUnique(pos)) allWallOres.increment(wallDrop); //increment ore count only if not already counted
+                if(wallOres[wallDrop.id][qx][qy].addUnique(pos)){ //increment ore count only if not already counted
+                    allWallOres.increment(wallDrop);
+                    oreVersion++;
+                }
             }
 
             if(drop != null && ores != null && ores[drop.id] != null&& ores[drop.id][qx][qy] != null && ores[drop.id][qx][qy].removeValue(pos)){ //floor
                 allOres.increment(drop, -1);
+                oreVersion++;
             }
         }
 
@@ -497,35 +508,36 @@ public class BlockIndexer{
     }
 
 
-//    /** Find the closest ore block relative to a position. */ FINISHME: Implement
-//    public Tile findClosestOreButWithoutTurrets(float xp, float yp, Item item){
-//        if(ores[item.id] != null){
-//            float minDst = 0f;
-//            Tile closest = null;
-//            for(int qx = 0; qx < quadWidth; qx++){
-//                for(int qy = 0; qy < quadHeight; qy++){
-//                    var arr = ores[item.id][qx][qy];
-//                    if(arr != null && arr.size > 0){
-//                        Tile tile = world.tile(arr.first());
-//                        float dst = Mathf.dst2(xp, yp, tile.worldx(), tile.worldy());
-//                        if(closest == null || dst < minDst){
-//                            for(int i : arr.items){
-//                                tile = world.tile(i);
-//                                dst = Mathf.dst2(xp, yp, tile.worldx(), tile.worldy());
-//                                if((closest == null || dst < minDst) && !Navigation.obstacles.){
-//                                    closest = tile;
-//                                    minDst = dst;
-//                                }
-//                            }
-//                        }
-//                    }
-//                }
-//            }
-//            return closest;
-//        }
-//
-//        return null;
-//    }
+    /** Find the closest floor or wall ore the unit can mine that passes the filter. Unlike the methods above, this looks at every ore rather than one per quadrant. */
+    public Tile findClosestMineableOre(Unit unit, Item item, Boolf<Tile> filter){
+        Tile f = unit.type.mineFloor ? findClosestOre(ores, false, unit.x, unit.y, item, filter) : null;
+        Tile w = unit.type.mineWalls ? findClosestOre(wallOres, true, unit.x, unit.y, item, filter) : null;
+        if (f == null) return w;
+        if (w == null) return f;
+        return f.dst2(unit) < w.dst2(unit) ? f : w;
+    }
+
+    private Tile findClosestOre(IntSeq[][][] quads, boolean wall, float xp, float yp, Item item, Boolf<Tile> filter){
+        if(quads == null || quads[item.id] == null) return null;
+        float minDst = 0f;
+        Tile closest = null;
+        for(int qx = 0; qx < quadWidth; qx++){
+            for(int qy = 0; qy < quadHeight; qy++){
+                var arr = quads[item.id][qx][qy];
+                if(arr == null) continue;
+                for(int i = 0; i < arr.size; i++){
+                    Tile tile = world.tile(arr.items[i]);
+                    if((tile.block() != Blocks.air) != wall) continue;
+                    float dst = Mathf.dst2(xp, yp, tile.worldx(), tile.worldy());
+                    if((closest == null || dst < minDst) && filter.get(tile)){
+                        closest = tile;
+                        minDst = dst;
+                    }
+                }
+            }
+        }
+        return closest;
+    }
 
     private void process(Tile tile){
         var team = tile.team();
@@ -21,6 +21,7 @@ import static mindustry.Vars.*;
 
 public class Pathfinder implements Runnable{
     private static final long maxUpdate = Time.millisToNanos(8);
+    private static final TileSolidityChangeEvent solidityChange = new TileSolidityChangeEvent();
     private static final int updateFPS = 60;
     private static final int updateInterval = 1000 / updateFPS;
 
@@ -221,6 +222,7 @@ public class Pathfinder implements Runnable{
     /** Update a tile in the internal pathfinding grid.
      * Causes a complete pathfinding recalculation. Main thread only. */
     public void updateTile(Tile tile){
+        Events.fire(solidityChange.set(tile)); // Client navigators keep their own grids, even when this one isn't running
         if(net.client() && ClientVars.spawnTime == 0) return;
 
         tile.getLinkedTiles(t -> {
@@ -21,6 +21,7 @@ import mindustry.net.*
 import mindustry.type.*
 import mindustry.ui.fragments.*
 import mindustry.world.blocks.defense.turrets.*
+import mindustry.world.blocks.logic.*
 import mindustry.world.blocks.power.*
 import mindustry.world.blocks.sandbox.*
 import kotlin.random.*
@@ -94,6 +95,7 @@ class ClientLogic {
             massDrivers.clear()
             payloadMassDrivers.clear()
             Client.tiles.clear()
+            clearLogicVerdicts()
         }
 
         Events.on(MenuReturnEvent::class.java) { // Run when returning to the title screen
@@ -216,6 +218,8 @@ class ClientLogic {
         }
 
         Events.on(ConfigEvent::class.java) { event ->
+            if (event.tile is LogicBlock.LogicBuild) invalidateLogicVerdict(event.tile as LogicBlock.LogicBuild)
+
             @Suppress("unchecked_cast")
             if (event.player != null && event.player != player && settings.getBool("powersplitwarnings") && event.tile is PowerNode.PowerNodeBuild) {
                 val prev = Seq(event.previous as Array<Point2>)
@@ -278,18 +278,24 @@ fun setupCommands() {
 //    }
 
     register("networking", Core.bundle.get("client.command.networking.description")) { _, player ->
-        player.sendMessage(
+        val sb = StringBuilder(
             if (pluginVersion != -1F) (Core.bundle.get("client.networking.plugin") as String) else
                 BlockCommunicationSystem.findProcessor()?.run { Core.bundle.format("client.networking.logicblock", tileX(), tileY()) } ?:
                 BlockCommunicationSystem.findMessage()?.run { Core.bundle.format("client.networking.messageblock", tileX(), tileY()) } ?:
-                Core.bundle.get("client.networking.buildplan")
+                Core.bundle.format("client.networking.buildplan", BuildPlanCommunicationSystem.scannedPlans, BuildPlanCommunicationSystem.matchedPlans, Strings.autoFixed(BuildPlanCommunicationSystem.scanTime / 1_000_000f, 2))
         )
+        for (stats in Main.communicationStats) {
+            if (stats.packets == 0L) continue
+            sb.append('\n').append(Core.bundle.format("client.networking.stats", stats.name, stats.sent, stats.packets, Strings.autoFixed(stats.throughput / 1024f, 2), stats.averageLatency))
+        }
+        player.sendMessage(sb.toString())
     }
 
     register("fixpower [c]", Core.bundle.get("client.command.fixpower.description")) { args, player ->
         val start = Time.nanos()
         val diodeLinks = PowerDiode.connections(player.team()) // Must be run on the main thread
-        val grids = Groups.powerGraph.array.select { it.graph().all.first().team == player.team() }.associate { it.graph().id to it.graph().all.copy() }
+        val grids = LinkedHashMap<Int, Seq<Building>>()
+        PowerInfo.each(player.team()) { grids[it.id] = it.all.copy() }
         val confirmed = args.any() && args[0] == "c" // Don't configure by default
         val inProgress = !configs.isEmpty()
         var n = 0
@@ -329,7 +335,8 @@ fun setupCommands() {
             confirmed && inProgress -> Core.bundle.format("client.command.fixpower.inprogress", configs.size, n, confs)
             confirmed -> { // Actually fix the connections
                 configs.add { // This runs after the connections are made
-                    val active = Groups.powerGraph.array.select { it.graph().all.first().team == player.team() && it.graph().all.contains { it !is ItemBridge.ItemBridgeBuild || it.shouldConsume() } }.size // We don't care about unlinked bridge ends
+                    var active = 0
+                    PowerInfo.each(player.team()) { graph -> if (graph.all.contains { it !is ItemBridge.ItemBridgeBuild || it.shouldConsume() }) active++ } // We don't care about unlinked bridge ends
                     msg.message = Core.bundle.format("client.command.fixpower.success", n, active, confs)
                     msg.format()
                 }
@@ -377,7 +384,7 @@ fun setupCommands() {
 
         for (plan in player.team().data().plans) {
             val block = content.block(plan.block.toInt())
-            if (!(all || Navigation.getTree().use { any(plan.x * tilesizeF, plan.y * tilesizeF, block.size * tilesizeF, block.size * tilesizeF) })) continue
+            if (!(all || Navigation.getTree().any(plan.x * tilesizeF, plan.y * tilesizeF, block.size * tilesizeF, block.size * tilesizeF))) continue
 
             plans.add(Point2.pack(plan.x.toInt(), plan.y.toInt()))
         }
@@ -522,6 +529,12 @@ fun setupCommands() {
             navigator = AStarNavigatorOptimised
             player.sendMessage("[accent]Using [green]improved[] algorithm")
         } else if (navigator is AStarNavigatorOptimised) {
+            navigator = AStarNavigatorCompact
+            player.sendMessage("[accent]Using [green]compact[] algorithm")
+        } else if (navigator is AStarNavigatorCompact) {
+            navigator = HierarchicalNavigator
+            player.sendMessage("[accent]Using [green]hierarchical[] algorithm")
+        } else {
             navigator = AStarNavigator
             player.sendMessage("[accent]Using [gray]classic[] algorithm")
         }
@@ -611,6 +624,38 @@ fun setupCommands() {
         }
     }
 
+    register("logs <minutes> [range/all] [player/any] [types...]", Core.bundle.get("client.command.logs.description")) { args, player ->
+        val minutes = args[0].toLongOrNull()
+        val range = args.getOrNull(1)?.let { if (it == "all") Float.MAX_VALUE else it.toFloatOrNull() } ?: Float.MAX_VALUE
+        val id = args.getOrNull(2)?.let { if (it == "any") null else it.toIntOrNull() ?: Int.MIN_VALUE }
+        val kinds = args.getOrNull(3)?.split(' ')?.filter { it.isNotBlank() }?.map { name -> TileLogStore.kindNames.indexOf(name).toByte() }?.toSet()
+        if (minutes == null || id == Int.MIN_VALUE || kinds?.contains((-1).toByte()) == true) {
+            player.sendMessage(Core.bundle.format("client.command.logs.invalid", TileLogStore.kindNames.joinToString()))
+            return@register
+        }
+
+        val end = Instant.now().toEpochMilli()
+        val start = end - minutes * 60_000
+        val query = if (range >= max(world.width(), world.height())) TileLogQuery.rect(0, 0, world.width(), world.height(), start, end, id, kinds)
+            else TileLogQuery.radius(player.tileX(), player.tileY(), range, start, end, id, kinds)
+        val history = TileRecords.historyView()
+        clientThread.post {
+            val summary = history.summarize(query)
+            if (summary.total == 0) {
+                Core.app.post { player.sendMessage(Core.bundle.get("client.command.logs.none")) }
+                return@post
+            }
+
+            fun counts(perKind: IntArray) = perKind.withIndex().filter { it.value > 0 }.joinToString { "${Core.bundle.get("client." + TileLogStore.kindNames[it.index])} ${it.value}" }
+            val sb = StringBuilder(Core.bundle.format("client.command.logs.header", summary.total, minutes, counts(summary.perKind)))
+            for (p in summary.players.take(10)) {
+                sb.append('\n').append(Core.bundle.format("client.command.logs.player",
+                    if (p.id == -1) Core.bundle.get("client.command.logs.nonplayer") else p.name, p.id, p.total, counts(p.perKind)))
+            }
+            Core.app.post { player.sendMessage(sb.toString()) }
+        }
+    }
+
     register("gamejointext [text...]", Core.bundle.get("client.command.gamejointext.description")) { args, player ->
         if (args.isEmpty() || args[0] == "") player.sendMessage(Core.bundle.get("client.command.gamejointext.clear"))
         else {
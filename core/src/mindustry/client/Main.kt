@@ -34,9 +34,14 @@ object Main : ApplicationListener {
     val tlsPeers = CopyOnWriteArrayList<Pair<Packets.CommunicationClient, TlsCommunicationSystem>>()
     lateinit var keyStorage: KeyStorage
     lateinit var signatures: Signatures
+    private lateinit var verifier: SignatureVerifier
     lateinit var ntp: NTP
     private var planSendTime = 0L
     private var isSendingPlans = false
+    /** The texture last shown for each image, so that the full image can take the place of its preview */
+    private val imageAttachments = LongMap<Texture>()
+    /** Sending stats of the main communication client, by transmission type */
+    val communicationStats get() = communicationClient.stats
 
     /** Run on client load. */
     override fun init() {
@@ -47,6 +52,7 @@ object Main : ApplicationListener {
 
             keyStorage = KeyStorage(Core.settings.dataDirectory.file())
             signatures = Signatures(keyStorage, ntp.clock)
+            verifier = SignatureVerifier(signatures)
 
             TileRecords.initialize()
         } else {
@@ -70,6 +76,7 @@ object Main : ApplicationListener {
                 NetServer.serverPacketReliable(Vars.player, "fooCheck", "") // Call locally
             }
             dispatchedBuildPlans.clear()
+            imageAttachments.clear()
         }
 
         Events.on(EventType.ServerJoinEvent::class.java) {
@@ -102,12 +109,9 @@ object Main : ApplicationListener {
                     if (senderId == communicationSystem.id) return@addListener
                     val path = Navigation.currentlyFollowing as? BuildPath ?: return@addListener
                     if (path.queues.contains(path.networkAssist)) {
-                        val positions = IntSet()
-                        for (plan in path.networkAssist) positions.add(Point2.pack(plan.x, plan.y))
-
                         for (plan in transmission.plans.sortedByDescending { it.dst(Vars.player) }) {
                             if (path.networkAssist.size > 1000) return@addListener  // too many plans, not accepting new ones
-                            if (positions.contains(Point2.pack(plan.x, plan.y))) continue
+                            if (path.networkAssist[plan.x, plan.y] != null) continue
                             path.networkAssist.add(plan)
                         }
                     }
@@ -150,11 +154,17 @@ object Main : ApplicationListener {
                     if (senderId != Vars.player.id) transmission.addToChatfrag()
                 }
 
+                is ImagePreviewTransmission -> {
+                    val image = transmission.image ?: return@addListener
+                    // The full image may have made it here first on another carrier
+                    if (!imageAttachments.containsKey(transmission.imageId)) attach(transmission.message, transmission.imageId, image)
+                    image.dispose()
+                }
+
                 is ImageTransmission -> {
-                    val msg = findMessage(transmission.message) ?: return@addListener
-                    msg.attachments.add(Texture(transmission.image))
-                    msg.attachments.shrink()
-                    transmission.image.dispose()
+                    val image = transmission.image ?: return@addListener
+                    attach(transmission.message, transmission.id, image)
+                    image.dispose()
                 }
 
                 is SchematicTransmission -> {
@@ -164,6 +174,21 @@ object Main : ApplicationListener {
         }
     }
 
+    /** Shows [image] on the chat message with the id [message], replacing the preview of [imageId] if there is one. */
+    private fun attach(message: Short, imageId: Long, image: Pixmap) {
+        val attachments = findMessage(message)?.attachments ?: return // Messages drop their attachments after a while
+        val texture = Texture(image)
+        val preview = imageAttachments.put(imageId, texture)
+        val index = if (preview == null) -1 else attachments.indexOf(preview, true)
+        if (index != -1) {
+            attachments.set(index, texture)
+            preview!!.dispose()
+        } else {
+            attachments.add(texture)
+            attachments.shrink()
+        }
+    }
+
     private fun findMessage(id: Short): ChatFragment.ChatMessage? {
         val ending = InvisibleCharCoder.encode(id.toBytes())
         return Vars.ui.chatfrag.messages.lastOrNull { it.unformatted?.endsWith(ending) == true }
@@ -185,24 +210,19 @@ object Main : ApplicationListener {
         if (!msg.message.endsWith(msg.unformatted)) { invalid(msg, null); Log.debug("Does not end with unformatted!") }
 
         if (!Core.settings.getBool("highlightcryptomsg")) return true
-        val output = signatures.verifySignatureTransmission(msg.unformatted.encodeToByteArray(), transmission)
-
-        return when (output.first) {
-            Signatures.VerifyResult.VALID -> {
-                msg.sender = output.second?.run { keyStorage.aliasOrName(this) }.plus(if (Core.settings.getBool("showclientmsgsendername")) " (${msg.sender}[white])" else "")
-                msg.backgroundColor = ClientVars.verified
-                msg.prefix = "${Iconc.ok} ${msg.prefix} "
-                msg.format()
-                true
-            }
-            Signatures.VerifyResult.INVALID -> {
-                invalid(msg, output.second)
-                true
-            }
-            Signatures.VerifyResult.UNKNOWN_CERT -> {
-                true
+        verifier.verify(msg.unformatted.encodeToByteArray(), transmission) { result, cert ->
+            when (result) {
+                Signatures.VerifyResult.VALID -> {
+                    msg.sender = cert?.run { keyStorage.aliasOrName(this) }.plus(if (Core.settings.getBool("showclientmsgsendername")) " (${msg.sender}[white])" else "")
+                    msg.backgroundColor = ClientVars.verified
+                    msg.prefix = "${Iconc.ok} ${msg.prefix} "
+                    msg.format()
+                }
+                Signatures.VerifyResult.INVALID -> invalid(msg, cert)
+                Signatures.VerifyResult.UNKNOWN_CERT -> {}
             }
         }
+        return true
     }
 
     fun sign(content: String): String {
@@ -274,6 +294,14 @@ object Main : ApplicationListener {
         }
     }
 
+    /** Encodes [image] off the main thread to suit the current carriers, then sends a preview followed by the full image. */
+    fun sendImage(message: Short, image: Pixmap, onFinish: (() -> Unit)? = null) {
+        ImagePipeline.encode(message, image, ImagePipeline.budget(communicationSystem)) { preview, full ->
+            if (preview != null) communicationClient.send(preview)
+            communicationClient.send(full, onFinish)
+        }
+    }
+
     fun send(transmission: Transmission, onFinish: (() -> Unit)? = null) {
         communicationClient.send(transmission, onFinish)
     }
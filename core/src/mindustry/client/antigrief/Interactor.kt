@@ -45,6 +45,9 @@ class NoInteractor : Interactor {
     override val playerID: Int = -1
 }
 
+/** An interactor read back from a [TileLogJournal] */
+class SavedInteractor(override val name: String, override val shortName: String, override val playerID: Int) : Interactor
+
 fun Player?.toInteractor(): Interactor {
     this ?: return NullUnitInteractor
     return UnitInteractor(unit())
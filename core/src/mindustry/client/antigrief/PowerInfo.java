@@ -1,27 +1,116 @@
 package mindustry.client.antigrief;
 
 import arc.*;
+import arc.func.*;
 import arc.math.*;
 import arc.scene.ui.layout.*;
+import arc.struct.*;
 import arc.util.*;
 import mindustry.*;
 import mindustry.core.*;
+import mindustry.game.*;
+import mindustry.game.EventType.*;
 import mindustry.gen.*;
 import mindustry.graphics.*;
 import mindustry.ui.*;
 import mindustry.world.blocks.power.*;
 
+import java.util.*;
+
 public class PowerInfo {
     private @Nullable static PowerGraph found;
     public static PowerGraph selected; // The hovered or selected graph
 
+    /** Graphs that were added to, merged, split or removed since the last {@link #flush()}, reported by {@link PowerGraph} */
+    private static final ObjectSet<PowerGraph> dirty = new ObjectSet<>();
+    private static final IntMap<Indexed> indexed = new IntMap<>();
+    /** The keys of each team's graphs by team id, largest graph last. See {@link Indexed#key}. */
+    @SuppressWarnings("unchecked")
+    private static final TreeSet<Long>[] teams = new TreeSet[Team.all.length];
+    private static final Interval timer = new Interval();
+    private static boolean highlightSelected, highlightHovered, settingsRead;
+
+    /** A graph as it was last indexed, so that it can be found in its team's set after its size or team changed */
+    private static class Indexed {
+        final PowerGraph graph;
+        Team team;
+        /** The size in the high bits and the id in the low bits, so that graphs sort by size and never collide */
+        long key;
+
+        Indexed(PowerGraph graph) {
+            this.graph = graph;
+        }
+    }
+
+    static {
+        Events.on(WorldLoadEvent.class, e -> { // The old graphs were cleared along with their entities without telling us
+            indexed.clear();
+            for (var set : teams) if (set != null) set.clear();
+            dirty.clear();
+            Groups.powerGraph.each(up -> dirty.add(up.graph()));
+        });
+        Events.on(BuildTeamChangeEvent.class, e -> {
+            if (e.build.power != null) changed(e.build.power.graph);
+        });
+    }
+
+    /** Called by {@link PowerGraph} whenever a graph's buildings change or it is added or removed */
+    public static void changed(PowerGraph graph) {
+        if (!Vars.headless) dirty.add(graph);
+    }
+
+    /** Brings the index up to date with the graphs that changed since the last call */
+    private static void flush() {
+        if (dirty.isEmpty()) return;
+        for (var graph : dirty) {
+            var entry = indexed.get(graph.getID());
+            if (entry != null) teams[entry.team.id].remove(entry.key);
+            if (!graph.isActive()) {
+                if (entry != null) indexed.remove(graph.getID());
+                continue;
+            }
+            if (entry == null) indexed.put(graph.getID(), entry = new Indexed(graph));
+            entry.team = graph.all.first().team;
+            entry.key = (long)graph.all.size << 32 | graph.getID();
+            if (teams[entry.team.id] == null) teams[entry.team.id] = new TreeSet<>();
+            teams[entry.team.id].add(entry.key);
+        }
+        dirty.clear();
+    }
+
+    /** @return the largest graph on this team, or null if it has none */
+    public static @Nullable PowerGraph main(Team team) {
+        flush();
+        var set = teams[team.id];
+        return set == null || set.isEmpty() ? null : indexed.get((int)(long)set.last()).graph;
+    }
+
+    /** @return the number of graphs on this team */
+    public static int count(Team team) {
+        flush();
+        var set = teams[team.id];
+        return set == null ? 0 : set.size();
+    }
+
+    /** Calls {@code cons} with each of this team's graphs, largest first. Don't add or remove buildings from {@code cons}. */
+    public static void each(Team team, Cons<PowerGraph> cons) {
+        flush();
+        var set = teams[team.id];
+        if (set == null) return;
+        for (var key : set.descendingSet()) cons.get(indexed.get((int)(long)key).graph);
+    }
+
     public static void update() {
-        var max = Groups.powerGraph.array.max(up -> up.graph().all.size > 0 && up.graph().all.first().team == Vars.player.team(), up -> up.graph().all.size);
-        found = max == null ? null : max.graph();
+        if (timer.get(60f) || !settingsRead) { // Only changed from the settings menu, no need to look them up every frame
+            settingsRead = true;
+            highlightSelected = Core.settings.getBool("highlightselectedgraph");
+            highlightHovered = Core.settings.getBool("highlighthoveredgraph");
+        }
+        found = main(Vars.player.team());
         var hoverTile = Vars.control.input.cursorTile();
         selected =
-            Core.settings.getBool("highlightselectedgraph") && Vars.control.input.config.isShown() && Vars.control.input.config.getSelected().block instanceof PowerBlock ? Vars.control.input.config.getSelected().power.graph :
-            Core.settings.getBool("highlighthoveredgraph") && hoverTile != null && hoverTile.block() instanceof PowerBlock ? hoverTile.build.power.graph :
+            highlightSelected && Vars.control.input.config.isShown() && Vars.control.input.config.getSelected().block instanceof PowerBlock ? Vars.control.input.config.getSelected().power.graph :
+            highlightHovered && hoverTile != null && hoverTile.block() instanceof PowerBlock ? hoverTile.build.power.graph :
             null;
     }
 
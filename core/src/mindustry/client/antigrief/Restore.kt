@@ -11,24 +11,22 @@ import mindustry.world.*
 import java.time.Instant
 import kotlin.math.*
 
+/** The tiles in this iterable whose packed position is in [positions], in their original order */
+private fun Iterable<Tile>.touched(positions: IntSet) = filter { positions.contains(it.pos()) }
+
+private fun List<Tile>.positions() = IntArray(size) { this[it].pos() }
+
 fun rollbackTiles(tiles: Iterable<Tile>, timeInstant: Instant){
     val time =  if (timeInstant > TileRecords.joinTime) timeInstant else TileRecords.joinTime
     clientThread.post {
         val plans = Seq<BuildPlan>()
         val toBreak = IntSet()
+        val engine = TileRecords.rollbackEngine()
 
-        tiles.forEach {
-            val record = TileRecords[it] ?: return@forEach
-            // Get the sequence associated with the rollback time
-            val seq: TileLogSequence = record.lastSequence(time) ?: return@forEach
-            val state = seq.snapshot.clone()
-            // Step through logs until time is reached
-            for (diff in seq.iterator()) {
-                if (diff.time > time) break
-                diff.apply(state)
-            }
-            state.restoreState(it, plans, toBreak)
-        }
+        // Tiles that have not been logged since the rollback time are already in that state
+        val touched = tiles.touched(engine.touchedAfter(time.toEpochMilli()))
+        val states = engine.statesAt(touched.positions(), time.toEpochMilli())
+        for (i in touched.indices) states[i]?.restoreState(touched[i], plans, toBreak)
         toBreak.clear()
         if (plans.size == 0) {
             Core.app.post { player.sendMessage(Core.bundle.get("client.norebuildsfound")) }
@@ -52,29 +50,11 @@ fun rollbackTiles(tiles: Iterable<Tile>, timeInstant: Instant){
 
 fun rebuildBroken(tiles: Iterable<Tile>, timeStart: Instant, timeEnd: Instant, range: Float){
     clientThread.post {
+        val engine = TileRecords.rollbackEngine()
+        val touched = tiles.touched(engine.touchedBetween(timeStart.toEpochMilli(), timeEnd.toEpochMilli()))
         val states: Seq<TileState> = Seq()
-        tiles.forEach {
-            val sequences = TileRecords[it]?.sequences ?: return@forEach
-            var last: TileState? = null
-            var hasBeenOverwritten = false // Whether there is another block that is placed offset some time in the future
-
-            seq@ for (seq in sequences.asReversed()) { // Rebuilds are likely used on recent states, so start from the last logs
-                if (seq.snapshot.time > timeEnd) continue // Skip to the first sequence that overlaps with time interval
-                val state = seq.snapshot.clone()
-                last = if (state.isRootTile && seq.snapshot.time > timeStart) state.clone() else null
-                // Step through logs until time is reached
-                for (diff in seq.iterator()) {
-                    if (diff.time > timeEnd) break // Abort if we have reached time end
-                    if (diff.time >= timeStart && diff is TileBreakLog && state.block !== Blocks.air) {
-                        if (state.isRootTile) last = state.clone()
-                        hasBeenOverwritten = true
-                    }
-                    diff.apply(state)
-                }
-                if ((last != null && last.isRootTile) || hasBeenOverwritten) break@seq // Break if we can restore that, or no earlier logs need to be used
-            }
-            if (last == null || !last.isRootTile) return@forEach
-            states.add(last)
+        for (state in engine.brokenStates(touched.positions(), timeStart.toEpochMilli(), timeEnd.toEpochMilli())) {
+            if (state != null) states.add(state)
         }
 
         if (states.size == 0) {
@@ -119,39 +99,14 @@ fun rebuildBroken(tiles: Iterable<Tile>, timeStart: Instant, timeEnd: Instant, r
 
 fun undoPlayer(tiles: Iterable<Tile>, id: Int){
     clientThread.post {
-        var playerName: String? = null
         val plans: Seq<BuildPlan> = Seq()
-        var prevID: Int
-
         val toBreak = IntSet()
-        tiles.forEach {
-            val sequences = TileRecords[it]?.sequences ?: return@forEach
-            var last: TileState? = null
+        val engine = TileRecords.rollbackEngine()
 
-            val seqReversed = sequences.asReversed()
-            for ((i, seq) in seqReversed.withIndex()) { // For each tile, get the last state before it was touched by the player
-                val state = seq.snapshot.clone()
-                prevID = id
-                // Evaluate if the current snapshot was caused by the target player. If so, do not use it.
-                last = if (i + 1 < seqReversed.size && ((seqReversed[i + 1].logs.lastOrNull()?.cause?.playerID?: id.inv()) == id)) null else state.clone()
-                for (diff in seq.iterator()) {
-                    if (prevID != id && diff.cause.playerID == id) { // Only clone state if the ids change
-                        last = state.clone()
-                    }
-                    diff.apply(state)
-                    prevID = diff.cause.playerID
-                    if (playerName == null && prevID == id) playerName = diff.cause.shortName
-                }
-                if (prevID != id) { // Capture last diff
-                    if (i == 0) return@forEach // If last diff can be captured, it is not different from the current state
-                    last = state.clone()
-                }
-                if (!state.isRootTile && state.block !== Blocks.air) return@forEach // If there is something else on top, do not build it
-                if (last != null) break
-            }
-            if (last == null || (!last.isRootTile && last.block !== Blocks.air)) return@forEach
-            last.restoreState(it, plans, toBreak)
-        }
+        val touched = tiles.touched(engine.touchedBy(id))
+        val playerName = if (touched.isEmpty()) null else engine.nameOf(id)
+        val states = engine.undoStates(touched.positions(), id)
+        for (i in touched.indices) states[i]?.restoreState(touched[i], plans, toBreak)
         toBreak.clear()
 
         if (playerName == null) {
@@ -0,0 +1,130 @@
+package mindustry.client.antigrief
+
+import arc.struct.*
+import mindustry.content.*
+import java.util.stream.*
+
+/**
+ * Replays tile history out of a [TileLogStore].
+ * The store is time ordered, so candidate tiles are found by looking only at the entries inside the requested time window.
+ * Each tile is independent, so replays run in parallel on the common fork-join pool.
+ * [lock] is held by whatever appends to the store and records.  The touched sets are found under it and the workers only see [TileRecordView]s taken under it.
+ */
+class RollbackEngine(val store: TileLogStore, private val lock: Any? = null, private val records: (Int) -> TileRecord?) {
+    /** Packed positions of every tile logged strictly after [time] */
+    fun touchedAfter(time: Long): IntSet = touchedBetween(time + 1, Long.MAX_VALUE)
+
+    /** Packed positions of every tile logged within [start, end] */
+    fun touchedBetween(start: Long, end: Long): IntSet = synchronized(lock ?: this) { // The store is appended to on the main thread
+        val out = IntSet()
+        val last = if (end == Long.MAX_VALUE) store.size else store.firstAfter(end)
+        for (i in store.firstAfter(start - 1) until last) out.add(store.position(i))
+        out
+    }
+
+    /** Packed positions of every tile [playerID] has a log on */
+    fun touchedBy(playerID: Int): IntSet = synchronized(lock ?: this) {
+        val out = IntSet()
+        val entries = store.index.entriesOf(playerID) ?: return out
+        for (i in 0 until entries.size) out.add(store.position(entries[i]))
+        out
+    }
+
+    /** The short name of [playerID] as of their first log, if they have one */
+    fun nameOf(playerID: Int): String? = synchronized(lock ?: this) {
+        val entries = store.index.entriesOf(playerID) ?: return null
+        if (entries.size == 0) null else store.cause(entries[0]).shortName
+    }
+
+    /** State of each tile in [positions] at [time], null where there is no history for it */
+    fun statesAt(positions: IntArray, time: Long): Array<TileState?> = replay(positions) { stateAt(it, time) }
+
+    /** For each tile, the latest root state in [start, end] that was later broken. See [rebuildBroken]. */
+    fun brokenStates(positions: IntArray, start: Long, end: Long): Array<TileState?> = replay(positions) { brokenState(it, start, end) }
+
+    /** For each tile, the state before [playerID] touched it. See [undoPlayer]. */
+    fun undoStates(positions: IntArray, playerID: Int): Array<TileState?> = replay(positions) { undoState(it, playerID) }
+
+    private inline fun replay(positions: IntArray, crossinline task: (TileRecordView) -> TileState?): Array<TileState?> {
+        // The records keep growing on the main thread, so take what the workers need here while appends are held off
+        val views = synchronized(lock ?: this) { Array(positions.size) { i -> records(positions[i])?.let(::TileRecordView) } }
+        val out = arrayOfNulls<TileState>(positions.size)
+        IntStream.range(0, positions.size).parallel().forEach { i ->
+            out[i] = task(views[i] ?: return@forEach)
+        }
+        return out
+    }
+
+    fun stateAt(record: TileRecordView, time: Long): TileState? {
+        // Get the sequence associated with the rollback time
+        var seq = record.size - 1
+        while (seq >= 0 && record.snapshots[seq].time.toEpochMilli() > time) seq--
+        if (seq < 0) return null
+        val state = record.snapshots[seq].clone()
+        val entries = record.entries[seq]
+        // Step through logs until time is reached
+        for (i in 0 until record.counts[seq]) {
+            if (store.time(entries[i]) > time) break
+            store.apply(entries[i], state)
+        }
+        return state
+    }
+
+    private fun brokenState(record: TileRecordView, start: Long, end: Long): TileState? {
+        var last: TileState? = null
+        var hasBeenOverwritten = false // Whether there is another block that is placed offset some time in the future
+
+        for (seq in record.size - 1 downTo 0) { // Rebuilds are likely used on recent states, so start from the last logs
+            val snapshotTime = record.snapshots[seq].time.toEpochMilli()
+            if (snapshotTime > end) continue // Skip to the first sequence that overlaps with time interval
+            val state = record.snapshots[seq].clone()
+            last = if (state.isRootTile && snapshotTime > start) state.clone() else null
+            val entries = record.entries[seq]
+            // Step through logs until time is reached
+            for (i in 0 until record.counts[seq]) {
+                val entry = entries[i]
+                val time = store.time(entry)
+                if (time > end) break // Abort if we have reached time end
+                if (time >= start && store.isBreak(entry) && state.block !== Blocks.air) {
+                    if (state.isRootTile) last = state.clone()
+                    hasBeenOverwritten = true
+                }
+                store.apply(entry, state)
+            }
+            if ((last != null && last.isRootTile) || hasBeenOverwritten) break // Break if we can restore that, or no earlier logs need to be used
+        }
+        return if (last?.isRootTile == true) last else null
+    }
+
+    private fun undoState(record: TileRecordView, id: Int): TileState? {
+        var last: TileState? = null
+        var prevID: Int
+
+        for (i in 0 until record.size) { // For each tile, get the last state before it was touched by the player, newest sequence first
+            val seq = record.size - 1 - i
+            val state = record.snapshots[seq].clone()
+            prevID = id
+            // Evaluate if the current snapshot was caused by the target player. If so, do not use it.
+            if (seq > 0) {
+                val previous = record.counts[seq - 1]
+                last = if ((if (previous == 0) id.inv() else store.playerID(record.entries[seq - 1][previous - 1])) == id) null else state.clone()
+            } else last = state.clone()
+            val entries = record.entries[seq]
+            for (j in 0 until record.counts[seq]) {
+                val entry = entries[j]
+                if (prevID != id && store.playerID(entry) == id) { // Only clone state if the ids change
+                    last = state.clone()
+                }
+                store.apply(entry, state)
+                prevID = store.playerID(entry)
+            }
+            if (prevID != id) { // Capture last diff
+                if (i == 0) return null // If last diff can be captured, it is not different from the current state
+                last = state.clone()
+            }
+            if (!state.isRootTile && state.block !== Blocks.air) return null // If there is something else on top, do not build it
+            if (last != null) break
+        }
+        return if (last == null || (!last.isRootTile && last.block !== Blocks.air)) null else last
+    }
+}
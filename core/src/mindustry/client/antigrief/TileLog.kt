@@ -4,6 +4,7 @@ import arc.*
 import arc.math.geom.*
 import arc.scene.*
 import arc.scene.ui.layout.*
+import arc.struct.*
 import arc.util.*
 import mindustry.*
 import mindustry.client.antigrief.TileRecords.joinTime
@@ -11,6 +12,7 @@ import mindustry.client.utils.*
 import mindustry.content.*
 import mindustry.core.*
 import mindustry.gen.Unit
+import mindustry.type.*
 import mindustry.world.*
 import java.time.*
 import kotlin.math.*
@@ -31,24 +33,22 @@ data class IntRectangle(val x: Int, val y: Int, val width: Int, val height: Int)
 }
 
 private var lastID: Long = 0
-abstract class TileLog(val position: IntRectangle, override val cause: Interactor) : InteractionLog {
-    val id: Long = lastID++
-
-    override val time: Instant = Instant.now()
-
+abstract class TileLog(val position: IntRectangle, override val cause: Interactor, override val time: Instant = Instant.now(), val id: Long = lastID++) : InteractionLog {
     companion object {
         fun Tile.linkedArea(): IntRectangle {
             return linkedArea(this, block()?.size ?: return IntRectangle(x.toInt(), y.toInt(), 1, 1))
         }
 
-        fun linkedArea(tile: Tile, size: Int): IntRectangle {
-            if (size == 1) return IntRectangle(tile.x.toInt(), tile.y.toInt(), 1, 1)
+        fun linkedArea(tile: Tile, size: Int) = linkedArea(tile.x.toInt(), tile.y.toInt(), size)
+
+        fun linkedArea(x: Int, y: Int, size: Int): IntRectangle {
+            if (size <= 1) return IntRectangle(x, y, 1, 1)
 
             val offsetx: Int = -(size - 1) / 2
             val offsety: Int = -(size - 1) / 2
 
-            val worldx: Int = offsetx + tile.x
-            val worldy: Int = offsety + tile.y
+            val worldx: Int = offsetx + x
+            val worldy: Int = offsety + y
 
             return IntRectangle(worldx, worldy + size - 1, size, size)
         }
@@ -60,19 +60,21 @@ abstract class TileLog(val position: IntRectangle, override val cause: Interacto
 
     abstract override fun toString(): String
 
-    open fun add(sequence: TileLogSequence) {
-        sequence.logs.add(this)
-    }
-
     abstract fun toShortString(): String
 }
 
-class TileLogSequence(val snapshot: TileState, val startingIndex: Int) : Iterable<TileLog> {
-    val logs = mutableListOf<TileLog>()
-    val range get() = startingIndex..startingIndex + logs.size
+/** A run of at most ~100 logs on one tile, replayed on top of [snapshot]. The logs themselves live in [store]. */
+class TileLogSequence(val store: TileLogStore, val snapshot: TileState, val startingIndex: Int) : Iterable<TileLog> {
+    /** Indices into [store], oldest first */
+    val entries = IntSeq()
+    val logs: List<TileLog> = object : AbstractList<TileLog>() {
+        override val size get() = entries.size
+        override fun get(index: Int) = store.log(entries[index])
+    }
+    val range get() = startingIndex..startingIndex + entries.size
 
-    fun addLog(log: TileLog){
-        logs.add(log)
+    fun addLog(entry: Int){
+        entries.add(entry)
     }
 
     override fun iterator(): Iterator<TileLog> {
@@ -81,8 +83,8 @@ class TileLogSequence(val snapshot: TileState, val startingIndex: Int) : Iterabl
 
     operator fun get(index: Int): TileState {
         val cpy = snapshot.clone()
-        for (diff in logs.subList(0, (index + 1) - startingIndex)) {
-            diff.apply(cpy)
+        for (i in 0 until ((index + 1) - startingIndex).coerceAtMost(entries.size)) {
+            store.apply(entries[i], cpy)
         }
 
         return cpy
@@ -93,54 +95,96 @@ class TileLogSequence(val snapshot: TileState, val startingIndex: Int) : Iterabl
     }
 }
 
-class TileRecord(val x: Int, val y: Int) {
-    var sequences: MutableList<TileLogSequence>? = null
-    val size get() = sequences?.lastOrNull()?.range?.last ?: 0
-    private val totalRange get() = 0..size
+/**
+ * The sequences of a [TileRecord] as they were when this was taken.  Sequences and their entries only ever grow, so this stays valid to
+ * read on another thread while the record keeps being appended to.
+ */
+class TileRecordView(record: TileRecord) {
+    val size = record.sequences.size
+    val snapshots = Array(size) { record.sequences[it].snapshot }
+    /** The backing arrays of each sequence's entries, only the first [counts] of each are set */
+    val entries = Array(size) { record.sequences[it].entries.items }
+    val counts = IntArray(size) { record.sequences[it].entries.size }
+}
 
-    fun add(log: TileLog, tile: Tile) {
-        when {
-            sequences == null -> {
-                sequences = mutableListOf()
-                val state = TileState(tile)
-                state.time = joinTime
-                sequences!!.add(TileLogSequence(state, 0))
-            }
-            sequences!!.last().logs.size > 100 -> {
-                sequences!!.add(TileLogSequence(TileState(tile), sequences!!.last().range.last))
-            }
+/** Allocated by [TileRecords] the first time a tile receives a log. */
+class TileRecord(val x: Int, val y: Int, val store: TileLogStore) {
+    val sequences = mutableListOf<TileLogSequence>()
+    val size get() = sequences.lastOrNull()?.range?.last ?: 0
+    private val totalRange get() = 0..size
+    /** The state after the newest entry, kept up to date as entries are added so that journal checkpoints don't replay the tile. Null when stale. */
+    private var current: TileState? = null
+
+    /** Adds [entry], starting a new sequence from the current state of [tile] if needed. @return the new sequence, if one was started */
+    fun add(entry: Int, tile: Tile): TileLogSequence? {
+        val started = when {
+            sequences.isEmpty() -> addSequence(TileState(tile).apply { time = joinTime })
+            sequences.last().entries.size > 100 -> addSequence(TileState(tile))
+            else -> null
         }
-        sequences!!.last().addLog(log)
+        append(entry)
+        return started
+    }
+
+    fun addSequence(snapshot: TileState): TileLogSequence {
+        val sequence = TileLogSequence(store, snapshot, sequences.lastOrNull()?.range?.last ?: 0)
+        sequences.add(sequence)
+        current = snapshot.clone()
+        return sequence
+    }
+
+    /** Adds [entry] to the last sequence without checking its length. */
+    fun append(entry: Int) {
+        sequences.last().addLog(entry)
+        current?.let { store.apply(entry, it) }
+    }
+
+    /** Call after one of this tile's entries was changed in [store], the state after it has to be worked out again */
+    fun entryChanged() {
+        current = null
+    }
+
+    /** The state after the newest entry, same as `this[size]`.  Don't modify it. */
+    fun currentState(): TileState? {
+        if (current == null && sequences.isNotEmpty()) current = this[size]
+        return current
+    }
+
+    /** The newest store entry on this tile, or -1 */
+    fun lastEntry(): Int {
+        val entries = sequences.lastOrNull()?.entries ?: return -1
+        return if (entries.size == 0) -1 else entries[entries.size - 1]
     }
 
     operator fun get(index: Int): TileState? {
         if (index !in totalRange) throw IndexOutOfBoundsException("Index $index is out of bounds! (size: $size)")
         // Get the last sequence that encompasses this index
-        val bestSequence = sequences?.singleOrNull { index in it.range }
+        val bestSequence = sequences.lastOrNull { index in it.range }
         return bestSequence?.get(index)
     }
 
-    // FINISHME: This breaks when there are over 100 logs on the tile.
     fun lastLogs(count: Int): List<TileLog> {
-        val startingIndex = (size - count).coerceAtLeast(0)
         val output = mutableListOf<TileLog>()
-        for (item in sequences ?: return emptyList()) {
-            output.addAll(item.after(startingIndex))
+        for (sequence in sequences.asReversed()) {
+            for (i in sequence.entries.size - 1 downTo 0) {
+                if (output.size >= count) return output.asReversed()
+                output.add(store.log(sequence.entries[i]))
+            }
         }
-        return output
+        return output.asReversed()
     }
 
     /** Returns the last TileLogSequence before a certain time - that is, time will be within returned sequence **/
     fun lastSequence(time: Instant): TileLogSequence? {
-        return sequences?.asReversed()?.first { it.snapshot.time <= time }
+        return sequences.lastOrNull { it.snapshot.time <= time }
     }
 
     fun oldestLog(sequence: TileLogSequence): TileLog? {
-        return if (sequence.logs.isNotEmpty()) sequence.logs[0] else null
+        return sequence.logs.firstOrNull()
     }
 
     fun oldestSequence(): TileLogSequence? {
-        return sequences?.getOrNull(0)  // should never be null but you never know
+        return sequences.getOrNull(0)  // should never be null but you never know
     }
 
     fun toElement(): Element {
@@ -149,18 +193,16 @@ class TileRecord(val x: Int, val y: Int) {
         table.row()
 
         table.pane { t ->
-            if (sequences == null) return@pane
-
-            if (sequences?.any() == true) {
+            if (sequences.any()) {
                 t.button("@client.initialstate") {
                     dialog("@client.log") {
-                        cont.add(sequences!![0].snapshot.toElement())
+                        cont.add(sequences[0].snapshot.toElement())
                         addCloseButton()
                     }.show()
                 }.wrap(false)
                 t.row()
             }
-            for (sequence in sequences!!) {
+            for (sequence in sequences) {
                 for ((index, log) in sequence.withIndex()) {
                     t.add(log.toString() + " (" + UI.formatTime((Time.timeSinceMillis(log.time.toEpochMilli()) / 16.667).toFloat()) + ")").left()
                     t.row()
@@ -179,7 +221,9 @@ class TileRecord(val x: Int, val y: Int) {
     }
 }
 
-class ConfigureTileLog(tile: Tile, cause: Interactor, val block: Block, val rotation: Int, var configuration: Any?) : TileLog(tile, cause) {
+class ConfigureTileLog(position: IntRectangle, cause: Interactor, val block: Block, val rotation: Int, var configuration: Any?, time: Instant = Instant.now(), id: Long = lastID++) : TileLog(position, cause, time, id) {
+    constructor(tile: Tile, cause: Interactor, block: Block, rotation: Int, configuration: Any?) : this(tile.linkedArea(), cause, block, rotation, configuration)
+
     override fun apply(previous: TileState) {
         previous.rotation = rotation
         previous.configuration = configuration
@@ -189,17 +233,12 @@ class ConfigureTileLog(tile: Tile, cause: Interactor, val block: Block, val rota
         return "${cause.name.stripColors()} ${Core.bundle.get("client.configured")} ${block.localizedName}"
     }
 
-    override fun add(sequence: TileLogSequence) {
-        Core.app.post {
-            configuration = Vars.world.tile(position.x, position.y)?.build?.config()
-            super.add(sequence)
-        }
-    }
-
     override fun toShortString() = "${cause.shortName.stripColors().subSequence(0, min(16, cause.shortName.stripColors().length))}${if (cause.shortName.stripColors().length > 16) "..." else ""} ${Core.bundle.get("client.configured")}"
 }
 
-open class TilePlacedLog(tile: Tile, cause: Interactor, val block: Block, var rotation: Int = tile.build?.rotation?:0, var configuration: Any?, val isRootTile: Boolean) : TileLog(tile, cause) {
+open class TilePlacedLog(position: IntRectangle, cause: Interactor, val block: Block, var rotation: Int, var configuration: Any?, val isRootTile: Boolean, time: Instant = Instant.now(), id: Long = lastID++) : TileLog(position, cause, time, id) {
+    constructor(tile: Tile, cause: Interactor, block: Block, rotation: Int = tile.build?.rotation?:0, configuration: Any?, isRootTile: Boolean) : this(tile.linkedArea(), cause, block, rotation, configuration, isRootTile)
+
     override fun apply(previous: TileState) {
         previous.block = block
         previous.rotation = rotation
@@ -219,7 +258,9 @@ open class TilePlacedLog(tile: Tile, cause: Interactor, val block: Block, var ro
     override fun toShortString() = "${cause.shortName.stripColors().subSequence(0, min(16, cause.shortName.stripColors().length))}${if (cause.shortName.stripColors().length > 16) "..." else ""} ${Core.bundle.get("client.built")} ${block.localizedName}"
 }
 
-class BlockPayloadDropLog(tile: Tile, cause: Interactor, block: Block, rotation: Int, configuration: Any?, origin: Boolean) : TilePlacedLog(tile, cause, block, rotation, configuration, origin) {
+class BlockPayloadDropLog(position: IntRectangle, cause: Interactor, block: Block, rotation: Int, configuration: Any?, origin: Boolean, time: Instant = Instant.now(), id: Long = lastID++) : TilePlacedLog(position, cause, block, rotation, configuration, origin, time, id) {
+    constructor(tile: Tile, cause: Interactor, block: Block, rotation: Int, configuration: Any?, origin: Boolean) : this(tile.linkedArea(), cause, block, rotation, configuration, origin)
+
     override fun toString(): String {
         return "${cause.name.stripColors()} ${Core.bundle.get("client.putdown")} ${block.localizedName}"
     }
@@ -227,7 +268,9 @@ class BlockPayloadDropLog(tile: Tile, cause: Interactor, block: Block, rotation:
     override fun toShortString() = "${cause.shortName.stripColors().subSequence(0, min(16, cause.shortName.stripColors().length))}${if (cause.shortName.stripColors().length > 16) "..." else ""} ${Core.bundle.get("client.putdown")} ${block.localizedName}"
 }
 
-open class TileBreakLog(tile: Tile, cause: Interactor, val block: Block) : TileLog(tile, cause) {
+open class TileBreakLog(position: IntRectangle, cause: Interactor, val block: Block, time: Instant = Instant.now(), id: Long = lastID++) : TileLog(position, cause, time, id) {
+    constructor(tile: Tile, cause: Interactor, block: Block) : this(tile.linkedArea(), cause, block)
+
     override fun apply(previous: TileState) {
         previous.block = Blocks.air
         previous.rotation = -1
@@ -242,7 +285,9 @@ open class TileBreakLog(tile: Tile, cause: Interactor, val block: Block) : TileL
     override fun toShortString() = "${cause.shortName.stripColors().subSequence(0, min(16, cause.shortName.stripColors().length))}${if (cause.shortName.stripColors().length > 16) "..." else ""} ${Core.bundle.get("client.broke")} ${block.localizedName}"
 }
 
-class BlockPayloadPickupLog(tile: Tile, cause: Interactor, block: Block) : TileBreakLog(tile, cause, block) {
+class BlockPayloadPickupLog(position: IntRectangle, cause: Interactor, block: Block, time: Instant = Instant.now(), id: Long = lastID++) : TileBreakLog(position, cause, block, time, id) {
+    constructor(tile: Tile, cause: Interactor, block: Block) : this(tile.linkedArea(), cause, block)
+
     override fun toString(): String {
         return "${cause.name.stripColors()} ${Core.bundle.get("client.pickedup")} ${block.localizedName}"
     }
@@ -250,7 +295,9 @@ class BlockPayloadPickupLog(tile: Tile, cause: Interactor, block: Block) : TileB
     override fun toShortString() = "${cause.shortName.stripColors().subSequence(0, min(16, cause.shortName.stripColors().length))}${if (cause.shortName.stripColors().length > 16) "..." else ""} ${Core.bundle.get("client.pickedup")} ${block.localizedName}"
 }
 
-class TileDestroyedLog(tile: Tile, block: Block) : TileBreakLog(tile, NoInteractor(), block) {
+class TileDestroyedLog(position: IntRectangle, block: Block, time: Instant = Instant.now(), id: Long = lastID++) : TileBreakLog(position, NoInteractor(), block, time, id) {
+    constructor(tile: Tile, block: Block) : this(tile.linkedArea(), block)
+
     override fun toString(): String {
         return "${block.localizedName} ${Core.bundle.get("client.destroyed")}"
     }
@@ -258,24 +305,28 @@ class TileDestroyedLog(tile: Tile, block: Block) : TileBreakLog(tile, NoInteract
     override fun toShortString() = "${block.localizedName} ${Core.bundle.get("client.destroyed")}"
 }
 
-class UnitDestroyedLog(val tile: Tile, cause: Interactor, val unit: Unit, val isPlayer : Boolean) : TileLog(tile, cause) {
+class UnitDestroyedLog(position: IntRectangle, cause: Interactor, val unitType: UnitType?, val isPlayer : Boolean, time: Instant = Instant.now(), id: Long = lastID++) : TileLog(position, cause, time, id) {
+    constructor(tile: Tile, cause: Interactor, unit: Unit, isPlayer: Boolean) : this(tile.linkedArea(), cause, unit.type, isPlayer)
+
     override fun apply(previous: TileState) {
         //pass
     }
 
     override fun toString(): String {
-        if(isPlayer) return "${cause.name.stripColors()} ${Core.bundle.get("client.playerunitdeath")} ${unit.type?.localizedName ?: "null unit"}"
+        if(isPlayer) return "${cause.name.stripColors()} ${Core.bundle.get("client.playerunitdeath")} ${unitType?.localizedName ?: "null unit"}"
         return "${cause.name.stripColors()} ${Core.bundle.get("client.unitdeath")}"
 
     }
 
     override fun toShortString() : String {
-        if(isPlayer) return "${cause.shortName.stripColors().subSequence(0, min(16, cause.shortName.stripColors().length))}${if (cause.shortName.stripColors().length > 16) "..." else ""} ${Core.bundle.get("client.playerunitdeath")} ${unit.type?.localizedName ?: "null unit"}"
+        if(isPlayer) return "${cause.shortName.stripColors().subSequence(0, min(16, cause.shortName.stripColors().length))}${if (cause.shortName.stripColors().length > 16) "..." else ""} ${Core.bundle.get("client.playerunitdeath")} ${unitType?.localizedName ?: "null unit"}"
         return "${cause.shortName.stripColors().subSequence(0, min(16, cause.shortName.stripColors().length))}${if (cause.shortName.stripColors().length > 16) "..." else ""} ${Core.bundle.get("client.unitdeath")}"
     }
 }
 
-class RotateTileLog(tile: Tile, cause: Interactor, val block: Block, val rotation: Int, val direction: Boolean) : TileLog(tile, cause) {
+class RotateTileLog(position: IntRectangle, cause: Interactor, val block: Block, val rotation: Int, val direction: Boolean, time: Instant = Instant.now(), id: Long = lastID++) : TileLog(position, cause, time, id) {
+    constructor(tile: Tile, cause: Interactor, block: Block, rotation: Int, direction: Boolean) : this(tile.linkedArea(), cause, block, rotation, direction)
+
     override fun apply(previous: TileState) {
         previous.rotation = rotation
     }
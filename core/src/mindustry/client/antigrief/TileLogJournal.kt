@@ -0,0 +1,342 @@
+package mindustry.client.antigrief
+
+import arc.*
+import arc.files.*
+import arc.math.geom.*
+import arc.struct.*
+import arc.util.*
+import arc.util.io.*
+import mindustry.*
+import mindustry.content.*
+import mindustry.game.*
+import mindustry.io.*
+import java.io.*
+import java.nio.*
+import java.nio.channels.*
+import java.nio.file.*
+import java.time.*
+import java.util.concurrent.*
+import kotlin.math.*
+
+/**
+ * Append-only on-disk copy of a session's [TileLogStore], so that history survives reconnects and client crashes.
+ *
+ * Records are encoded on the main thread into a batch which [flush] hands to a background writer.
+ * A session is split into segments of roughly [SEGMENT_SIZE] bytes. Each one starts with a checkpoint of every logged tile,
+ * so only the newest [MAX_SEGMENTS] are kept. Times and positions are written as varint deltas from the previous log.
+ * Segments are memory mapped when read back by [replay], which runs on the writer thread.
+ */
+class TileLogJournal private constructor(val info: Info, private val records: () -> IntMap<TileRecord>) {
+    /** Identifies a server and map session, matched the same way as the sameMap check in [TileRecords] */
+    class Info(val id: Long, val server: String, val map: String, val startTime: Double, val width: Int, val height: Int, val joinTime: Long)
+
+    companion object {
+        private const val MAGIC = 0x544C4A31 // TLJ1
+        private const val VERSION = 1
+
+        private const val CAUSE = 0
+        private const val CHECKPOINT = 1
+        private const val SNAPSHOT = 2
+        private const val LOG = 3
+        private const val UPDATE = 4
+
+        private const val UPDATE_ROTATION = 1
+        private const val UPDATE_CONFIG = 2
+
+        const val SEGMENT_SIZE = 8 shl 20
+        const val MAX_SEGMENTS = 4
+        const val MAX_TOTAL_SIZE = 256L shl 20
+        private const val BATCH_SIZE = 64 shl 10
+
+        private val writer = Executors.newSingleThreadExecutor { r -> Thread(r, "Tile Log Journal").apply { isDaemon = true } }
+
+        val folder: Fi get() = Core.settings.dataDirectory.child("tilelogs")
+
+        /**
+         * Looks on the writer thread for the latest journal of the same server and map that was started within 10s of [startTime].  If there is
+         * one it is read back, otherwise a new journal is started for a session joined at [joinTime] and the oldest journals are pruned if
+         * they take up too much space.  Either way [done] gets the journal and what was read on the main thread, see [replay].
+         */
+        fun open(server: String, map: String, startTime: Double, width: Int, height: Int, joinTime: Long, records: () -> IntMap<TileRecord>,
+                 done: (TileLogJournal, TileLogStore, IntMap<TileRecord>) -> Unit) = writer.execute {
+            val sessions = sessions()
+            val resumed = sessions.filter {
+                it.server == server && it.map == map && abs(it.startTime - startTime) < 10 && it.width == width && it.height == height
+            }.maxByOrNull { it.id }
+            if (resumed != null) {
+                val journal = TileLogJournal(resumed, records)
+                journal.replay { store, replayed -> done(journal, store, replayed) }
+                return@execute
+            }
+
+            val taken = sessions.map { it.id }.toSet()
+            var id = System.currentTimeMillis()
+            while (id in taken) id++
+            prune(id)
+            val journal = TileLogJournal(Info(id, server, map, startTime, width, height, joinTime), records)
+            Core.app.post { done(journal, TileLogStore(), IntMap()) }
+        }
+
+        private fun segmentOf(file: Fi) = file.name().split('.').getOrNull(1)?.toIntOrNull() ?: -1
+
+        private fun files() = folder.list().filter { it.extension() == "tlj" && segmentOf(it) != -1 }
+
+        private fun segments(id: Long) = files().filter { it.name().startsWith("$id.") }.sortedBy { segmentOf(it) }
+
+        private fun sessions(): List<Info> = files().groupBy { it.name().substringBefore('.') }.values.mapNotNull { segments ->
+            try {
+                DataInputStream(segments.first().read()).use { readHeader(Reads(it)) }
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        private fun readHeader(reads: Reads): Info? {
+            if (reads.i() != MAGIC || reads.b().toInt() != VERSION) return null
+            val info = Info(reads.l(), reads.str(), reads.str(), reads.d(), reads.i(), reads.i(), reads.l())
+            reads.i() // Segment
+            return info
+        }
+
+        /** Deletes the oldest sessions other than [current] until the journals fit in [MAX_TOTAL_SIZE] */
+        private fun prune(current: Long) {
+            val files = files().sortedBy { it.name().substringBefore('.').toLongOrNull() ?: 0L }
+            var total = files.sumOf { it.length() }
+            for (file in files) {
+                if (total <= MAX_TOTAL_SIZE) break
+                if (file.name().startsWith("$current.")) continue
+                total -= file.length()
+                file.delete()
+            }
+        }
+
+        private fun ByteBuffer.varint(): Long {
+            var result = 0L
+            var shift = 0
+            while (true) {
+                val b = get().toInt()
+                result = result or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+            }
+        }
+
+        private fun ByteBuffer.zigzag(): Int {
+            val v = varint().toInt()
+            return (v ushr 1) xor -(v and 1)
+        }
+    }
+
+    private val batch = ByteArrayOutputStream()
+    private val writes = Writes(DataOutputStream(batch))
+    private val scratch = ByteArrayOutputStream()
+    private val scratchWrites = Writes(DataOutputStream(scratch))
+
+    private val causes = ObjectIntMap<Interactor>()
+    private var lastTime = 0L
+    private var lastPosition = 0
+    private var segment = 0
+    private var segmentBytes = 0L
+    private var started = false
+
+    private fun file(segment: Int) = folder.child("${info.id}.$segment.tlj")
+
+    /** Starts the current segment if needed. Must be called before the store or records are modified for a new log. */
+    fun prepare() {
+        if (started) return
+        started = true
+        causes.clear()
+        lastTime = 0L
+        lastPosition = 0
+
+        writes.i(MAGIC)
+        writes.b(VERSION)
+        writes.l(info.id)
+        writes.str(info.server)
+        writes.str(info.map)
+        writes.d(info.startTime)
+        writes.i(info.width)
+        writes.i(info.height)
+        writes.l(info.joinTime)
+        writes.i(segment)
+
+        // Checkpoint every tile so that older segments are not needed to replay this one
+        for (record in records().values()) {
+            val last = record.lastEntry()
+            if (last == -1) continue
+            val state = record.currentState()?.clone() ?: continue
+            state.time = record.store.instant(last)
+            snapshot(state, true)
+        }
+    }
+
+    /** Records the snapshot a new [TileLogSequence] starts from */
+    fun snapshot(state: TileState, checkpoint: Boolean = false) {
+        prepare()
+        writes.b(if (checkpoint) CHECKPOINT else SNAPSHOT)
+        varint(Point2.pack(state.x, state.y).toLong() and 0xFFFFFFFFL)
+        varint(state.time.toEpochMilli())
+        varint(state.block.id.toLong())
+        writes.b(state.rotation)
+        writes.b(state.team.id)
+        writes.b(if (state.isRootTile) 1 else 0)
+        config(state.configuration)
+    }
+
+    fun log(store: TileLogStore, entry: Int) {
+        prepare()
+        val cause = store.cause(entry)
+        var index = causes.get(cause, -1)
+        if (index == -1) {
+            index = causes.size
+            causes.put(cause, index)
+            writes.b(CAUSE)
+            zigzag(cause.playerID)
+            writes.str(cause.name)
+            writes.str(cause.shortName)
+        }
+
+        writes.b(LOG)
+        varint(store.time(entry) - lastTime) // Store times never decrease
+        zigzag(store.position(entry) - lastPosition)
+        lastTime = store.time(entry)
+        lastPosition = store.position(entry)
+        writes.b(store.kind(entry).toInt() or if (store.flag(entry)) 0x80 else 0)
+        zigzag(store.content(entry))
+        writes.b(store.rotation(entry))
+        writes.b(store.area(entry))
+        varint(index.toLong())
+        config(store.config(entry))
+
+        if (batch.size() >= BATCH_SIZE) flush()
+    }
+
+    /** Records a change to an existing entry. [setConfig] writes [config] even when it is null. */
+    fun update(store: TileLogStore, entry: Int, rotation: Int?, config: Any?, setConfig: Boolean) {
+        prepare()
+        val flags = (if (rotation != null) UPDATE_ROTATION else 0) or (if (config != null || setConfig) UPDATE_CONFIG else 0)
+        writes.b(UPDATE)
+        varint((store.size - 1 - entry).toLong()) // Counted back from the newest entry so that the replayed store lines up
+        writes.b(flags)
+        if (rotation != null) writes.b(rotation)
+        if (flags and UPDATE_CONFIG != 0) config(config)
+    }
+
+    /** Hands the current batch to the writer thread, rotating to a new segment if this one is full */
+    fun flush() {
+        if (batch.size() == 0) return
+        val bytes = batch.toByteArray()
+        batch.reset()
+        val file = file(segment)
+        writer.execute { file.writeBytes(bytes, true) }
+
+        segmentBytes += bytes.size
+        if (segmentBytes < SEGMENT_SIZE) return
+        segment++
+        segmentBytes = 0
+        started = false
+        val oldest = segment - MAX_SEGMENTS
+        val id = info.id
+        if (oldest >= 0) writer.execute { segments(id).filter { segmentOf(it) <= oldest }.forEach { it.delete() } }
+    }
+
+    /**
+     * Reads the session back from disk into a new store and records on the writer thread, after any batches from before the reconnect, and
+     * passes them to [done] on the main thread.  Nothing may be written to this journal until then, new logs go to a fresh segment afterwards.
+     */
+    private fun replay(done: (TileLogStore, IntMap<TileRecord>) -> Unit) = writer.execute {
+        val store = TileLogStore()
+        val records = IntMap<TileRecord>()
+        for (file in segments(info.id)) {
+            try {
+                FileChannel.open(file.file().toPath(), StandardOpenOption.READ).use { channel ->
+                    read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), store, records)
+                }
+            } catch (e: IOException) {
+                Log.err("Failed to read tile log journal ${file.name()}", e)
+            }
+            segment = max(segment, segmentOf(file) + 1)
+        }
+        Core.app.post { done(store, records) }
+    }
+
+    private fun read(buffer: ByteBuffer, store: TileLogStore, records: IntMap<TileRecord>) {
+        val reads = Reads(ByteBufferInput(buffer))
+        val causes = Seq<Interactor>()
+        var lastTime = 0L
+        var lastPosition = 0
+        try {
+            readHeader(reads) ?: return
+            while (buffer.hasRemaining()) {
+                when (val tag = buffer.get().toInt()) {
+                    CAUSE -> {
+                        val id = buffer.zigzag()
+                        causes.add(SavedInteractor(reads.str(), reads.str(), id))
+                    }
+                    CHECKPOINT, SNAPSHOT -> {
+                        val pos = buffer.varint().toInt()
+                        val time = Instant.ofEpochMilli(buffer.varint())
+                        val block = Vars.content.block(buffer.varint().toInt()) ?: Blocks.air
+                        val rotation = buffer.get().toInt()
+                        val team = Team.get(buffer.get().toInt() and 0xFF)
+                        val root = buffer.get().toInt() != 0
+                        val state = TileState(Point2.x(pos).toInt(), Point2.y(pos).toInt(), block, rotation, TypeIO.readObject(reads), team, time, root)
+                        val record = records[pos]
+                        // Checkpoints only matter for tiles whose earlier history was rotated away
+                        if (record == null) records.put(pos, TileRecord(state.x, state.y, store).apply { addSequence(state) })
+                        else if (tag == SNAPSHOT) record.addSequence(state)
+                    }
+                    LOG -> {
+                        lastTime += buffer.varint()
+                        lastPosition += buffer.zigzag()
+                        val kind = buffer.get().toInt()
+                        val content = buffer.zigzag()
+                        val rotation = buffer.get().toInt()
+                        val area = buffer.get().toInt()
+                        val cause = causes[buffer.varint().toInt()]
+                        val entry = store.add(lastTime, lastPosition, (kind and 0x7F).toByte(), content, rotation, kind and 0x80 != 0, area, cause, TypeIO.readObject(reads))
+                        records[lastPosition]?.append(entry) // Added to the store regardless so that updates stay aligned
+                    }
+                    UPDATE -> {
+                        val entry = store.size - 1 - buffer.varint().toInt()
+                        val flags = buffer.get().toInt()
+                        val rotation = if (flags and UPDATE_ROTATION != 0) buffer.get().toInt() else null
+                        val config = if (flags and UPDATE_CONFIG != 0) TypeIO.readObject(reads) else null
+                        if (entry < 0) continue
+                        if (rotation != null) store.update(entry, rotation, null)
+                        if (flags and UPDATE_CONFIG != 0) store.setConfig(entry, config)
+                        records[store.position(entry)]?.entryChanged()
+                    }
+                    else -> {
+                        Log.warn("Corrupt tile log journal for @, stopping at @", info.map, buffer.position())
+                        return
+                    }
+                }
+            }
+        } catch (e: BufferUnderflowException) {
+            // The last batch was cut off by a crash, everything before it is intact
+        }
+    }
+
+    private fun config(value: Any?) {
+        scratch.reset()
+        try {
+            TypeIO.writeObject(scratchWrites, value)
+        } catch (e: IllegalArgumentException) { // Not every config can be serialized, losing it is better than losing the log
+            scratch.reset()
+            TypeIO.writeObject(scratchWrites, null)
+        }
+        scratch.writeTo(batch)
+    }
+
+    private fun varint(value: Long) {
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            writes.b(((v and 0x7F) or 0x80).toInt())
+            v = v ushr 7
+        }
+        writes.b(v.toInt())
+    }
+
+    private fun zigzag(value: Int) = varint(((value shl 1) xor (value shr 31)).toLong() and 0xFFFFFFFFL)
+}
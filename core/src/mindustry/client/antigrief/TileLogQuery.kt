@@ -0,0 +1,187 @@
+package mindustry.client.antigrief
+
+import arc.math.*
+import arc.math.geom.*
+import arc.struct.*
+import kotlin.math.*
+
+/** Selects logs in a rectangle or circle of tiles within a time window, optionally by one player and of certain kinds. */
+class TileLogQuery private constructor(
+    val minX: Int, val minY: Int, val maxX: Int, val maxY: Int,
+    /** Squared radius in tiles around the center of the bounds, or -1 for the whole rectangle */
+    private val radius2: Float,
+    val start: Long, val end: Long,
+    val playerID: Int?,
+    /** [TileLogStore] kinds to include, null for all */
+    val kinds: Set<Byte>?
+) {
+    companion object {
+        @JvmStatic @JvmOverloads
+        fun rect(x: Int, y: Int, width: Int, height: Int, start: Long, end: Long, playerID: Int? = null, kinds: Set<Byte>? = null) =
+            TileLogQuery(x, y, x + width - 1, y + height - 1, -1f, start, end, playerID, kinds)
+
+        @JvmStatic @JvmOverloads
+        fun radius(x: Int, y: Int, radius: Float, start: Long, end: Long, playerID: Int? = null, kinds: Set<Byte>? = null): TileLogQuery {
+            val r = ceil(radius).toInt()
+            return TileLogQuery(x - r, y - r, x + r, y + r, radius * radius, start, end, playerID, kinds)
+        }
+    }
+
+    private val centerX = (minX + maxX) / 2f
+    private val centerY = (minY + maxY) / 2f
+
+    fun contains(x: Int, y: Int): Boolean {
+        if (x < minX || x > maxX || y < minY || y > maxY) return false
+        return radius2 < 0 || Mathf.dst2(x.toFloat(), y.toFloat(), centerX, centerY) <= radius2
+    }
+
+    fun matches(store: TileLogStore.View, entry: Int): Boolean {
+        val time = store.time(entry)
+        if (time < start || time > end) return false
+        if (playerID != null && store.playerID(entry) != playerID) return false
+        if (kinds != null && store.kind(entry) !in kinds) return false
+        val pos = store.position(entry)
+        return contains(Point2.x(pos).toInt(), Point2.y(pos).toInt())
+    }
+}
+
+/**
+ * Per-player and per-time-bucket indexes over a [TileLogStore], kept up to date as entries are added.
+ * Each time bucket remembers which chunks of the map it touched so that queries can skip whole buckets.
+ * Queries go through a [View], so that they can run off the thread that appends.
+ */
+class TileLogIndex(private val store: TileLogStore) {
+    companion object {
+        const val BUCKET_MILLIS = 60_000L
+        const val CHUNK_SHIFT = 5 // 32x32 tile chunks
+
+        private fun chunk(x: Int, y: Int) = Point2.pack(x shr CHUNK_SHIFT, y shr CHUNK_SHIFT)
+    }
+
+    private val playerEntries = IntMap<IntSeq>()
+    private val bucketIds = IntSeq()
+    private val bucketStarts = IntSeq()
+    private val bucketChunks = Seq<IntSet>()
+
+    fun added(entry: Int) {
+        val player = store.playerID(entry)
+        (playerEntries[player] ?: IntSeq().also { playerEntries.put(player, it) }).add(entry)
+
+        val bucket = (store.time(entry) / BUCKET_MILLIS).toInt()
+        if (bucketIds.size == 0 || bucketIds[bucketIds.size - 1] != bucket) {
+            bucketIds.add(bucket)
+            bucketStarts.add(entry)
+            bucketChunks.add(IntSet())
+        }
+        val pos = store.position(entry)
+        bucketChunks.peek().add(chunk(Point2.x(pos).toInt(), Point2.y(pos).toInt()))
+    }
+
+    /** Every entry logged by [playerID], oldest first.  Only read it under the lock held while appending. */
+    fun entriesOf(playerID: Int): IntSeq? = playerEntries[playerID]
+
+    /** The index and its store as of now, to be queried on any thread.  Take it under the lock held while appending. */
+    fun view() = View(this)
+
+    /**
+     * A [TileLogIndex] as it was when taken, along with a [TileLogStore.View] of its store.  The per-player lists and bucket arrays only
+     * grow by copy and the chunks of a bucket stop changing once the next one starts, so only the last bucket's chunks are copied.
+     */
+    class View internal constructor(index: TileLogIndex) {
+        val store = index.store.view()
+        private val playerItems = IntMap<IntArray>()
+        private val playerCounts = IntIntMap()
+        private val buckets = index.bucketIds.size
+        private val bucketIds = index.bucketIds.items
+        private val bucketStarts = index.bucketStarts.items
+        private val bucketChunks = Array(buckets) { if (it == buckets - 1) IntSet(index.bucketChunks[it]) else index.bucketChunks[it] }
+
+        init {
+            for (entry in index.playerEntries) {
+                playerItems.put(entry.key, entry.value.items)
+                playerCounts.put(entry.key, entry.value.size)
+            }
+        }
+
+        /** Calls [cons] with every matching entry, oldest first.  Only the buckets and player entries in the window are looked at. */
+        fun forEach(query: TileLogQuery, cons: (Int) -> Unit) {
+            for (entry in entries(query)) cons(entry)
+        }
+
+        /** Streams matching logs as [TileLog] views */
+        fun logs(query: TileLogQuery): Sequence<TileLog> = entries(query).map(store::log)
+
+        private fun entries(query: TileLogQuery): Sequence<Int> = sequence {
+            val size = store.size
+            if (query.playerID != null) {
+                val entries = playerItems[query.playerID] ?: return@sequence
+                val count = playerCounts.get(query.playerID, 0)
+                var lo = 0
+                var hi = count
+                while (lo < hi) { // First entry at or after the start of the window
+                    val mid = (lo + hi) ushr 1
+                    if (store.time(entries[mid]) < query.start) lo = mid + 1 else hi = mid
+                }
+                for (i in lo until count) {
+                    val entry = entries[i]
+                    if (entry >= size || store.time(entry) > query.end) break
+                    if (query.matches(store, entry)) yield(entry)
+                }
+                return@sequence
+            }
+
+            val first = (query.start / BUCKET_MILLIS).toInt()
+            val last = (query.end / BUCKET_MILLIS).coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+            for (b in 0 until buckets) {
+                val id = bucketIds[b]
+                if (id < first) continue
+                if (id > last) break
+                if (!touches(bucketChunks[b], query)) continue
+                val end = if (b + 1 < buckets) bucketStarts[b + 1] else size
+                for (entry in bucketStarts[b] until min(end, size)) {
+                    if (query.matches(store, entry)) yield(entry)
+                }
+            }
+        }
+
+        private fun touches(chunks: IntSet, query: TileLogQuery): Boolean {
+            val minX = max(query.minX, 0) shr CHUNK_SHIFT
+            val minY = max(query.minY, 0) shr CHUNK_SHIFT
+            val maxX = max(query.maxX, 0) shr CHUNK_SHIFT
+            val maxY = max(query.maxY, 0) shr CHUNK_SHIFT
+            if ((maxX - minX + 1).toLong() * (maxY - minY + 1) > chunks.size) { // Cheaper to go through the bucket's chunks
+                val iter = chunks.iterator()
+                while (iter.hasNext) {
+                    val chunk = iter.next()
+                    if (Point2.x(chunk).toInt() in minX..maxX && Point2.y(chunk).toInt() in minY..maxY) return true
+                }
+                return false
+            }
+            for (x in minX..maxX) for (y in minY..maxY) if (chunks.contains(Point2.pack(x, y))) return true
+            return false
+        }
+    }
+}
+
+/** Log counts per player and per kind for one [TileLogQuery] */
+class TileLogSummary(val total: Int, val perKind: IntArray, val players: List<Player>) {
+    class Player(val id: Int, val name: String, val perKind: IntArray) {
+        val total get() = perKind.sum()
+    }
+}
+
+fun TileLogIndex.View.summarize(query: TileLogQuery): TileLogSummary {
+    val kinds = TileLogStore.kindNames.size
+    val perKind = IntArray(kinds)
+    val players = IntMap<TileLogSummary.Player>()
+    var total = 0
+    forEach(query) { entry ->
+        val kind = store.kind(entry).toInt()
+        val id = store.playerID(entry)
+        val player = players[id] ?: TileLogSummary.Player(id, store.cause(entry).shortName, IntArray(kinds)).also { players.put(id, it) }
+        player.perKind[kind]++
+        perKind[kind]++
+        total++
+    }
+    return TileLogSummary(total, perKind, players.values().toList().sortedByDescending { it.total })
+}
@@ -0,0 +1,228 @@
+package mindustry.client.antigrief
+
+import arc.math.geom.*
+import arc.struct.*
+import mindustry.*
+import mindustry.content.*
+import mindustry.world.*
+import java.time.*
+import kotlin.math.*
+
+/**
+ * Columnar storage for every [TileLog] recorded this session.
+ * Entries are appended in time order, so an entry index doubles as a global sequence number.
+ * [TileLog] objects are only created as short-lived views when something asks for them.
+ */
+class TileLogStore(initialCapacity: Int = 1024) {
+    companion object {
+        const val CONFIGURE: Byte = 0
+        const val PLACED: Byte = 1
+        const val PAYLOAD_DROP: Byte = 2
+        const val BREAK: Byte = 3
+        const val PAYLOAD_PICKUP: Byte = 4
+        const val DESTROYED: Byte = 5
+        const val UNIT_DESTROYED: Byte = 6
+        const val ROTATE: Byte = 7
+
+        /** Names of each kind, also the suffix of their client.* bundle entry */
+        @JvmField val kindNames = arrayOf("configured", "built", "putdown", "broke", "pickedup", "destroyed", "unitdeath", "rotated")
+
+        /** Root tile for placements, player unit for unit deaths, counterclockwise for rotations. */
+        private const val FLAG: Int = 1
+    }
+
+    var size = 0
+        private set
+
+    private var times = LongArray(initialCapacity)
+    private var positions = IntArray(initialCapacity)
+    private var kinds = ByteArray(initialCapacity)
+    private var contents = ShortArray(initialCapacity)
+    private var rotations = ByteArray(initialCapacity)
+    private var flags = ByteArray(initialCapacity)
+    private var areas = ByteArray(initialCapacity)
+    private var causes = IntArray(initialCapacity)
+    private var players = IntArray(initialCapacity)
+    private var configs = arrayOfNulls<Any?>(initialCapacity)
+
+    /** Per-player and time bucket indexes for [TileLogQuery] */
+    val index = TileLogIndex(this)
+
+    private val interactors = Seq<Interactor>(Interactor::class.java)
+    private val interactorIndices = ObjectIntMap<String>()
+
+    fun time(entry: Int) = times[entry]
+    fun instant(entry: Int): Instant = Instant.ofEpochMilli(times[entry])
+    fun position(entry: Int) = positions[entry]
+    fun kind(entry: Int) = kinds[entry]
+    fun content(entry: Int) = contents[entry].toInt()
+    fun rotation(entry: Int) = rotations[entry].toInt()
+    fun playerID(entry: Int) = players[entry]
+    fun cause(entry: Int): Interactor = interactors[causes[entry]]
+    fun config(entry: Int) = configs[entry]
+    fun flag(entry: Int) = flags[entry].toInt() and FLAG != 0
+    fun area(entry: Int) = areas[entry].toInt()
+    fun isBreak(entry: Int) = kinds[entry] == BREAK || kinds[entry] == PAYLOAD_PICKUP || kinds[entry] == DESTROYED
+
+    /** @return the index of the first entry logged strictly after [time], or [size] if there is none */
+    fun firstAfter(time: Long): Int {
+        var lo = 0
+        var hi = size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (times[mid] <= time) lo = mid + 1 else hi = mid
+        }
+        return lo
+    }
+
+    /** Appends [log] for [tile] and returns the new entry index. */
+    fun add(tile: Tile, log: TileLog): Int {
+        val time = log.time.toEpochMilli()
+        val area = log.position.width
+        return when (log) {
+            is BlockPayloadDropLog -> add(time, tile.pos(), PAYLOAD_DROP, log.block.id.toInt(), log.rotation, log.isRootTile, area, log.cause, log.configuration)
+            is TilePlacedLog -> add(time, tile.pos(), PLACED, log.block.id.toInt(), log.rotation, log.isRootTile, area, log.cause, log.configuration)
+            is BlockPayloadPickupLog -> add(time, tile.pos(), PAYLOAD_PICKUP, log.block.id.toInt(), 0, false, area, log.cause, null)
+            is TileDestroyedLog -> add(time, tile.pos(), DESTROYED, log.block.id.toInt(), 0, false, area, log.cause, null)
+            is TileBreakLog -> add(time, tile.pos(), BREAK, log.block.id.toInt(), 0, false, area, log.cause, null)
+            is ConfigureTileLog -> add(time, tile.pos(), CONFIGURE, log.block.id.toInt(), log.rotation, false, area, log.cause, log.configuration)
+            is RotateTileLog -> add(time, tile.pos(), ROTATE, log.block.id.toInt(), log.rotation, log.direction, area, log.cause, null)
+            is UnitDestroyedLog -> add(time, tile.pos(), UNIT_DESTROYED, log.unitType?.id?.toInt() ?: -1, 0, log.isPlayer, area, log.cause, null)
+            else -> throw IllegalArgumentException("Unknown log type ${log::class.simpleName}")
+        }
+    }
+
+    /** Appends a raw entry and returns its index. */
+    fun add(time: Long, position: Int, kind: Byte, content: Int, rotation: Int, flag: Boolean, area: Int, cause: Interactor, config: Any?): Int {
+        if (size == times.size) grow()
+        val i = size
+        times[i] = if (i > 0) max(time, times[i - 1]) else time // Kept non-decreasing for the time index
+        positions[i] = position
+        kinds[i] = kind
+        contents[i] = content.toShort()
+        rotations[i] = rotation.toByte()
+        flags[i] = if (flag) FLAG.toByte() else 0
+        areas[i] = area.toByte()
+        causes[i] = intern(cause)
+        players[i] = cause.playerID
+        configs[i] = config
+        size++
+        index.added(i)
+        return i
+    }
+
+    /** Updates the rotation and configuration of a placement once the building exists. */
+    fun update(entry: Int, rotation: Int?, configuration: Any?) {
+        if (rotation != null) rotations[entry] = rotation.toByte()
+        if (configuration != null) configs[entry] = configuration
+    }
+
+    fun setConfig(entry: Int, configuration: Any?) {
+        configs[entry] = configuration
+    }
+
+    /** Applies the entry to [state] without creating a [TileLog]. Equivalent to `log(entry).apply(state)`. */
+    fun apply(entry: Int, state: TileState) {
+        when (kinds[entry]) {
+            CONFIGURE -> {
+                state.rotation = rotations[entry].toInt()
+                state.configuration = configs[entry]
+            }
+            PLACED, PAYLOAD_DROP -> {
+                state.block = block(entry)
+                state.rotation = rotations[entry].toInt()
+                state.configuration = configs[entry]
+                state.isRootTile = flag(entry)
+            }
+            BREAK, PAYLOAD_PICKUP, DESTROYED -> {
+                state.block = Blocks.air
+                state.rotation = -1
+                state.configuration = null
+                state.isRootTile = false
+            }
+            ROTATE -> state.rotation = rotations[entry].toInt()
+        }
+    }
+
+    /** Creates a [TileLog] view of the entry. */
+    fun log(entry: Int): TileLog = view().log(entry)
+
+    fun block(entry: Int): Block = Vars.content.block(content(entry)) ?: Blocks.air
+
+    private fun intern(cause: Interactor): Int {
+        val key = "${cause.playerID}:${cause.name}"
+        val existing = interactorIndices.get(key, -1)
+        if (existing != -1) return existing
+        interactors.add(cause)
+        interactorIndices.put(key, interactors.size - 1)
+        return interactors.size - 1
+    }
+
+    /** The entries logged so far, to be read on another thread while this keeps growing.  Take it under the lock held while appending. */
+    fun view() = View(this)
+
+    /**
+     * The entries of a [TileLogStore] up to [size] as they were when this was taken.  The columns are only ever replaced by bigger copies,
+     * so the ones captured here keep holding those entries however much is appended afterwards.
+     */
+    class View internal constructor(store: TileLogStore) {
+        val size = store.size
+        private val times = store.times
+        private val positions = store.positions
+        private val kinds = store.kinds
+        private val contents = store.contents
+        private val rotations = store.rotations
+        private val flags = store.flags
+        private val areas = store.areas
+        private val causes = store.causes
+        private val players = store.players
+        private val configs = store.configs
+        private val interactors = store.interactors.items
+
+        fun time(entry: Int) = times[entry]
+        fun instant(entry: Int): Instant = Instant.ofEpochMilli(times[entry])
+        fun position(entry: Int) = positions[entry]
+        fun kind(entry: Int) = kinds[entry]
+        fun content(entry: Int) = contents[entry].toInt()
+        fun rotation(entry: Int) = rotations[entry].toInt()
+        fun playerID(entry: Int) = players[entry]
+        fun cause(entry: Int): Interactor = interactors[causes[entry]]
+        fun flag(entry: Int) = flags[entry].toInt() and FLAG != 0
+        fun block(entry: Int): Block = Vars.content.block(content(entry)) ?: Blocks.air
+
+        /** Creates a [TileLog] view of the entry. */
+        fun log(entry: Int): TileLog {
+            val pos = positions[entry]
+            val area = TileLog.linkedArea(Point2.x(pos).toInt(), Point2.y(pos).toInt(), areas[entry].toInt())
+            val cause = cause(entry)
+            val time = instant(entry)
+            val id = entry.toLong()
+            val flag = flag(entry)
+            return when (kinds[entry]) {
+                CONFIGURE -> ConfigureTileLog(area, cause, block(entry), rotation(entry), configs[entry], time, id)
+                PLACED -> TilePlacedLog(area, cause, block(entry), rotation(entry), configs[entry], flag, time, id)
+                PAYLOAD_DROP -> BlockPayloadDropLog(area, cause, block(entry), rotation(entry), configs[entry], flag, time, id)
+                BREAK -> TileBreakLog(area, cause, block(entry), time, id)
+                PAYLOAD_PICKUP -> BlockPayloadPickupLog(area, cause, block(entry), time, id)
+                DESTROYED -> TileDestroyedLog(area, block(entry), time, id)
+                UNIT_DESTROYED -> UnitDestroyedLog(area, cause, Vars.content.unit(content(entry)), flag, time, id)
+                ROTATE -> RotateTileLog(area, cause, block(entry), rotation(entry), flag, time, id)
+                else -> throw IllegalStateException("Corrupt log kind ${kinds[entry]} at $entry")
+            }
+        }
+    }
+
+    private fun grow() {
+        val cap = times.size * 2
+        times = times.copyOf(cap)
+        positions = positions.copyOf(cap)
+        kinds = kinds.copyOf(cap)
+        contents = contents.copyOf(cap)
+        rotations = rotations.copyOf(cap)
+        flags = flags.copyOf(cap)
+        areas = areas.copyOf(cap)
+        causes = causes.copyOf(cap)
+        players = players.copyOf(cap)
+        configs = configs.copyOf(cap)
+    }
+}
@@ -2,6 +2,8 @@ package mindustry.client.antigrief
 
 import arc.*
 import arc.math.*
+import arc.math.geom.*
+import arc.struct.*
 import arc.util.*
 import mindustry.*
 import mindustry.ai.types.*
@@ -16,21 +18,53 @@ import java.time.*
 import kotlin.math.*
 
 object TileRecords {
-    private var records: Array<Array<TileRecord>> = arrayOf(arrayOf())
+    /** Records keyed by packed tile position, only present for tiles that have been logged */
+    private var records = IntMap<TileRecord>()
+    private var width = 0
+    private var height = 0
+    var store = TileLogStore()
+        private set
     var joinTime: Instant = Instant.EPOCH
+    private var journal: TileLogJournal? = null
+    /** Bumped whenever the history is reset, so that a journal still opening for an earlier session is dropped */
+    private var session = 0
+    /**
+     * Whether the journal is still being opened, and any history from before a reconnect read back from it.  Until then the records only
+     * hold what was logged since joining, and nothing is written to the journal.
+     */
+    @Volatile var loading = false
+        private set
+    /** Held while appending to [records], so that a [RollbackEngine] on another thread can take a consistent view of them */
+    private val appendLock = Any()
 
     fun initialize() {
+        Timer.schedule({ journal?.flush() }, 1f, 1f)
+
         Events.on(EventType.WorldLoadEvent::class.java) {
             val startTime = Time.globalTime / 60.0 - Vars.state.tick / 60.0
             var sameMap = abs(ClientVars.lastServerStartTime - startTime) < 10 // if start time of map is within 10s of the previous start time
-            sameMap = sameMap && records.isNotEmpty() && Vars.state.map.name() == ClientVars.lastServerName &&
-                    Vars.world.width() == records.size && Vars.world.height() == records[0].size
+            sameMap = sameMap && Vars.state.map.name() == ClientVars.lastServerName &&
+                    Vars.world.width() == width && Vars.world.height() == height
 
             ClientVars.lastServerStartTime = startTime
             ClientVars.lastServerName = Vars.state.map.name()
             if (!ClientVars.syncing && !sameMap) {
-                records = Array(Vars.world.width()) { x -> Array(Vars.world.height()) { y -> TileRecord(x, y) } }
+                journal?.flush()
+                records = IntMap()
+                store = TileLogStore()
+                width = Vars.world.width()
+                height = Vars.world.height()
+                journal = null
+                loading = false
                 joinTime = Instant.now()
+                val opening = ++session
+                if (Vars.net.client() && Core.settings.getBool("tilelogjournal")) {
+                    val server = Vars.ui.join.lastHost?.let { h -> "${h.address}:${h.port}" } ?: "unknown"
+                    loading = true // The journal directory is looked through on the writer thread
+                    TileLogJournal.open(server, Vars.state.map.name(), startTime, width, height, joinTime.toEpochMilli(), { records }) { opened, replayed, replayedRecords ->
+                        if (opening == session) finishLoading(opened, replayed, replayedRecords) // Otherwise the session was left while it was opening
+                    }
+                }
             }
         }
 
@@ -43,9 +77,10 @@ object TileRecords {
                 it.tile.getLinkedTilesAs(it.newBlock) { tile ->
                     val log = TilePlacedLog(tile, it.unit.toInteractor(),
                         it.newBlock, -1, null, tile == it.tile)
-                    addLog(tile, log)
-                    Core.app.post { // When BlockBuildBeginEvent is fired. Or the building is just rotated.
-                        log.updateLog(tile.build?.rotation, tile.build?.config())
+                    val store = store
+                    val entry = addLog(tile, log)
+                    if (entry != -1) Core.app.post { // When BlockBuildBeginEvent is fired. Or the building is just rotated.
+                        update(store, entry, tile.build?.rotation, tile.build?.config())
                     }
                 }
             }
@@ -54,15 +89,20 @@ object TileRecords {
         Events.on(EventType.BlockBuildEndEvent::class.java) {
             if (it.breaking) return@on
             it.tile.getLinkedTiles { tile ->
-                val sequence = this[tile]?.sequences ?: return@getLinkedTiles
-                (sequence.last().logs.lastOrNull() as? TilePlacedLog)?.configuration = it.tile.build?.config() ?: return@getLinkedTiles // FINISHME: Build is nullable for some reason (see https://discord.com/channels/965438060508631050/965438061003550722/1039950910295658600)
+                val entry = this[tile]?.lastEntry() ?: return@getLinkedTiles
+                if (entry == -1 || (store.kind(entry) != TileLogStore.PLACED && store.kind(entry) != TileLogStore.PAYLOAD_DROP)) return@getLinkedTiles
+                setConfig(store, entry, it.tile.build?.config() ?: return@getLinkedTiles) // FINISHME: Build is nullable for some reason (see https://discord.com/channels/965438060508631050/965438061003550722/1039950910295658600)
             }
         }
 
         Events.on(EventType.ConfigEventBefore::class.java) {
             if (it.player != null) Seer.blockConfig(it.player, it.tile.tile, it.value)
+            val store = store
             it.tile.tile.getLinkedTiles { tile ->
-                addLog(tile, ConfigureTileLog(tile, it.player.toInteractor(), tile.block(), it.tile.rotation, it.value))
+                val entry = addLog(tile, ConfigureTileLog(tile, it.player.toInteractor(), tile.block(), it.tile.rotation, it.value))
+                if (entry != -1) Core.app.post { // The value in the event may not be what the building ends up with
+                    setConfig(store, entry, tile.build?.config())
+                }
             }
         }
 
@@ -111,13 +151,90 @@ object TileRecords {
         }
     }
 
-    operator fun get(x: Int, y: Int): TileRecord? = records.getOrNull(x)?.getOrNull(y)
+    operator fun get(x: Int, y: Int): TileRecord? {
+        if (x !in 0 until width || y !in 0 until height) return null
+        return records[Point2.pack(x, y)]
+    }
 
     operator fun get(tile: Tile): TileRecord? = this[tile.x.toInt(), tile.y.toInt()]
 
-    private fun addLog(tile: Tile, log: TileLog) {
-        val logs = this[tile] ?: return
-        logs.add(log, tile)
+    /** The current session's store, only what was logged since reconnecting while [loading] */
+    fun history(): TileLogStore = store
+
+    /** A view of [history] as of now that can be queried on any thread, see [TileLogIndex.View] */
+    fun historyView(): TileLogIndex.View = synchronized(appendLock) { store.index.view() }
+
+    /** A [RollbackEngine] over the current session's history, only what was logged since reconnecting while [loading] */
+    fun rollbackEngine(): RollbackEngine {
+        val records = records
+        return RollbackEngine(store, appendLock) { records[it] }
+    }
+
+    /** @return the store entry of the log, or -1 if the tile is out of bounds */
+    private fun addLog(tile: Tile, log: TileLog): Int {
+        if (tile.x.toInt() !in 0 until width || tile.y.toInt() !in 0 until height) return -1
+        val journal = if (loading) null else journal
+        journal?.prepare()
+        var entry = -1
+        val started = synchronized(appendLock) {
+            val record = records[tile.pos()] ?: TileRecord(tile.x.toInt(), tile.y.toInt(), store).also { records.put(tile.pos(), it) }
+            entry = store.add(tile, log)
+            record.add(entry, tile)
+        }
+        started?.let { journal?.snapshot(it.snapshot) }
+        journal?.log(store, entry)
+        return entry
+    }
+
+    /** Updates a placement once the building exists. Ignored if the store is from a previous session. */
+    private fun update(store: TileLogStore, entry: Int, rotation: Int?, configuration: Any?) {
+        if (store !== this.store) return
+        store.update(entry, rotation, configuration)
+        records[store.position(entry)]?.entryChanged()
+        if (!loading) journal?.update(store, entry, rotation, configuration, false)
+    }
+
+    private fun setConfig(store: TileLogStore, entry: Int, configuration: Any?) {
+        if (store !== this.store) return
+        store.setConfig(entry, configuration)
+        records[store.position(entry)]?.entryChanged()
+        if (!loading) journal?.update(store, entry, null, configuration, true)
+    }
+
+    /**
+     * Starts writing to [journal] and swaps in the history read back from it from before the reconnect, if any, then carries over what was
+     * logged while it was opening, writing it to the journal the same way [addLog] would have.  Main thread only.
+     */
+    private fun finishLoading(journal: TileLogJournal, replayed: TileLogStore, replayedRecords: IntMap<TileRecord>) {
+        this.journal = journal
+        joinTime = Instant.ofEpochMilli(journal.info.joinTime)
+        val live = store
+        val liveRecords = records
+        // The sequences started since reconnecting, by their first entry
+        val starts = IntMap<TileLogSequence>()
+        for (record in liveRecords.values()) for (seq in record.sequences) if (seq.entries.size > 0) starts.put(seq.entries[0], seq)
+
+        synchronized(appendLock) {
+            store = replayed
+            records = replayedRecords
+            loading = false
+            journal.prepare() // Checkpoints the replayed tiles, the carried over logs go after them
+            for (i in 0 until live.size) {
+                val pos = live.position(i)
+                var record = replayedRecords[pos]
+                val started = starts[i]
+                // The first sequence since reconnecting continues the replayed one, its snapshot is only the state when the tile was first logged again
+                if (started != null && (record == null || started !== liveRecords[pos]?.sequences?.first())) {
+                    if (record == null && started === liveRecords[pos]?.sequences?.first()) started.snapshot.time = joinTime // The tile's state as of joining
+                    record = record ?: TileRecord(Point2.x(pos).toInt(), Point2.y(pos).toInt(), replayed).also { replayedRecords.put(pos, it) }
+                    record.addSequence(started.snapshot)
+                    journal.snapshot(started.snapshot)
+                }
+                val entry = replayed.add(live.time(i), pos, live.kind(i), live.content(i), live.rotation(i), live.flag(i), live.area(i), live.cause(i), live.config(i))
+                record?.append(entry)
+                journal.log(replayed, entry)
+            }
+        }
     }
 
     fun show(tile: Tile) {
@@ -2,97 +2,108 @@ package mindustry.client.communication
 
 import mindustry.client.utils.*
 import java.io.*
-import java.math.*
+import java.nio.*
 
 /**
  * You've heard of base64, now get ready for... base32768.  Encodes 15 bits of data into each unicode character.
+ *
+ * The input is read as one big endian number with a 1 bit in front of it, and written 15 bits at a time starting from the least significant bits,
+ * each offset by 128 to stay clear of ascii control characters.  A final character holds the number of input bytes, again offset by 128.
+ * This means the first characters hold the last bytes, so the buffer methods walk their input back to front, in a single pass either way.
  * FINISHME: 16 bit with an escape character to avoid ascii control chars?  Encode more data in the escape char?
  */
 object Base32768Coder {
     private const val BITS = 15
+    private const val MASK = (1 shl BITS) - 1
+    private const val OFFSET = 128
 
     fun availableBytes(length: Int) = ((length.toDouble() * BITS) / 8).floor()
 
-    fun encodedLengthOf(bytes: Int) = ((bytes.toDouble() * 8) / BITS).ceil()
+    /** The exact number of chars [encode] produces for [bytes] bytes of input, including the length character. */
+    fun encodedLengthOf(bytes: Int) = dataLengthOf(bytes) + Character.charCount(bytes + OFFSET)
 
-//    private const val MASK = 0b111111111111111U
+    /** Data characters needed for [bytes] bytes and the leading 1 bit. */
+    private fun dataLengthOf(bytes: Int) = (bytes.toLong() * 8 / BITS).toInt() + 1
 
     fun encode(input: ByteArray): String {
-        var inp = BigInteger(byteArrayOf(1).plus(input))
-        val out = mutableListOf<Int>()
-        val andValue = 2.toBigInteger().pow(BITS) - 1.toBigInteger()
-        while (inp != BigInteger.ZERO) {
-            out.add((inp and andValue).toInt() + 128)
-            inp = inp shr BITS
+        val output = CharBuffer.allocate(encodedLengthOf(input.size))
+        encode(ByteBuffer.wrap(input), output)
+        return String(output.array(), 0, output.position())
+    }
+
+    /**
+     * Encodes all remaining bytes of [input] into [output], advancing both.
+     * @throws BufferOverflowException if [output] has less than [encodedLengthOf] chars remaining
+     */
+    fun encode(input: ByteBuffer, output: CharBuffer) {
+        val start = input.position()
+        val size = input.remaining()
+        if (output.remaining() < encodedLengthOf(size)) throw BufferOverflowException()
+
+        var acc = 0L
+        var bits = 0
+        for (i in start + size - 1 downTo start) {
+            acc = acc or ((input.get(i).toLong() and 0xFF) shl bits)
+            bits += 8
+            if (bits >= BITS) {
+                output.put(((acc and MASK.toLong()) + OFFSET).toInt().toChar())
+                acc = acc ushr BITS
+                bits -= BITS
+            }
         }
-        return String(out.toIntArray(), 0, out.size) + String(intArrayOf(input.size + 128), 0, 1)
+        acc = acc or (1L shl bits) // At most 15 bits left with the marker, so this is always exactly one more char
+        output.put((acc + OFFSET).toInt().toChar())
+        input.position(start + size)
 
-//        val buffer = IntArray(encodedLengthOf(input.size) + 1)
-//        for (i in buffer.indices) {
-//            val bit = i * 15
-//            val num = bit % 8
-//            val n = bit / 8
-//            val res = when (num) {
-//                // 3 byte case
-//                in 2..7 -> {
-//                    var secondZeroed = false
-//                    var thirdZeroed = false
-//
-//                    val firstByte  = if (n < input.size) input[n].toUByte().toUInt() else 0U
-//                    val secondByte = if (n + 1 < input.size) input[n + 1].toUByte().toUInt() else { secondZeroed = true; 0U }
-//                    val thirdByte  = if (n + 2 < input.size) input[n + 2].toUByte().toUInt() else { thirdZeroed = true; 0U }
-//
-//                    // note: problem when i == 7
-//                            /*                    ((firstByte shl (num - 1)).shl(7).and(MASK) or
-//                            (secondByte shl (num - 1)) or
-//                            (thirdByte shr (9 - num)))*/
-//
-//                    ((firstByte shl (num + 6)).and(MASK) or
-//                            (secondByte shl (num - 1)) or
-//                            (thirdByte shr (9 - num)))/*.run {
-//                        // 11111111 11111111 00000000
-//                        //    11111 11111111 11
-//
-//                        // 00111111 11111111
-//                        // we want 16383 (00111111 11111111)
-//                        if (secondZeroed) this shr (15 - (9 - num)) else if (thirdZeroed) this shr (8 - (9 - num)) else this
-//                            }*/
-//                }
-//                // 2 byte cases
-//                0 -> {
-//                    val firstByte   = if (n < input.size) input[n].toUByte().toUInt() else 0U
-//                    val secondByte  = if (n + 1 < input.size) input[n + 1].toUByte().toUInt() else 0U
-//                    ((firstByte shl 7) or (secondByte shr 1)) and MASK
-//                }
-//                else /* 1 */ -> {
-//                    val firstByte   = if (n < input.size) input[n].toUByte().toUInt() else 0U
-//                    val secondByte  = if (n + 1 < input.size) input[n + 1].toUByte().toUInt() else 0U
-//                    (firstByte.shl(1).shr(1) or secondByte) and MASK
-//                }
-//            }
-//            buffer[i] = res.toInt() + 128
-//        }
-//
-////        println(input.joinToString())
-//        println(out.joinToString { it.minus(128).toString(2).padStart(32, '0') })
-//        println(buffer.joinToString { it.minus(128).toString(2).padStart(32, '0') })
-//        return String(buffer, 0, buffer.size) + String(intArrayOf(input.size + 128), 0, 1)
+        val length = size + OFFSET
+        if (Character.charCount(length) == 1) output.put(length.toChar())
+        else output.put(Character.highSurrogate(length)).put(Character.lowSurrogate(length))
     }
 
     @Throws(IOException::class)
     fun decode(input: String): ByteArray {
-        try {
-            val length = input.codePointAt(input.length - 1) - 128
-            var out = BigInteger("0")
+        val output = ByteBuffer.allocate(decodedLengthOf(input))
+        decode(input, output)
+        return output.array()
+    }
+
+    /** The number of bytes [decode] will produce for [input], read from its length character. */
+    @Throws(IOException::class)
+    fun decodedLengthOf(input: CharSequence): Int {
+        if (input.isEmpty()) throw IOException("Empty input")
+        val length = Character.codePointBefore(input, input.length) - OFFSET
+        if (length < 0) throw IOException("Invalid length character")
+        return length
+    }
+
+    /**
+     * Decodes the whole of [input] into [output], starting at its position and advancing it.  Works on a [String], [CharBuffer] or [StringBuilder] without copying.
+     * @throws IOException if [input] was not produced by [encode] or [output] does not have room for [decodedLengthOf] bytes
+     */
+    @Throws(IOException::class)
+    fun decode(input: CharSequence, output: ByteBuffer) {
+        val size = decodedLengthOf(input)
+        val chars = input.length - Character.charCount(size + OFFSET)
+        if (chars != dataLengthOf(size)) throw IOException("Expected ${dataLengthOf(size)} characters for $size bytes, got $chars")
+        if (output.remaining() < size) throw IOException("Not enough room for $size bytes")
 
-            for ((index, s) in input.dropLast(1).chunked(1).withIndex()) {
-                out += (s.codePointAt(0) - 128).toBigInteger() shl (index * BITS)
+        val start = output.position()
+        var index = start + size - 1 // Bytes come out last first
+        var acc = 0L
+        var bits = 0
+        for (i in 0 until chars) {
+            val value = input[i].code - OFFSET
+            if (value < 0 || value > MASK) throw IOException("Invalid character at $i")
+            acc = acc or (value.toLong() shl bits)
+            bits += BITS
+            while (bits >= 8 && index >= start) {
+                output.put(index--, acc.toByte())
+                acc = acc ushr 8
+                bits -= 8
             }
-            val outp = out.toByteArray().plus(0)
-            return outp.sliceArray(1..length)
-        } catch (e: Exception) {
-            throw IOException(e)
         }
+        if (acc != 1L) throw IOException("Missing marker bit")
+        output.position(start + size)
     }
 
     fun encode(string: String): String {
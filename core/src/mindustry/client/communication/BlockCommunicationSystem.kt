@@ -27,6 +27,38 @@ object BlockCommunicationSystem : CommunicationSystem() {
     }
     override val RATE: Float = 15f // 250ms
 
+    /**
+     * Sends on at most one of the logic and message carriers, logic first, alongside build plans which are always there as a last resort.
+     * Both config carriers go through [Call.tileConfig], together they would exceed the server's interact rate limit and eat into
+     * [ClientVars.ratelimitRemaining], so they share the one [RATE] budget instead of running side by side.
+     */
+    override val carriers get() = listOfNotNull(
+        if (logicAvailable) LogicCarrier else if (messageAvailable) MessageCarrier else null,
+        BuildPlanCommunicationSystem.takeIf { !(logicAvailable || messageAvailable) || Vars.player.unit().canBuild() }
+    )
+
+    private object LogicCarrier : CommunicationSystem() {
+        override val listeners: MutableList<(input: ByteArray, sender: Int) -> Unit> = mutableListOf() // Received through BlockCommunicationSystem
+        override val id get() = BlockCommunicationSystem.id
+        override val MAX_LENGTH get() = Base32768Coder.availableBytes(3000)
+        override val RATE = 15f // 250ms
+
+        override fun send(bytes: ByteArray) {
+            if (!sendLogic(bytes)) throw IllegalStateException("No processor to send with")
+        }
+    }
+
+    private object MessageCarrier : CommunicationSystem() {
+        override val listeners: MutableList<(input: ByteArray, sender: Int) -> Unit> = mutableListOf() // Received through BlockCommunicationSystem
+        override val id get() = BlockCommunicationSystem.id
+        override val MAX_LENGTH get() = Base32768Coder.availableBytes((Blocks.message as MessageBlock).maxTextLength - ClientVars.MESSAGE_BLOCK_PREFIX.length)
+        override val RATE = 15f // 250ms
+
+        override fun send(bytes: ByteArray) {
+            if (!sendMessageBlock(bytes)) throw IllegalStateException("No message block to send with")
+        }
+    }
+
     const val LOGIC_PREFIX = "end\nprint \"client networking, do not edit/remove\""
 
     init {
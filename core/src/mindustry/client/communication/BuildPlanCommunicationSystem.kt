@@ -1,6 +1,7 @@
 package mindustry.client.communication
 
 import arc.*
+import arc.struct.*
 import arc.util.*
 import mindustry.*
 import mindustry.client.*
@@ -11,22 +12,43 @@ import mindustry.entities.units.*
 import mindustry.game.*
 import mindustry.gen.*
 import mindustry.world.*
-import kotlin.collections.set
+import java.io.*
+import java.nio.*
 import kotlin.random.*
 
+/**
+ * Sends data through processor plans at the corners of the map, which every client sees in the plans the server syncs for each unit.
+ * Incoming plans are scanned as their snapshot is read, see [scan].
+ */
 object BuildPlanCommunicationSystem : CommunicationSystem() {
     override val listeners: MutableList<(input: ByteArray, sender: Int) -> Unit> = mutableListOf()
     override val id get() = Vars.player.id
     override val MAX_LENGTH get() = 512
     override val RATE = 30f // 500ms
     private const val PREFIX = "end\nprint \"gwiogrwog\"\nprint \"%s\"\n"
+    /** The part of [PREFIX] before the random number */
+    private const val HEADER = "end\nprint \"gwiogrwog\"\nprint \""
 
-    private val lastGotten = mutableMapOf<Int, Int>()
+    /** Hash of the last config received from each player, by id */
+    private val lastGotten = IntIntMap()
     private lateinit var corners: Array<Tile>
+    private val payload = StringBuilder()
+
+    /** Total time spent in [scan], in nanoseconds */
+    var scanTime = 0L
+        private set
+    /** Number of plans looked at by [scan] */
+    var scannedPlans = 0L
+        private set
+    /** Number of plans that were networking plans, including ones that were already received */
+    var matchedPlans = 0L
+        private set
 
     private fun findLocation() = corners.maxByOrNull { Vars.player.dst2(it) }!!
 
-    fun isNetworking(plan: BuildPlan) = plan.block == Blocks.microProcessor && plan.tile() in corners
+    private fun isCorner(x: Int, y: Int) = (x == 0 || x == Vars.world.width() - 1) && (y == 0 || y == Vars.world.height() - 1)
+
+    fun isNetworking(plan: BuildPlan) = plan.block == Blocks.microProcessor && isCorner(plan.x, plan.y)
 
     init {
         Events.on(EventType.WorldLoadEvent::class.java) {
@@ -38,25 +60,55 @@ object BuildPlanCommunicationSystem : CommunicationSystem() {
                 Vars.world.tiles.getc(Vars.world.width() - 1, Vars.world.height() - 1)
             )
         }
+        Events.on(EventType.PlayerLeave::class.java) { if (it.player != null) lastGotten.remove(it.player.id, 0) }
+    }
 
-        val re = ("\\A$PREFIX").replace("%s", "-?\\d+").replace("\n", "\\n").toRegex()
-        Timer.schedule({
-            val start = Time.millis()
-            for (p in Groups.player) {
-                val plan = p.unit()?.plans?.find { it.block == Blocks.microProcessor && (it.config as? String)?.run { re.containsMatchIn(this) } == true }
-                if (plan == null || plan.config !is String) continue
-                val hash = plan.config.hashCode()
-                if (lastGotten[p.id] == hash) continue
+    /** Called with the plans of [player]'s unit whenever a snapshot of it is read, passes on any new data in them. */
+    @JvmStatic
+    fun scan(player: Player, plans: Queue<BuildPlan>?) {
+        plans ?: return
+        val start = Time.nanos()
+        scannedPlans += plans.size
+        for (i in 0 until plans.size) {
+            val plan = plans[i]
+            if (plan.breaking || !isCorner(plan.x, plan.y) || plan.block != Blocks.microProcessor) continue
+            val config = plan.config as? String ?: continue
+            if (!config.startsWith(HEADER)) continue
+            matchedPlans++
+            // The plans are read anew every snapshot, so skip what was already received
+            val hash = config.hashCode()
+            if (lastGotten.containsKey(player.id) && lastGotten.get(player.id, 0) == hash) continue
+            val decoded = parse(config) ?: continue
+            lastGotten.put(player.id, hash)
+            listeners.forEach { it(decoded, player.id) }
+        }
+        scanTime += Time.timeSinceNanos(start)
+    }
+
+    /** Decodes the data in a config starting with [HEADER], or null if it isn't in the format [send] uses. */
+    private fun parse(config: String): ByteArray? {
+        var i = HEADER.length
+        if (i < config.length && config[i] == '-') i++
+        val digits = i
+        while (i < config.length && config[i].isDigit()) i++
+        if (i == digits || !config.startsWith("\"\n", i)) return null
+        i += 2
 
-                lastGotten[p.id] = plan.config.hashCode()
-                val config = re.replace(plan.config as String, "").lines().joinToString("") { it.removeSurrounding("print \"", "\"") }
-                val decoded = config.base32768()
-                decoded ?: return@schedule
-                listeners.forEach { it(decoded, p.id) }
-            }
-            val time = Time.timeSinceMillis(start) // FINISHME: How is 50 ms acceptable?
-            if (time > 50) Log.debug("Scanning players took $time ms, this is a problem")
-        }, 0.2f, 0.2f)
+        payload.setLength(0)
+        while (i < config.length) {
+            var end = config.indexOf('\n', i)
+            if (end == -1) end = config.length
+            if (end - i >= "print \"\"".length && config.startsWith("print \"", i) && config[end - 1] == '"') payload.append(config, i + "print \"".length, end - 1)
+            else payload.append(config, i, end)
+            i = end + 1
+        }
+        return try {
+            val out = ByteBuffer.allocate(Base32768Coder.decodedLengthOf(payload))
+            Base32768Coder.decode(payload, out)
+            out.array()
+        } catch (e: IOException) {
+            null
+        }
     }
 
     override fun send(bytes: ByteArray) {
@@ -13,6 +13,12 @@ abstract class CommunicationSystem {
 
     open val secure: Boolean = false
 
+    /**
+     * The systems that can be sent on at the same time, each with its own [MAX_LENGTH] and [RATE].  Only [send] is used on these, what they
+     * receive still goes through this system's listeners.
+     */
+    open val carriers: List<CommunicationSystem> get() = listOf(this)
+
     /** Initializes the system. */
     open fun init() {}
 
@@ -20,7 +26,7 @@ abstract class CommunicationSystem {
         listeners.clear()
     }
 
-    /** Sends a [ByteArray] to all other clients.  Note: this may take time. FINISHME: consider moving to a queue system */
+    /** Sends a [ByteArray] to all other clients.  Note: this may take time, [Packets.CommunicationClient] schedules the calls. */
     abstract fun send(bytes: ByteArray)
 
     open fun addListener(listener: (input: ByteArray, sender: Int) -> Unit) {
@@ -0,0 +1,116 @@
+package mindustry.client.communication
+
+import arc.*
+import arc.graphics.*
+import arc.util.*
+import mindustry.client.*
+import mindustry.client.utils.*
+import java.util.concurrent.*
+import kotlin.math.*
+
+/**
+ * Encodes images for [ImageTransmission] on a small worker pool instead of the thread that sends them.  Images are shrunk to fit
+ * a byte budget worked out from the carriers' bandwidth, and a small [ImagePreviewTransmission] is made to go out ahead of them.
+ */
+object ImagePipeline {
+    /** How long sending an image should take on the fastest carrier, in seconds */
+    private const val TARGET_SECONDS = 15f
+    /** The smallest budget, so that slow carriers still get a recognizable image */
+    private const val MIN_BUDGET = 8 * 1024
+    private const val MIN_QUALITY = 0.2f
+    /** The longest side of a preview, in pixels */
+    private const val PREVIEW_SIZE = 128
+    private const val PREVIEW_QUALITY = 0.35f
+
+    private val executor = Executors.newFixedThreadPool((Runtime.getRuntime().availableProcessors() - 1).coerceIn(1, 2)) { r -> Thread(r, "Image Encoder").apply { isDaemon = true } }
+
+    /** The most bytes an image should take when sent over [system] */
+    fun budget(system: CommunicationSystem): Int {
+        val bandwidth = system.carriers.maxOfOrNull { it.MAX_LENGTH * 60f / it.RATE.coerceAtLeast(1f) } ?: 0f
+        return max(MIN_BUDGET, (bandwidth * TARGET_SECONDS).toInt())
+    }
+
+    /**
+     * Encodes [image] and its preview on the pool, then hands them to [send] on the main thread.  The preview is null if the image is small already.
+     * [image] is disposed once it has been encoded.
+     */
+    fun encode(message: Short, image: Pixmap, budget: Int, send: (preview: ImagePreviewTransmission?, image: ImageTransmission) -> Unit) {
+        executor.execute {
+            val result = try {
+                val start = Time.millis()
+                val full = ImageTransmission(message, fit(image, budget))
+                val preview = preview(image)?.let { ImagePreviewTransmission(message, full.id, it) }
+                Log.debug("Encoded ${image.width}x${image.height} image to ${full.encoded.size / 1024} KiB (budget ${budget / 1024} KiB) in ${Time.timeSinceMillis(start)}ms")
+                preview to full
+            } catch (e: Exception) {
+                Log.err("Failed to encode image", e)
+                null
+            }
+            Core.app.post {
+                image.dispose()
+                if (result != null) send(result.first, result.second)
+            }
+        }
+    }
+
+    /** Encodes [image] at [quality], lowering the quality and then the resolution until it fits in [budget] bytes. */
+    fun fit(image: Pixmap, budget: Int, quality: Float = ClientVars.jpegQuality): ByteArray {
+        var q = quality
+        var scaled = image
+        try {
+            var encoded = compressImage(scaled, q)
+            repeat(8) {
+                if (encoded.size <= budget) return encoded
+                if (q > MIN_QUALITY) q = max(MIN_QUALITY, q - 0.15f) // A png (0) stays a png and only shrinks
+                else {
+                    // The size goes roughly with the pixel count, aim a little under
+                    val scale = sqrt(budget.toFloat() / encoded.size) * 0.9f
+                    val next = downscale(scaled, max(1, (scaled.width * scale).toInt()), max(1, (scaled.height * scale).toInt()))
+                    if (scaled !== image) scaled.dispose()
+                    scaled = next
+                }
+                encoded = compressImage(scaled, q)
+            }
+            return encoded
+        } finally {
+            if (scaled !== image) scaled.dispose()
+        }
+    }
+
+    /** A small, low quality copy of [image], or null if it is about that small already. */
+    fun preview(image: Pixmap): ByteArray? {
+        val scale = PREVIEW_SIZE.toFloat() / max(image.width, image.height)
+        if (scale > 0.5f) return null
+        val small = downscale(image, max(1, (image.width * scale).toInt()), max(1, (image.height * scale).toInt()))
+        return try { compressImage(small, if (ClientVars.jpegQuality == 0f) 0f else PREVIEW_QUALITY) } finally { small.dispose() }
+    }
+
+    /** Shrinks [image] to [width] by [height], averaging the pixels that go into each new one. */
+    fun downscale(image: Pixmap, width: Int, height: Int): Pixmap {
+        val out = Pixmap(width, height)
+        for (y in 0 until height) {
+            val y0 = y * image.height / height
+            val y1 = max(y0 + 1, (y + 1) * image.height / height)
+            for (x in 0 until width) {
+                val x0 = x * image.width / width
+                val x1 = max(x0 + 1, (x + 1) * image.width / width)
+                var r = 0
+                var g = 0
+                var b = 0
+                var a = 0
+                for (sy in y0 until y1) {
+                    for (sx in x0 until x1) {
+                        val color = image[sx, sy]
+                        r += color ushr 24
+                        g += (color ushr 16) and 0xff
+                        b += (color ushr 8) and 0xff
+                        a += color and 0xff
+                    }
+                }
+                val n = (x1 - x0) * (y1 - y0)
+                out[x, y] = ((r / n) shl 24) or ((g / n) shl 16) or ((b / n) shl 8) or (a / n)
+            }
+        }
+        return out
+    }
+}
@@ -0,0 +1,38 @@
+package mindustry.client.communication
+
+import arc.graphics.*
+import mindustry.client.utils.*
+import java.nio.*
+import kotlin.random.*
+
+/** A small, low quality copy of the [ImageTransmission] with the id [imageId], shown until the full image arrives. */
+class ImagePreviewTransmission : Transmission {
+    override var id = Random.nextLong()
+    override val secureOnly = false
+    val message: Short
+    val imageId: Long
+    val encoded: ByteArray
+    /** The decoded image on received transmissions, null if it couldn't be decoded. */
+    val image: Pixmap?
+
+    constructor(message: Short, imageId: Long, encoded: ByteArray) {
+        this.message = message
+        this.imageId = imageId
+        this.encoded = encoded
+        image = null
+    }
+
+    @Suppress("UNUSED_PARAMETER")
+    constructor(b: ByteArray, id: Long, senderID: Int) {
+        this.id = id
+        val buf = ByteBuffer.wrap(b)
+        message = buf.short
+        imageId = buf.long
+        encoded = b.copyOfRange(buf.position(), b.size)
+        image = inflateImage(encoded, 0, encoded.size)
+    }
+
+    override fun serialize(): ByteArray {
+        return ByteBuffer.allocate(Short.SIZE_BYTES + Long.SIZE_BYTES + encoded.size).putShort(message).putLong(imageId).put(encoded).array()
+    }
+}
@@ -1,30 +1,35 @@
 package mindustry.client.communication
 
 import arc.graphics.*
-import arc.util.*
 import mindustry.client.utils.*
 import java.nio.*
 import kotlin.random.*
 
+/** An image attached to the chat message with the id [message], encoded by [ImagePipeline]. */
 class ImageTransmission : Transmission {
     override var id = Random.nextLong()
     override val secureOnly = false
     val message: Short
-    val image: Pixmap
+    val encoded: ByteArray
+    /** The decoded image on received transmissions, null if it couldn't be decoded.  Decoded off the main thread, see [Packets]. */
+    val image: Pixmap?
 
-    constructor(message: Short, image: Pixmap) {
+    constructor(message: Short, encoded: ByteArray) {
         this.message = message
-        this.image = image
+        this.encoded = encoded
+        image = null
     }
 
     @Suppress("UNUSED_PARAMETER")
     constructor(b: ByteArray, id: Long, senderID: Int) {
+        this.id = id
         val metadata = ByteBuffer.wrap(b)
         message = metadata.short
-        image = inflateImage(b, 2, b.size - 2)!!
+        encoded = b.copyOfRange(2, b.size)
+        image = inflateImage(encoded, 0, encoded.size)
     }
 
     override fun serialize(): ByteArray {
-        return ByteBuffer.allocate(2).putShort(message).array() + compressImage(image).apply { Log.debug("image size: ${size / 1024} KiB") }
+        return ByteBuffer.allocate(2 + encoded.size).putShort(message).put(encoded).array()
     }
 }
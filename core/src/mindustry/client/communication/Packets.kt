@@ -1,12 +1,10 @@
 package mindustry.client.communication
 
+import arc.struct.*
 import arc.util.*
 import mindustry.client.communication.syncing.Syncer.*
 import mindustry.client.utils.*
 import java.nio.*
-import java.time.*
-import java.time.temporal.*
-import java.util.*
 import java.util.concurrent.*
 import java.util.concurrent.locks.*
 import kotlin.concurrent.*
@@ -20,25 +18,44 @@ object Packets {
         RegisteredTransmission(DummyTransmission::class, ::DummyTransmission),  // Kept for compatibility, FINISHME: remove
         RegisteredTransmission(BuildQueueTransmission::class, ::BuildQueueTransmission),
         RegisteredTransmission(TLSDataTransmission::class, ::TLSDataTransmission),
-        RegisteredTransmission(TlsRequestTransmission::class, ::TlsRequestTransmission),
-        RegisteredTransmission(MessageTransmission::class, ::MessageTransmission),
-        RegisteredTransmission(SignatureTransmission::class, ::SignatureTransmission),
-        RegisteredTransmission(CommandTransmission::class, ::CommandTransmission),
-        RegisteredTransmission(ClientMessageTransmission::class, ::ClientMessageTransmission),
-        RegisteredTransmission(ImageTransmission::class, ::ImageTransmission),
+        RegisteredTransmission(TlsRequestTransmission::class, ::TlsRequestTransmission, priority = Priority.CONTROL),
+        RegisteredTransmission(MessageTransmission::class, ::MessageTransmission, priority = Priority.CONTROL),
+        RegisteredTransmission(SignatureTransmission::class, ::SignatureTransmission, priority = Priority.CONTROL),
+        RegisteredTransmission(CommandTransmission::class, ::CommandTransmission, priority = Priority.CONTROL),
+        RegisteredTransmission(ClientMessageTransmission::class, ::ClientMessageTransmission, priority = Priority.CONTROL),
+        RegisteredTransmission(ImageTransmission::class, ::ImageTransmission, true, Priority.BULK),
         RegisteredTransmission(SyncerTransmission::class, ::SyncerTransmission),
-        RegisteredTransmission(SchematicTransmission::class, ::SchematicTransmission)
+        RegisteredTransmission(SchematicTransmission::class, ::SchematicTransmission, true, Priority.BULK),
+        RegisteredTransmission(ImagePreviewTransmission::class, ::ImagePreviewTransmission, true)
     )
 
-    private data class RegisteredTransmission<T : Transmission>(val type: KClass<T>, val constructor: (content: ByteArray, id: Long, senderID: Int) -> T)
+    /**
+     * How [CommunicationClient] orders outgoing transmissions.  Packets are shared between the classes in proportion to their [weight],
+     * except that [preempts] classes go before everything else.
+     */
+    enum class Priority(val weight: Int, val preempts: Boolean = false) {
+        /** Small and latency sensitive, like chat messages and signatures */
+        CONTROL(1, true),
+        NORMAL(3),
+        /** Large transfers that can take their time, like images */
+        BULK(1)
+    }
+
+    private val priorities = Priority.values()
+
+    /** @param offThread whether to inflate and deserialize on [decoder] rather than the thread the last packet arrived on.  For large, slow to decode transmissions. */
+    private data class RegisteredTransmission<T : Transmission>(val type: KClass<T>, val constructor: (content: ByteArray, id: Long, senderID: Int) -> T, val offThread: Boolean = false, val priority: Priority = Priority.NORMAL)
+
+    /** Decodes [RegisteredTransmission.offThread] transmissions, the results are delivered on the next [CommunicationClient.update]. */
+    private val decoder = Executors.newSingleThreadExecutor { r -> Thread(r, "Transmission Decoder").apply { isDaemon = true } }
 
     private class Header {
         /** The total number of packets that make up this transmission. */
         val sequenceCount: Int
         /** This packet's index in the sequence. */
         val sequenceNumber: Int
-        /** The time at which this packet is no longer valid. */
-        val expirationTime: Instant
+        /** The time at which this packet is no longer valid, in unix seconds. */
+        val expirationTime: Long
         /** The ID of the [Transmission] it is part of. */
         val transmissionId: Long
         /** The type of [Transmission] it is part of. */
@@ -56,7 +73,7 @@ object Packets {
          * @param transmissionId The ID of the [Transmission] it is part of.
          * @param transmissionType The type of [Transmission] it is part of.
          */
-        constructor(sequenceCount: Int, sequenceNumber: Int, expirationTime: Instant, transmissionId: Long, transmissionType: Int) {
+        constructor(sequenceCount: Int, sequenceNumber: Int, expirationTime: Long, transmissionId: Long, transmissionType: Int) {
             this.sequenceCount = sequenceCount
             this.sequenceNumber = sequenceNumber
             this.expirationTime = expirationTime
@@ -64,79 +81,164 @@ object Packets {
             this.transmissionType = transmissionType
         }
 
-        /** Deserializes a header.  Compatible with [toBytes]. */
-        constructor(array: ByteArray) {
-            if (array.size < HEADER_SIZE) throw IllegalArgumentException("Input array is not long enough to be a packet header!")
-            val buf = ByteBuffer.wrap(array)
+        /** Reads a header from the buffer's current position, leaving it at the start of the packet content.  Compatible with [write]. */
+        constructor(buf: ByteBuffer) {
+            if (buf.remaining() < HEADER_SIZE) throw IllegalArgumentException("Input array is not long enough to be a packet header!")
             sequenceCount = buf.int
             sequenceNumber = buf.int
-            expirationTime = buf.long.toInstant()
+            expirationTime = buf.long
             transmissionId = buf.long
             transmissionType = buf.int
         }
 
-        /** Pulls the required bytes out of the given buffer. */
-        constructor(buf: ByteBuffer) : this(buf.bytes(HEADER_SIZE))
-
-        /** Encodes this header to bytes, compatible with the byte array and buffer constructors. */
-        fun toBytes(): ByteArray {
-            return sequenceCount.toBytes() + sequenceNumber.toBytes() + expirationTime.epochSecond.toBytes() + transmissionId.toBytes() + transmissionType.toBytes()
+        /** Encodes this header into the buffer, compatible with the buffer constructor. */
+        fun write(buf: ByteBuffer) {
+            buf.putInt(sequenceCount).putInt(sequenceNumber).putLong(expirationTime).putLong(transmissionId).putInt(transmissionType)
         }
     }
 
-    /** Represents a segment of a [Transmission].  Do not use directly. */
-    private data class Packet(val content: ByteArray, val sequenceCount: Int, val sequenceNumber: Int, val transmissionId: Long, val transmissionType: Int) {
+    /** Represents a segment of a [Transmission], [length] bytes of [content] starting at [offset].  Do not use directly. */
+    private class Packet(val content: ByteArray, val offset: Int, val length: Int, val sequenceCount: Int, val sequenceNumber: Int, val transmissionId: Long, val transmissionType: Int) {
 
-        fun bytes() = Header(
-            sequenceCount,
-            sequenceNumber,
-            Instant.now().plus(5, ChronoUnit.SECONDS), transmissionId, transmissionType
-        ).toBytes() + content
-
-        override fun equals(other: Any?): Boolean {
-            if (this === other) return true
-            if (javaClass != other?.javaClass) return false
-
-            other as Packet
+        fun bytes(): ByteArray {
+            val buf = ByteBuffer.allocate(Header.HEADER_SIZE + length)
+            Header(sequenceCount, sequenceNumber, Time.millis() / 1000 + 5, transmissionId, transmissionType).write(buf)
+            buf.put(content, offset, length)
+            return buf.array()
+        }
+    }
 
-            if (!content.contentEquals(other.content)) return false
-            if (sequenceCount != other.sequenceCount) return false
-            if (sequenceNumber != other.sequenceNumber) return false
-            if (transmissionId != other.transmissionId) return false
-            if (transmissionType != other.transmissionType) return false
+    /**
+     * A transmission being reassembled.  Every packet but the last carries the same number of bytes, so each one is copied straight to its place in [data].
+     * The last packet is held on to until that size is known if it arrives first.
+     */
+    private class IncomingTransmission(val count: Int, @Volatile var expiration: Long) {
+        /** The compressed transmission, null until a packet arrives that fixes its size. */
+        var data: ByteArray? = null
+        /** The number of bytes in [data] that are part of the transmission, only valid once [remaining] is 0 */
+        var length = 0
+        /** The size of every packet but the last, -1 until one of them arrives. */
+        private var chunk = -1
+        private var last: ByteArray? = null
+        private val received = Bits(count)
+        var remaining = count
+            private set
+
+        /** Copies a packet's content out of [input].  Duplicates are ignored. */
+        fun add(sequenceNumber: Int, input: ByteArray, offset: Int, size: Int) {
+            if (received.getAndSet(sequenceNumber)) return
+            remaining--
+            if (sequenceNumber == count - 1) {
+                if (chunk == -1) {
+                    if (count == 1) {
+                        data = input.copyOfRange(offset, offset + size)
+                        length = size
+                    } else last = input.copyOfRange(offset, offset + size)
+                } else putLast(input, offset, size)
+                return
+            }
 
-            return true
+            if (chunk == -1) {
+                chunk = size
+                data = ByteArray(chunk * count)
+                last?.let { putLast(it, 0, it.size) }
+                last = null
+            } else if (size != chunk) throw IllegalArgumentException("Packet $sequenceNumber has $size bytes, expected $chunk!")
+            System.arraycopy(input, offset, data!!, sequenceNumber * chunk, size)
         }
 
-        override fun hashCode(): Int {
-            var result = content.contentHashCode()
-            result = 31 * result + sequenceCount
-            result = 31 * result + sequenceNumber
-            result = 31 * result + transmissionId.hashCode()
-            result = 31 * result + transmissionType
-            return result
+        private fun putLast(input: ByteArray, offset: Int, size: Int) {
+            if (size > chunk) throw IllegalArgumentException("Last packet has $size bytes, more than the others ($chunk)!")
+            System.arraycopy(input, offset, data!!, (count - 1) * chunk, size)
+            length = (count - 1) * chunk + size
         }
     }
 
+    /** Counters for one type of [Transmission] sent by a [CommunicationClient], see [CommunicationClient.stats]. */
+    class TransmissionStats(val name: String) {
+        /** Transmissions fully sent */
+        var sent = 0
+            internal set
+        var packets = 0L
+            internal set
+        /** Compressed bytes of the transmissions fully sent, not counting headers */
+        var bytes = 0L
+            internal set
+        /** Total time from being queued to the last packet going out, in milliseconds */
+        var latency = 0L
+            internal set
+        /** Total time from the first packet going out to the last, in milliseconds */
+        var sendTime = 0L
+            internal set
+
+        val averageLatency get() = if (sent == 0) 0L else latency / sent
+        /** Bytes per second while sending */
+        val throughput get() = if (sendTime == 0L) 0f else bytes * 1000f / sendTime
+    }
+
     /**
      * Handles sending and receiving [Transmission]s on a [CommunicationSystem].
      * There should only be one of these per communication system to avoid exceeding the rate.
+     *
+     * Outgoing transmissions wait in one queue per [Priority].  Each of the system's [CommunicationSystem.carriers] sends at its own rate, taking
+     * the next packet from the queues by priority, so a large image doesn't hold up chat while it is being sent.  A transmission sticks to the
+     * carrier it started on since all of its packets must be the same size, and [Priority.BULK] ones only start on the carrier with the most bandwidth.
+     * A transmission only starts once every earlier one of its type is fully sent, otherwise a faster carrier could deliver it first and
+     * order dependent types like [TLSDataTransmission] and [SyncerTransmission] would arrive out of order.
      */
     class CommunicationClient(val communicationSystem: CommunicationSystem) {
-        val inUse get() = !lastSent.check(0, 60f) // 1s
+        val inUse get() = lanes.any { !it.lastSent.check(0, 60f) } // 1s
+
+        /** A carrier and the time it last sent at. */
+        private class Lane(val carrier: CommunicationSystem) {
+            val lastSent = Interval()
+            /** Bytes per second this carrier can send */
+            val bandwidth get() = carrier.MAX_LENGTH * 60f / carrier.RATE.coerceAtLeast(1f)
+        }
+
+        /** A transmission waiting to be sent, split into packets of [lane]'s size once it starts. */
+        private class OutgoingTransmission(val content: ByteArray, val id: Long, val type: Int, val onFinish: (() -> Unit)?, val onError: (() -> Unit)?) {
+            val queued = Time.millis()
+            var started = 0L
+            var lane: Lane? = null
+            private var chunk = 0
+            private var count = 0
+            private var next = 0
+
+            val finished get() = lane != null && next >= count
+
+            fun start(lane: Lane) {
+                this.lane = lane
+                chunk = lane.carrier.MAX_LENGTH - Header.HEADER_SIZE
+                count = (content.size + chunk - 1) / chunk
+                started = Time.millis()
+            }
+
+            fun nextPacket(): Packet {
+                val offset = next * chunk
+                return Packet(content, offset, minOf(chunk, content.size - offset), count, next++, id, type)
+            }
+        }
 
-        /** The time that the last packet was sent at. */
-        private var lastSent = Interval()
-        /** A queue of packets waiting to be sent. */
-        private val outgoing = LinkedList<OutgoingTransmission>()
-        /** A list of incoming connections.  Each transmission ID is mapped to a nullable list of bytearray segments. */
+        private var lanes = emptyList<Lane>()
+        /** The lane with the most bandwidth, the only one [Priority.BULK] transmissions start on */
+        private var fastest: Lane? = null
+        /** Transmissions waiting to be sent, by [Priority.ordinal]. */
+        private val outgoing = Array(priorities.size) { ArrayDeque<OutgoingTransmission>() }
+        /** Smooth weighted round robin state, by [Priority.ordinal] */
+        private val credits = IntArray(priorities.size)
+        /** Types with an earlier transmission still being sent, see [candidate] */
+        private val busyTypes = BooleanArray(registeredTransmissionTypes.size)
+        /** Sending stats by transmission type. */
+        val stats = registeredTransmissionTypes.map { TransmissionStats(it.type.simpleName ?: "?") }
+        /** A list of incoming connections.  Each transmission ID is mapped to its partially reassembled content. */
         private val incoming = ConcurrentHashMap<Long, IncomingTransmission>()
+        /** Transmissions decoded on [decoder] and the ID of their sender, waiting to be passed to the listeners in [update]. */
+        private val decoded = ConcurrentLinkedQueue<Pair<Transmission, Int>>()
         /** A list of listeners to be run when a transmission is received. */
         private val listeners = CopyOnWriteArrayList<(transmission: Transmission, senderId: Int) -> Unit>()
         private val listenersLock = ReentrantLock()
 
-        data class IncomingTransmission(val segments: MutableList<ByteArray?>, var expirationTime: Instant)
-
         init {
             communicationSystem.addListener(::handle)
         }
@@ -149,23 +251,105 @@ object Packets {
 
         /** Updates sending.  Call once per tick. */
         fun update() {
-            if (lastSent.check(0, communicationSystem.RATE)) {
-                val toSend = outgoing.peek() ?: return // Return if there's nothing to send
-
-                // Gets the next packet in this transmission, if there are no more packets move to the next transmission
-                val packet = toSend.packets.poll() ?: run { outgoing.remove(toSend); toSend.onFinish?.invoke(); return }
-
-                lastSent.reset(0, 0f) // Sending a packet, reset the timer fully
-                try { communicationSystem.send(packet.bytes()) } catch (e: Exception) { outgoing.remove(toSend); toSend.onError?.invoke() }
+            updateLanes()
+            for (lane in lanes) {
+                if (lane.lastSent.check(0, lane.carrier.RATE)) sendNext(lane)
+            }
+            while (true) {
+                val (transmission, sender) = decoded.poll() ?: break
+                deliver(transmission, sender)
             }
+            if (incoming.isEmpty()) return
+            val now = Time.millis()
             for (inc in incoming) {
-                if (inc.value.expirationTime.isBefore(Instant.now())) {
+                if (inc.value.expiration < now) {
                     Log.debug("Removing stale incoming message")
                     incoming.remove(inc.key)
                 }
             }
         }
 
+        /** Matches [lanes] to the system's carriers, which change as processors and message blocks come and go. */
+        private fun updateLanes() {
+            val carriers = communicationSystem.carriers
+            if (carriers.size != lanes.size || carriers.indices.any { carriers[it] !== lanes[it].carrier }) {
+                val old = lanes
+                lanes = carriers.map { carrier -> old.find { it.carrier === carrier } ?: Lane(carrier) }
+                // Transmissions partway through a carrier that is gone can't continue elsewhere with a different packet size
+                for (queue in outgoing) {
+                    val iter = queue.iterator()
+                    while (iter.hasNext()) {
+                        val transmission = iter.next()
+                        val current = transmission.lane ?: continue
+                        if (current in lanes) continue
+                        iter.remove()
+                        transmission.onError?.invoke()
+                    }
+                }
+            }
+            fastest = lanes.maxByOrNull { it.bandwidth }
+        }
+
+        /** Picks the transmission [lane] should send a packet of next, by [Priority]. */
+        private fun next(lane: Lane): OutgoingTransmission? {
+            var chosen: OutgoingTransmission? = null
+            var chosenPriority = -1
+            var total = 0
+            for (priority in priorities) {
+                val candidate = candidate(lane, priority) ?: continue
+                if (priority.preempts) return candidate
+                credits[priority.ordinal] += priority.weight
+                total += priority.weight
+                if (chosenPriority == -1 || credits[priority.ordinal] > credits[chosenPriority]) {
+                    chosen = candidate
+                    chosenPriority = priority.ordinal
+                }
+            }
+            if (chosenPriority != -1) credits[chosenPriority] -= total
+            return chosen
+        }
+
+        /** The first transmission of this [priority] that [lane] is partway through or can start */
+        private fun candidate(lane: Lane, priority: Priority): OutgoingTransmission? {
+            busyTypes.fill(false)
+            for (transmission in outgoing[priority.ordinal]) {
+                if (transmission.lane === lane) return transmission
+                if (transmission.lane == null && !busyTypes[transmission.type] && (priority != Priority.BULK || lane === fastest)) return transmission
+                busyTypes[transmission.type] = true // Started elsewhere or can't start here, later ones of this type wait for it
+            }
+            return null
+        }
+
+        private fun sendNext(lane: Lane) {
+            val transmission = next(lane) ?: return // Return if there's nothing to send
+            val type = registeredTransmissionTypes[transmission.type]
+            val queue = outgoing[type.priority.ordinal]
+            if (transmission.lane == null) transmission.start(lane)
+
+            if (!transmission.finished) {
+                lane.lastSent.reset(0, 0f) // Sending a packet, reset the timer fully
+                try { lane.carrier.send(transmission.nextPacket().bytes()) } catch (e: Exception) { queue.remove(transmission); transmission.onError?.invoke(); return }
+                stats[transmission.type].packets++
+                if (!transmission.finished) return
+            }
+
+            queue.remove(transmission)
+            val now = Time.millis()
+            stats[transmission.type].apply {
+                sent++
+                bytes += transmission.content.size
+                latency += now - transmission.queued
+                sendTime += now - transmission.started
+            }
+            transmission.onFinish?.invoke()
+        }
+
+        private fun deliver(transmission: Transmission, sender: Int) {
+            listenersLock.withLock {
+                for (listener in listeners) listener(transmission, sender)
+            }
+        }
+
         /** Handles an incoming packet. */
         private fun handle(input: ByteArray, sender: Int) {
 //            if (sender == communicationSystem.id) return
@@ -173,7 +357,6 @@ object Packets {
 
             try {
                 val header = Header(buf)
-                val content = buf.remainingBytes()
 
                 if (header.sequenceNumber >= header.sequenceCount)
                     throw IndexOutOfBoundsException("Packet sequence number ${header.sequenceNumber} is greater than or equal to sequence count ${header.sequenceCount}!")
@@ -186,37 +369,42 @@ object Packets {
                     return
                 }
 
-                if (header.expirationTime.isBefore(Instant.now())) { // Too old
+                val now = Time.millis()
+                if (header.expirationTime * 1000 < now) { // Too old
                     incoming.remove(header.transmissionId)
                     return
                 }
 
                 val entry = incoming[header.transmissionId] ?: run {
                     if (incoming.size > 50) { Log.debug("Too many incoming transmissions"); return@run null }  // too many incoming connections
-                    incoming[header.transmissionId] = IncomingTransmission(MutableList(header.sequenceCount) { null }, Instant.now().plusSeconds(15))  // Create new incoming connection entry
+                    incoming.putIfAbsent(header.transmissionId, IncomingTransmission(header.sequenceCount, now + 15_000))  // Create new incoming connection entry
                     return@run incoming[header.transmissionId]
                 } ?: return
+                if (entry.count != header.sequenceCount) throw IllegalArgumentException("Packet sequence count ${header.sequenceCount} does not match the transmission's ${entry.count}!")
 
-                entry.segments[header.sequenceNumber] = content
-                entry.expirationTime = Instant.now().plusSeconds(15)
-
-                if (!entry.segments.contains(null)) {
-                    val array = entry.segments.reduceRight { a, b -> a!! + b!! }!!  // Collapse the list of packet contents to the full byte array
-                    val inflated = array.inflate()  // Decompress the transmission
-                    val transmission = registeredTransmissionTypes[header.transmissionType].constructor(inflated, header.transmissionId, sender)  // Deserialize the transmission
-
-                    listenersLock.withLock {
-                        for (listener in listeners) listener(transmission, sender)
-                        incoming.remove(header.transmissionId)
+                val complete = synchronized(entry) {
+                    entry.add(header.sequenceNumber, input, buf.position(), buf.remaining())
+                    entry.expiration = now + 15_000
+                    entry.remaining == 0 && incoming.remove(header.transmissionId, entry)
+                }
+                if (!complete) return
+
+                val type = registeredTransmissionTypes[header.transmissionType]
+                val data = entry.data!!
+                if (type.offThread) {
+                    decoder.execute {
+                        try { decoded.add(type.constructor(Compression.inflate(data, 0, entry.length), header.transmissionId, sender) to sender) }
+                        catch (e: Exception) { Log.err(e) }
                     }
+                } else {
+                    val transmission = type.constructor(Compression.inflate(data, 0, entry.length), header.transmissionId, sender)  // Decompress and deserialize the transmission
+                    deliver(transmission, sender)
                 }
             } catch (e: Exception) { Log.err(e) }
         }
 
-        private data class OutgoingTransmission(val packets: Queue<Packet>, val onFinish: (() -> Unit)?, val onError: (() -> Unit)?)
-
         /**
-         * Splits the transmission into packets and queues them for sending.
+         * Compresses the transmission and queues it for sending, it is split into packets once a carrier starts on it.
          * @param transmission The transmission to be sent.
          * @param onFinish A lambda that will be run once it is sent, null by default.
          * @param onError A lambda that will be run when no suitable message block is found.
@@ -229,17 +417,8 @@ object Packets {
             if (type == -1)
                 throw IllegalArgumentException("Transmission type \"${transmission::class.simpleName}\" is not enrolled!")
 
-            val usableBytesPerPacket = communicationSystem.MAX_LENGTH - Header.HEADER_SIZE
-
-            // Compress the transmission and chunk it so it
-            val batches = transmission.serialize().compress().toList().chunked(usableBytesPerPacket) { it.toByteArray() }
-
-            val packets = LinkedList<Packet>()
-            for ((index, content) in batches.withIndex()) {
-                packets.add(Packet(content, batches.size, index, transmission.id, type))
-            }
-
-            outgoing.add(OutgoingTransmission(packets, onFinish, onError))
+            val content = transmission.serialize().compress()
+            outgoing[registeredTransmissionTypes[type].priority.ordinal].add(OutgoingTransmission(content, transmission.id, type, onFinish, onError))
         }
 
         fun removeListener(listener: (Transmission, Int) -> Unit) {
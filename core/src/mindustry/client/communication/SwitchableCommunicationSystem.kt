@@ -14,6 +14,8 @@ class SwitchableCommunicationSystem(private val systems: List<CommunicationSyste
 
     override val secure get() = activeCommunicationSystem.secure
 
+    override val carriers get() = activeCommunicationSystem.carriers
+
     override fun send(bytes: ByteArray) {
         activeCommunicationSystem.send(bytes)
     }
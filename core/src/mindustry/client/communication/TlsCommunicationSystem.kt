@@ -1,10 +1,11 @@
 package mindustry.client.communication
 
-import arc.struct.*
 import arc.util.*
+import mindustry.client.communication.TlsFraming.Companion.CLOSE
+import mindustry.client.communication.TlsFraming.Companion.KEEPALIVE
 import mindustry.client.crypto.*
-import mindustry.client.utils.*
 import java.io.*
+import java.nio.*
 import java.security.cert.*
 
 class TlsCommunicationSystem(
@@ -47,23 +48,29 @@ class TlsCommunicationSystem(
     var isClosed = false
         private set
 
-    private companion object {
-        private const val ESCAPEMENT = 0.toByte()
-        private const val KEEPALIVE = 1.toByte()
-        private const val CLOSE = 2.toByte()
-        private const val DELIMINATOR = 3.toByte()
+    private val framing = TlsFraming()
+    /** Decrypted application data, reused between updates */
+    private var applicationIn = ByteArray(256)
+    private var closeReceived = false
 
-        private val escapeChars = arrayOf(KEEPALIVE, CLOSE, DELIMINATOR)
+    private val frameListener = object : TlsFraming.FrameListener {
+        override fun control(byte: Byte): Boolean {
+            if (byte == KEEPALIVE) keepaliveRecieveTimer = 0
+            else if (byte == CLOSE) closeReceived = true
+            return !closeReceived
+        }
 
-        private fun ByteArray.escape() = toList().escape(ESCAPEMENT, *escapeChars).toByteArray()
-//        private fun ByteArray.unescape() = toList().unescape(ESCAPEMENT, *escapeChars).toByteArray()
+        override fun frame(frame: ByteBuffer) {
+            val bytes = ByteArray(frame.remaining())
+            frame.get(bytes)
+            listeners.forEach { it(bytes, if (id == 1) 0 else 1) }
+        }
     }
 
-    private val incoming = ByteSeq()
-
     override fun send(bytes: ByteArray) {
         try {
-            peer.writeSecure(bytes.escape() + DELIMINATOR)
+            val frame = framing.encode(bytes)
+            peer.writeSecure(frame.array(), frame.position(), frame.remaining())
         } catch (e: Exception) {
             close()
             Log.debug("TLS exception!\n${e.stackTraceToString()}")
@@ -92,31 +99,13 @@ class TlsCommunicationSystem(
                 underlying.send(TLSDataTransmission(cert.serialNumber, peer.expectedCert.serialNumber, read))
             }
 
-            val applicationIn = peer.readSecure()
-            if (applicationIn.isNotEmpty()) {
-                val output = mutableListOf<ByteArray>()
-                val current = ByteSeq(incoming)
-
-                var lastWasEscape = false
-                for (item in applicationIn) {
-                    if (item == ESCAPEMENT && !lastWasEscape) {
-                        lastWasEscape = true
-                    } else if (!lastWasEscape && item in escapeChars) {
-                        when (item) {
-                            KEEPALIVE -> keepaliveRecieveTimer = 0
-                            CLOSE -> { close(); return }
-                            DELIMINATOR -> { output.add(current.toArray()); current.clear() }
-                        }
-                        lastWasEscape = false
-                    } else {
-                        current.add(item)
-                        lastWasEscape = false
-                    }
-                }
-                incoming.addAll(current)
-
-                for (fullTransmission in output) {
-                    listeners.forEach { it(fullTransmission, if (id == 1) 0 else 1) }
+            val available = peer.secureAvailable
+            if (available > 0) {
+                if (applicationIn.size < available) applicationIn = ByteArray(maxOf(available, applicationIn.size * 2))
+                val length = peer.readSecure(applicationIn, 0, available)
+                if (!framing.decode(applicationIn, 0, length, frameListener)) {
+                    close()
+                    return
                 }
             }
         } catch (e: Exception) {
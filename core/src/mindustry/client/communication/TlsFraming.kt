@@ -0,0 +1,95 @@
+package mindustry.client.communication
+
+import java.nio.*
+
+/**
+ * Splits the application data of a [TlsCommunicationSystem] into frames.  Frames end with [DELIMINATOR], and any byte in the frame that
+ * is one of the control bytes is preceded by [ESCAPEMENT].  [KEEPALIVE] and [CLOSE] are sent on their own, outside of frames.
+ *
+ * Both directions reuse their buffers, so a returned or delivered [ByteBuffer] is only valid until the next call.
+ */
+class TlsFraming {
+    companion object {
+        const val ESCAPEMENT = 0.toByte()
+        const val KEEPALIVE = 1.toByte()
+        const val CLOSE = 2.toByte()
+        const val DELIMINATOR = 3.toByte()
+
+        /** The control bytes are 0 to 3, which makes this a single unsigned comparison */
+        private fun isControl(byte: Byte) = (byte.toInt() and 0xFF) <= DELIMINATOR
+    }
+
+    private var encoded = ByteBuffer.allocate(256)
+    private var frame = ByteBuffer.allocate(256)
+    /** Whether the last byte given to [decode] was an unescaped [ESCAPEMENT], which can happen at the end of a read */
+    private var escaped = false
+
+    interface FrameListener {
+        /** Called for each [KEEPALIVE] and [CLOSE].  Return false to stop decoding. */
+        fun control(byte: Byte): Boolean
+
+        /** Called with each complete frame, between position and limit.  Copy it out to keep it. */
+        fun frame(frame: ByteBuffer)
+    }
+
+    /** Escapes [length] bytes of [bytes] and appends the delimiter.  The result is between the position and limit of the returned buffer. */
+    fun encode(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size): ByteBuffer {
+        if (encoded.capacity() < length * 2 + 1) encoded = ByteBuffer.allocate(length * 2 + 1)
+        val out = encoded.array()
+        var p = 0
+        for (i in offset until offset + length) {
+            val b = bytes[i]
+            if (isControl(b)) out[p++] = ESCAPEMENT
+            out[p++] = b
+        }
+        out[p++] = DELIMINATOR
+        encoded.position(0).limit(p)
+        return encoded
+    }
+
+    /**
+     * Unescapes [length] bytes of [input], calling [listener] for each control byte and finished frame.
+     * Frames and escapes may be split across calls.
+     * @return false if [FrameListener.control] asked to stop, the rest of the input is dropped
+     */
+    fun decode(input: ByteArray, offset: Int, length: Int, listener: FrameListener): Boolean {
+        val end = offset + length
+        var i = offset
+        while (i < end) {
+            if (escaped) {
+                escaped = false
+                ensure(1)
+                frame.put(input[i++])
+                continue
+            }
+
+            // Copy the run of plain bytes up to the next control byte in one go
+            val start = i
+            while (i < end && !isControl(input[i])) i++
+            if (i > start) {
+                ensure(i - start)
+                frame.put(input, start, i - start)
+            }
+            if (i == end) break
+
+            when (val b = input[i++]) {
+                ESCAPEMENT -> escaped = true
+                DELIMINATOR -> {
+                    frame.flip()
+                    listener.frame(frame)
+                    frame.clear()
+                }
+                else -> if (!listener.control(b)) return false
+            }
+        }
+        return true
+    }
+
+    private fun ensure(bytes: Int) {
+        if (frame.remaining() >= bytes) return
+        val grown = ByteBuffer.allocate(maxOf(frame.capacity() * 2, frame.position() + bytes))
+        frame.flip()
+        grown.put(frame)
+        frame = grown
+    }
+}
@@ -3,12 +3,17 @@ package mindustry.client.communication.syncing
 import mindustry.client.communication.*
 import mindustry.client.utils.*
 import java.io.*
-import java.util.zip.*
+import kotlin.math.*
 import kotlin.random.*
 
 /**
- * Keeps [list] synced between two instances.  Use [added] and [removed] to add or remove items.  The two instances must
+ * Keeps [list] synced between instances.  Use [added] and [removed] to add or remove items.  The instances must
  * be instantiated with the same [id] for it to work!
+ *
+ * Every edit is sent with a [Version] holding the list's hash and size before and after it, so that a receiver can tell when it
+ * missed an edit or went out of sync.  The hash weighs each item by its position, see [insert], and is updated in O(1) for
+ * changes at either end of the list.  An instance that went out of sync sends the hashes of fixed size segments of its list,
+ * counted from both ends, and the instance that answers sends back only the items between the first and last segments that differ.
  */
 @Suppress("UNCHECKED_CAST")
 class Syncer<T>(private val serializer: (T, DataOutputStream) -> Unit, private val deserializer: (DataInputStream) -> T?, private val comms: Packets.CommunicationClient, private val id: Long = Random.nextLong(), private val mode: Mode) {
@@ -18,48 +23,92 @@ class Syncer<T>(private val serializer: (T, DataOutputStream) -> Unit, private v
 
     private val queued = mutableListOf<SyncerT<T>>()
 
+    /** Tells this instance's operations apart from everyone else's */
+    private val origin = Random.nextLong()
+    /** The version of the last edit made here */
+    private var version = 0
+    /** The last version applied from each other instance, by origin */
+    private val versions = mutableMapOf<Long, Int>()
+    /** The sum of every item's hash times [BASE] to the power of its index */
+    private var hash = 0L
+    /** [BASE] to the power of the list's size */
+    private var power = 1L
+    /** [BASE] to the power of the index passed to the last [head] call */
+    private var headPower = 1L
+
     enum class Mode {
         READ_ONLY, WRITE_ONLY, BOTH
     }
 
+    companion object {
+        /** Odd, so that it has an inverse mod 2^64 */
+        private const val BASE = -0x61c8864680b583ebL
+        private val INVERSE = run {
+            var x = BASE
+            repeat(5) { x *= 2 - BASE * x } // Newton's method, each step doubles the correct bits
+            x
+        }
+        /** The most segments a [SyncerT.RangeRequestT] sends from each end */
+        private const val SEGMENTS = 32
+        private const val MIN_SEGMENT = 4
+
+        /** Spreads out [Any.hashCode], which is often just a small number */
+        private fun mix(value: Int): Long {
+            var z = value.toLong() * BASE
+            z = (z xor (z ushr 30)) * -0x40a7b892e31b1a47L
+            z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+            return z xor (z ushr 31)
+        }
+    }
+
     fun added(items: List<Pair<T, Int>>) {
         if (mode == Mode.READ_ONLY) throw UnsupportedOperationException()
-        items.forEach { internalList.add(it.second, it.first) }
-        val hash = crc(internalList)
-
-        if (queued.lastOrNull() is SyncerT.AddT) {
-            val t = queued.last() as SyncerT.AddT<T>
-            t.newObjects.addAll(items)
-            t.hash = hash
+        val baseHash = hash
+        val baseSize = internalList.size
+        items.forEach { insert(it.second, it.first) }
+
+        val last = queued.lastOrNull()
+        if (last is SyncerT.AddT) {
+            last.newObjects.addAll(items)
+            last.version.update(hash, internalList.size)
+            return
         }
 
-        queued.add(SyncerT.AddT(items.toMutableList(), false, hash))
+        queued.add(SyncerT.AddT(items.toMutableList(), false, edit(baseHash, baseSize)))
     }
 
     fun clear() {
         if (mode == Mode.READ_ONLY) throw UnsupportedOperationException()
+        val baseHash = hash
+        val baseSize = internalList.size
         internalList.clear()
-        val hash = crc(internalList)
+        hash = 0L
+        power = 1L
 
-        queued.add(SyncerT.AddT(mutableListOf(), true, hash))
+        queued.add(SyncerT.AddT(mutableListOf(), true, edit(baseHash, baseSize)))
     }
 
+    /** Removes the items at [indices], each one an index into the list left by removing the ones before it. */
     fun removed(indices: List<Int>) {
         if (mode == Mode.READ_ONLY) throw UnsupportedOperationException()
-        indices.forEach { internalList.removeAt(it) }
-        val hash = crc(internalList)
-
-        if (queued.lastOrNull() is SyncerT.RemoveT) {
-            val t = queued.last() as SyncerT.RemoveT<T>
-            t.remove.addAll(indices)
-            t.hash = hash
+        val baseHash = hash
+        val baseSize = internalList.size
+        remove(indices)
+
+        val last = queued.lastOrNull()
+        if (last is SyncerT.RemoveT) {
+            last.remove.addAll(indices)
+            last.version.update(hash, internalList.size)
+            return
         }
 
-        queued.add(SyncerT.RemoveT(indices.toMutableList(), hash))
+        queued.add(SyncerT.RemoveT(indices.toMutableList(), edit(baseHash, baseSize)))
     }
 
+    private fun edit(baseHash: Long, baseSize: Int) = Version(origin, ++version, baseHash, baseSize, hash, internalList.size)
+
     fun update() {
-        if (isDesynced) queued.removeAll { it !is SyncerT.RequestT<T> }
+        if (isDesynced) queued.removeAll { it is SyncerT.AddT || it is SyncerT.RemoveT } // The resync will bring these over
         for (item in queued) {
             comms.send(SyncerTransmission(id, item, serializer as (Any?, DataOutputStream) -> Unit))
         }
@@ -72,35 +121,232 @@ class Syncer<T>(private val serializer: (T, DataOutputStream) -> Unit, private v
             if (transmission.syncID != id) return@addListener
 
             val syncT = transmission.deserialize(serializer, deserializer) ?: return@addListener
+            received(syncT)
+        }
+    }
 
-            if (syncT is SyncerT.RequestT) {
-                queued.add(SyncerT.AddT(internalList.zip(internalList.indices).toMutableList(), true, crc(internalList)))
-                return@addListener
+    private fun received(syncT: SyncerT<T>) {
+        when (syncT) {
+            is SyncerT.RequestT -> if (answers(syncT.origin)) queued.add(SyncerT.ReplaceT(Version(origin, version, 0L, 0, hash, internalList.size), syncT.origin, 0, -1, internalList.toMutableList()))
+            is SyncerT.RangeRequestT -> if (answers(syncT.origin)) queued.add(answer(syncT))
+            is SyncerT.ReplaceT -> if (syncT.destination == origin && mode != Mode.WRITE_ONLY) replace(syncT)
+            is SyncerT.AddT -> if (mode != Mode.WRITE_ONLY) applyEdit(syncT.version) {
+                if (syncT.clear) {
+                    internalList.clear()
+                    hash = 0L
+                    power = 1L
+                }
+                for (item in syncT.newObjects) insert(item.second, item.first)
             }
-            if (mode == Mode.WRITE_ONLY) return@addListener
+            is SyncerT.RemoveT -> if (mode != Mode.WRITE_ONLY) applyEdit(syncT.version) { remove(syncT.remove) }
+        }
+    }
+
+    /** Applies an edit from another instance if it follows on from this list, otherwise asks for a resync. */
+    private inline fun applyEdit(version: Version, block: () -> Unit) {
+        if (version.origin == origin) return // Our own, some communication systems echo
+        val last = versions[version.origin]
+        if (last != null && version.version <= last) return // Already applied, or older than the last resync
+        if (isDesynced || (last != null && version.version != last + 1) || version.baseHash != hash || version.baseSize != internalList.size) {
+            desync()
+            return
+        }
+
+        versions[version.origin] = version.version
+        try {
+            block()
+        } catch (e: IndexOutOfBoundsException) {
+            rehash()
+        }
+        if (hash != version.hash || internalList.size != version.size) desync()
+    }
+
+    private fun desync() {
+        isDesynced = true
+        if (queued.none { it is SyncerT.RangeRequestT || it is SyncerT.RequestT }) queued.add(rangeRequest())
+    }
+
+    /** Whether to answer a resync request from [requester].  When both sides are out of sync, the one with the lower origin wins. */
+    private fun answers(requester: Long): Boolean {
+        if (requester == origin) return false
+        if (isDesynced && origin > requester) return false
+        isDesynced = false
+        return true
+    }
+
+    private fun rangeRequest(): SyncerT.RangeRequestT<T> {
+        val size = internalList.size
+        val segment = max(MIN_SEGMENT, (size + SEGMENTS - 1) / SEGMENTS)
+        val count = size / segment
+        val front = LongArray(count) { segmentHash(it * segment, segment) }
+        val back = LongArray(count) { segmentHash(size - (it + 1) * segment, segment) }
+        return SyncerT.RangeRequestT(origin, size, segment, front, back)
+    }
 
-            if (isDesynced && (syncT as? SyncerT.AddT)?.clear == true) {
-                isDesynced = false
+    /** Finds how many whole segments at each end of [request] match this list and sends back what lies between them. */
+    private fun answer(request: SyncerT.RangeRequestT<T>): SyncerT.ReplaceT<T> {
+        val size = internalList.size
+        val segment = request.segment
+        val limit = min(size, request.size)
+        var prefix = 0
+        while (prefix / segment < request.front.size && prefix + segment <= limit && segmentHash(prefix, segment) == request.front[prefix / segment]) prefix += segment
+        var suffix = 0
+        while (suffix / segment < request.back.size && prefix + suffix + segment <= limit && segmentHash(size - suffix - segment, segment) == request.back[suffix / segment]) suffix += segment
+
+        val items = internalList.subList(prefix, size - suffix).toMutableList()
+        return SyncerT.ReplaceT(Version(origin, version, 0L, 0, hash, size), request.origin, prefix, request.size - prefix - suffix, items)
+    }
+
+    private fun replace(replace: SyncerT.ReplaceT<T>) {
+        val whole = replace.count == -1
+        if (whole) {
+            internalList.clear()
+            internalList.addAll(replace.items)
+        } else {
+            if (replace.start < 0 || replace.count < 0 || replace.start + replace.count > internalList.size) { // The list changed since the request
+                queued.add(SyncerT.RequestT(origin))
+                return
             }
+            val range = internalList.subList(replace.start, replace.start + replace.count)
+            range.clear()
+            range.addAll(replace.items)
+        }
+        rehash()
+        versions[replace.version.origin] = replace.version.version
 
-            syncT.apply(internalList)
+        // A whole list that still doesn't match must have items that hash differently on each side, asking again won't help
+        isDesynced = !whole && (hash != replace.version.hash || internalList.size != replace.version.size)
+        if (isDesynced) queued.add(SyncerT.RequestT(origin))
+    }
 
-            val hash = crc(internalList)
-            if (hash != syncT.hash) {
-                isDesynced = true
-                queued.add(SyncerT.RequestT())
+    private fun itemHash(item: T) = mix(item.hashCode())
+
+    /** The hash of [length] items starting at [start], weighted from their start so that equal runs anywhere hash the same */
+    private fun segmentHash(start: Int, length: Int): Long {
+        var sum = 0L
+        var p = 1L
+        for (i in start until start + length) {
+            sum += itemHash(internalList[i]) * p
+            p *= BASE
+        }
+        return sum
+    }
+
+    /** The hash of the items before [index], walking from whichever end is closer.  Leaves [BASE] to the power of [index] in [headPower]. */
+    private fun head(index: Int): Long {
+        val size = internalList.size
+        if (index <= size - index) {
+            var sum = 0L
+            var p = 1L
+            for (i in 0 until index) {
+                sum += itemHash(internalList[i]) * p
+                p *= BASE
             }
+            headPower = p
+            return sum
+        }
+        var tail = 0L
+        var p = power
+        for (i in size - 1 downTo index) {
+            p *= INVERSE
+            tail += itemHash(internalList[i]) * p
         }
+        headPower = p
+        return hash - tail
     }
 
-    private val crc = CRC32()
+    /** Inserts [item] at [index] and updates [hash], the items after it move up a place so their part of the hash is multiplied by [BASE]. */
+    private fun insert(index: Int, item: T) {
+        if (index < 0 || index > internalList.size) throw IndexOutOfBoundsException("Index: $index, Size: ${internalList.size}")
+        val head = head(index)
+        hash = head + itemHash(item) * headPower + (hash - head) * BASE
+        power *= BASE
+        internalList.add(index, item)
+    }
+
+    private fun remove(indices: List<Int>) {
+        if (indices.isEmpty()) return
+        if (indices.size == 1) {
+            val index = indices[0]
+            if (index < 0 || index >= internalList.size) throw IndexOutOfBoundsException("Index: $index, Size: ${internalList.size}")
+            val head = head(index)
+            val item = internalList.removeAt(index)
+            hash = head + (hash - head - itemHash(item) * headPower) * INVERSE
+            power *= INVERSE
+            return
+        }
 
-    private fun crc(items: List<T>): Int {
-        crc.reset()
-        items.forEach {
-            crc.update(it.hashCode())
+        // Each index is into the list left by the ones before it, turn them into sorted indices into the list as it is now
+        val size = internalList.size
+        val positions = IntArray(indices.size)
+        var count = 0
+        for (index in indices) {
+            var position = index
+            var at = 0
+            while (at < count && positions[at] <= position) {
+                position++
+                at++
+            }
+            if (position < 0 || position >= size) throw IndexOutOfBoundsException("Index: $index, Size: ${size - count}")
+            System.arraycopy(positions, at, positions, at + 1, count - at)
+            positions[at] = position
+            count++
+        }
+
+        // Shift the rest down over the gaps in one pass, then rehash from the first gap on
+        val first = positions[0]
+        val head = head(first)
+        var p = headPower
+        hash = head
+        var write = first
+        var next = 0
+        for (read in first until size) {
+            if (next < count && positions[next] == read) {
+                next++
+                continue
+            }
+            val item = internalList[read]
+            internalList[write++] = item
+            hash += itemHash(item) * p
+            p *= BASE
+        }
+        internalList.subList(write, size).clear()
+        power = p
+    }
+
+    private fun rehash() {
+        hash = 0L
+        power = 1L
+        for (item in internalList) {
+            hash += itemHash(item) * power
+            power *= BASE
+        }
+    }
+
+    /** Where an operation came from and the hash and size of the list before and after it. */
+    class Version(val origin: Long, val version: Int, val baseHash: Long, val baseSize: Int, hash: Long, size: Int) {
+        var hash = hash
+            private set
+        var size = size
+            private set
+
+        fun update(hash: Long, size: Int) {
+            this.hash = hash
+            this.size = size
+        }
+
+        fun write(data: DataOutputStream) {
+            data.writeLong(origin)
+            data.writeInt(version)
+            data.writeLong(baseHash)
+            data.writeInt(baseSize)
+            data.writeLong(hash)
+            data.writeInt(size)
+        }
+
+        companion object {
+            fun read(inp: DataInputStream) = Version(inp.readLong(), inp.readInt(), inp.readLong(), inp.readInt(), inp.readLong(), inp.readInt())
         }
-        return crc.value.toInt()
     }
 
     class SyncerTransmission : Transmission {
@@ -119,7 +365,7 @@ class Syncer<T>(private val serializer: (T, DataOutputStream) -> Unit, private v
 
         constructor(syncID: Long, syncer: SyncerT<*>, serializer: (Any?, DataOutputStream) -> Unit) {
             this.syncID = syncID
-            content = byteArrayOf(syncer.typeByte) + syncer.hash.toBytes() + syncer.serialize(serializer)
+            content = byteArrayOf(syncer.typeByte) + (syncer as SyncerT<Any?>).serialize(serializer)
         }
 
         override fun serialize() = syncID.toBytes() + content
@@ -127,10 +373,10 @@ class Syncer<T>(private val serializer: (T, DataOutputStream) -> Unit, private v
         fun <T> deserialize(@Suppress("UNUSED_PARAMETER") serializer: (T, DataOutputStream) -> Unit, deserializer: (DataInputStream) -> T?): SyncerT<T>? {
             val inp = DataInputStream(content.inputStream())
             val typeByte = inp.readByte().toInt()
-            val hash = inp.readInt()
 
             return when (typeByte) {
                 0 -> {
+                    val version = Version.read(inp)
                     val num = inp.readInt()
                     val lst = mutableListOf<Pair<T, Int>>()
 
@@ -138,9 +384,10 @@ class Syncer<T>(private val serializer: (T, DataOutputStream) -> Unit, private v
                         lst.add(Pair(deserializer(inp) ?: return null, inp.readInt()))
                     }
 
-                    SyncerT.AddT(lst, inp.readBoolean(), hash)
+                    SyncerT.AddT(lst, inp.readBoolean(), version)
                 }
                 1 -> {
+                    val version = Version.read(inp)
                     val num = inp.readInt()
                     val lst = mutableListOf<Int>()
 
@@ -148,79 +395,111 @@ class Syncer<T>(private val serializer: (T, DataOutputStream) -> Unit, private v
                         lst.add(inp.readInt())
                     }
 
-                    SyncerT.RemoveT(lst, hash)
+                    SyncerT.RemoveT(lst, version)
+                }
+                2 -> SyncerT.RequestT(inp.readLong())
+                3 -> {
+                    val origin = inp.readLong()
+                    val size = inp.readInt()
+                    val segment = inp.readInt()
+                    val count = inp.readInt()
+                    if (segment <= 0 || count < 0 || count > SEGMENTS) return null
+                    val front = LongArray(count) { inp.readLong() }
+                    val back = LongArray(count) { inp.readLong() }
+                    SyncerT.RangeRequestT(origin, size, segment, front, back)
+                }
+                4 -> {
+                    val version = Version.read(inp)
+                    val destination = inp.readLong()
+                    val start = inp.readInt()
+                    val count = inp.readInt()
+                    val num = inp.readInt()
+                    val lst = mutableListOf<T>()
+
+                    repeat(num) {
+                        lst.add(deserializer(inp) ?: return null)
+                    }
+
+                    SyncerT.ReplaceT(version, destination, start, count, lst)
                 }
-                2 -> SyncerT.RequestT()
                 else -> null
             }
         }
     }
 
     interface SyncerT<T> {
-        val hash: Int
         val typeByte: Byte
 
-        fun apply(list: MutableList<T>)
+        fun serialize(serializer: (T, DataOutputStream) -> Unit): ByteArray {
+            val out = ByteArrayOutputStream()
+            val data = DataOutputStream(out)
+            write(serializer, data)
+            data.flush()
+            return out.toByteArray()
+        }
 
-        fun serialize(serializer: (T, DataOutputStream) -> Unit): ByteArray
+        fun write(serializer: (T, DataOutputStream) -> Unit, data: DataOutputStream)
 
-        data class AddT<T>(val newObjects: MutableList<Pair<T, Int>>, val clear: Boolean, override var hash: Int) : SyncerT<T> {
+        data class AddT<T>(val newObjects: MutableList<Pair<T, Int>>, val clear: Boolean, val version: Version) : SyncerT<T> {
             override val typeByte = 0.toByte()
 
-            override fun apply(list: MutableList<T>) {
-                if (clear) list.clear()
-                for (item in newObjects) {
-                    list.add(item.second, item.first)
-                }
-            }
-
-            override fun serialize(serializer: (T, DataOutputStream) -> Unit): ByteArray {
-                val out = ByteArrayOutputStream()
-                val data = DataOutputStream(out)
-
+            override fun write(serializer: (T, DataOutputStream) -> Unit, data: DataOutputStream) {
+                version.write(data)
                 data.writeInt(newObjects.size)
                 for (item in newObjects) {
                     serializer(item.first, data)
                     data.writeInt(item.second)
                 }
                 data.writeBoolean(clear)
-                data.flush()
-                return out.toByteArray()
             }
         }
 
-        data class RemoveT<T>(val remove: MutableList<Int>, override var hash: Int) : SyncerT<T> {
+        data class RemoveT<T>(val remove: MutableList<Int>, val version: Version) : SyncerT<T> {
             override val typeByte = 1.toByte()
 
-            override fun apply(list: MutableList<T>) {
-                for (item in remove) {
-                    list.removeAt(item)
-                }
-            }
-
-            override fun serialize(serializer: (T, DataOutputStream) -> Unit): ByteArray {
-                val out = ByteArrayOutputStream()
-                val data = DataOutputStream(out)
-
+            override fun write(serializer: (T, DataOutputStream) -> Unit, data: DataOutputStream) {
+                version.write(data)
                 data.writeInt(remove.size)
                 for (item in remove) {
                     data.writeInt(item)
                 }
-                data.flush()
-                return out.toByteArray()
             }
         }
 
-        class RequestT<T> : SyncerT<T> {
-            override val hash = -1
+        /** Asks for the whole list, for when a [RangeRequestT] didn't fix things. */
+        class RequestT<T>(val origin: Long) : SyncerT<T> {
             override val typeByte = 2.toByte()
 
-            override fun apply(list: MutableList<T>) {
-                return
+            override fun write(serializer: (T, DataOutputStream) -> Unit, data: DataOutputStream) {
+                data.writeLong(origin)
             }
+        }
+
+        /** Asks for the part of the list that differs, found from the hashes of [segment] long runs counted from the [front] and the [back]. */
+        class RangeRequestT<T>(val origin: Long, val size: Int, val segment: Int, val front: LongArray, val back: LongArray) : SyncerT<T> {
+            override val typeByte = 3.toByte()
+
+            override fun write(serializer: (T, DataOutputStream) -> Unit, data: DataOutputStream) {
+                data.writeLong(origin)
+                data.writeInt(size)
+                data.writeInt(segment)
+                data.writeInt(front.size)
+                for (hash in front) data.writeLong(hash)
+                for (hash in back) data.writeLong(hash)
+            }
+        }
 
-            override fun serialize(serializer: (T, DataOutputStream) -> Unit): ByteArray {
-                return byteArrayOf()
+        /** Answers a request from [destination] by replacing [count] items from [start] with [items], or the whole list if [count] is -1. */
+        class ReplaceT<T>(val version: Version, val destination: Long, val start: Int, val count: Int, val items: MutableList<T>) : SyncerT<T> {
+            override val typeByte = 4.toByte()
+
+            override fun write(serializer: (T, DataOutputStream) -> Unit, data: DataOutputStream) {
+                version.write(data)
+                data.writeLong(destination)
+                data.writeInt(start)
+                data.writeInt(count)
+                data.writeInt(items.size)
+                for (item in items) serializer(item, data)
             }
         }
     }
@@ -7,11 +7,15 @@ import java.io.*
 import java.math.*
 import java.security.*
 import java.security.cert.*
+import java.util.concurrent.*
 
 open class KeyStorage(val directory: File) {
     private val store: KeyStore = KeyStore.getInstance("BKS")
     private val password = "password123".toCharArray() // FINISHME: probably don't bother fixing tbh
     private val aliases: HashMap<String, String> = hashMapOf()
+    /** The trusted certificates by serial number, so that verifying a signature doesn't need to go through the [KeyStore] */
+    private val trustedBySerial = ConcurrentHashMap<BigInteger, X509Certificate>()
+    @Volatile private var ownCert: X509Certificate? = null
     val builtInCerts: List<X509Certificate>
 
     init {
@@ -60,6 +64,14 @@ open class KeyStorage(val directory: File) {
                 save() // Overwrite the klaxon json
             }
         }
+
+        reloadCache()
+    }
+
+    private fun reloadCache() {
+        trustedBySerial.clear()
+        for (cert in trusted()) trustedBySerial[cert.serialNumber] = cert
+        ownCert = store.getCertificate("cert") as? X509Certificate
     }
 
     fun aliases() = aliases.toList()
@@ -94,12 +106,13 @@ open class KeyStorage(val directory: File) {
         } catch (e: UnrecoverableKeyException) {
             directory.resolve("keys").copyTo(directory.resolve("keys.backup${System.currentTimeMillis()}"))
             store.load(null)
+            reloadCache()
             null
         }
     }
 
     fun cert(): X509Certificate? {
-        return store.getCertificate("cert") as? X509Certificate
+        return ownCert
     }
 
     fun chain(): List<X509Certificate>? {
@@ -114,6 +127,7 @@ open class KeyStorage(val directory: File) {
 
     fun cert(certificate: X509Certificate) {
         store.setCertificateEntry("cert", certificate)
+        ownCert = certificate
         save()
     }
 
@@ -129,15 +143,17 @@ open class KeyStorage(val directory: File) {
         return output
     }
 
-    fun findTrusted(sn: BigInteger) = store.getCertificate("trusted$sn") as? X509Certificate
+    fun findTrusted(sn: BigInteger) = trustedBySerial[sn]
 
     fun trust(certificate: X509Certificate) {
         store.setCertificateEntry("trusted${certificate.serialNumber}", certificate)
+        trustedBySerial[certificate.serialNumber] = certificate
         save()
     }
 
     fun untrust(certificate: X509Certificate) {
         store.deleteEntry("trusted${certificate.serialNumber}")
+        trustedBySerial.remove(certificate.serialNumber)
         removeAlias(certificate)
         save()
     }
@@ -0,0 +1,75 @@
+package mindustry.client.crypto
+
+import arc.*
+import arc.util.*
+import mindustry.client.communication.*
+import java.security.cert.*
+import java.util.concurrent.*
+import java.util.concurrent.atomic.*
+
+/**
+ * Verifies [SignatureTransmission]s on a small pool of worker threads so that ed448 checks don't run on the main thread.
+ * Workers take whatever has queued up, up to [BATCH] at a time, and hand all of the results back through a single [post].
+ */
+class SignatureVerifier(
+    private val signatures: Signatures,
+    private val threads: Int = (Runtime.getRuntime().availableProcessors() - 1).coerceIn(1, 4),
+    /** Runs the result callbacks, on the main thread by default */
+    private val post: (Runnable) -> Unit = { Core.app.post(it) }
+) {
+    companion object {
+        const val BATCH = 32
+    }
+
+    private class Request(val original: ByteArray, val transmission: SignatureTransmission, val callback: (Signatures.VerifyResult, X509Certificate?) -> Unit) {
+        var result = Signatures.VerifyResult.UNKNOWN_CERT
+        var cert: X509Certificate? = null
+    }
+
+    private val queue = ConcurrentLinkedQueue<Request>()
+    /** Number of workers currently draining [queue], never more than [threads] */
+    private val active = AtomicInteger()
+    private val executor = Executors.newFixedThreadPool(threads) { r -> Thread(r, "Signature Verifier").apply { isDaemon = true } }
+
+    /** Queues [transmission] to be verified against [original], [callback] is then run through [post]. */
+    fun verify(original: ByteArray, transmission: SignatureTransmission, callback: (result: Signatures.VerifyResult, cert: X509Certificate?) -> Unit) {
+        queue.add(Request(original, transmission, callback))
+        if (claimWorker()) executor.execute(::drain) // Otherwise the running workers will get to it
+    }
+
+    private fun drain() {
+        val batch = ArrayList<Request>(BATCH)
+        while (true) {
+            while (batch.size < BATCH) batch.add(queue.poll() ?: break)
+            if (batch.isEmpty()) {
+                active.decrementAndGet()
+                // A request may have been queued after the poll but before the decrement, without starting a worker
+                if (queue.isEmpty() || !claimWorker()) return
+                continue
+            }
+
+            for (request in batch) {
+                try {
+                    val (result, cert) = signatures.verifySignatureTransmission(request.original, request.transmission)
+                    request.result = result
+                    request.cert = cert
+                } catch (e: Exception) {
+                    Log.err("Failed to verify signature", e)
+                    request.result = Signatures.VerifyResult.INVALID
+                }
+            }
+            val results = batch.toTypedArray()
+            post(Runnable { for (request in results) request.callback(request.result, request.cert) })
+            batch.clear()
+        }
+    }
+
+    /** Reserves a spot in [active] if there is one */
+    private fun claimWorker(): Boolean {
+        while (true) {
+            val current = active.get()
+            if (current >= threads) return false
+            if (active.compareAndSet(current, current + 1)) return true
+        }
+    }
+}
@@ -11,28 +11,27 @@ import kotlin.math.*
 
 class Signatures(private val store: KeyStorage, private val ntp: AtomicReference<Clock>) {
     companion object {
-        private val signature = Signature.getInstance("ed448", "BC")
+        /** [Signature] instances aren't thread safe, so each thread gets its own instead of everyone queueing up on one lock */
+        private val signature = ThreadLocal.withInitial { Signature.getInstance("ed448", "BC") }
         const val SIGNATURE_LENGTH = 114
         const val SIGNATURE_EXPIRY_SECONDS = 10
 
         fun rawVerify(original: ByteArray, signatureBytes: ByteArray, publicKey: PublicKey): Boolean {
-            return synchronized(signature) {
-                try {
-                    signature.initVerify(publicKey)
-                    signature.update(original)
-                    signature.verify(signatureBytes)
-                } catch (e: Exception) {
-                    false
-                }
+            val signature = signature.get()
+            return try {
+                signature.initVerify(publicKey)
+                signature.update(original)
+                signature.verify(signatureBytes)
+            } catch (e: Exception) {
+                false
             }
         }
 
         fun rawSign(byteArray: ByteArray, key: PrivateKey): ByteArray {
-            return synchronized(signature) {
-                signature.initSign(key)
-                signature.update(byteArray)
-                signature.sign()
-            }
+            val signature = signature.get()
+            signature.initSign(key)
+            signature.update(byteArray)
+            return signature.sign()
         }
     }
 
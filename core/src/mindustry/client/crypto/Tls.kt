@@ -58,8 +58,14 @@ abstract class TlsPeerHolder(protected val peer: InternalTlsPeer, protected val
         return arr
     }
 
-    fun writeSecure(bytes: ByteArray) {
-        protocol.writeApplicationData(bytes, 0, bytes.size)
+    /** The number of decrypted bytes waiting to be read with [readSecure]. */
+    val secureAvailable get() = protocol.applicationDataAvailable()
+
+    /** Reads up to [length] decrypted bytes into [bytes] at [offset], returning how many were read. */
+    fun readSecure(bytes: ByteArray, offset: Int, length: Int): Int = protocol.readApplicationData(bytes, offset, length)
+
+    fun writeSecure(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size) {
+        protocol.writeApplicationData(bytes, offset, length)
     }
 
     override fun close() {
@@ -133,7 +133,7 @@ object AStarNavigator : Navigator() {
                 cell.g = 0f
                 cell.cameFrom = null
                 cell.closed = blocked(x, y)
-                cell.added = 1
+                cell.added = 1 + 100 * (threats?.threat(x, y, flying) ?: 0)
                 cell.inHeap = false
             }
         }
@@ -0,0 +1,283 @@
+package mindustry.client.navigation
+
+import arc.math.*
+import arc.math.geom.*
+import arc.struct.*
+import arc.util.*
+import arc.util.pooling.*
+import mindustry.Vars.*
+import mindustry.client.*
+import mindustry.client.navigation.waypoints.*
+import mindustry.core.*
+import kotlin.math.*
+
+/**
+ * The same search as [AStarNavigatorOptimised], with the grid stored as primitive arrays indexed by `x + y * width` instead of one object per tile.
+ * Set [ClientVars.benchmarkNav] to run both on every path and compare them.
+ */
+object AStarNavigatorCompact : Navigator() {
+    private val pool = Pools.get(PositionWaypoint::class.java) { PositionWaypoint() }
+    private val changes = GridChanges()
+    private var width = 0
+    private var height = 0
+    private var start = 0
+    private var end = 0
+    private var endX = 0
+    private var endY = 0
+    private var generation = 0
+    private var blockedCount = 0
+    private val points = mutableListOf<PositionWaypoint>()
+
+    // Kept between searches
+    private var blocked = Bits()
+    private var threat = IntArray(0) // Number of obstacles and turrets covering each cell
+
+    // Reset lazily per search, see touch
+    private var touched = IntArray(0) // The search that last touched each cell
+    private var g = FloatArray(0) // Cost so far
+    private var cameFrom = IntArray(0)
+    private var goesTo = IntArray(0)
+    private var closed = Bits()
+    private val open = IntHeap()
+
+    // Path relaxation
+    private var pathIndex = IntArray(0)
+    private val path = IntSeq()
+
+    override fun init() {}
+
+    override val benchmarkAgainst: Navigator get() = AStarNavigatorOptimised
+
+    private fun added(i: Int) = if (blocked.get(i)) Float.POSITIVE_INFINITY else 1f + 100f * threat[i]
+
+    /** Resets the search state of cell [i] if it was last touched by an earlier search */
+    private fun touch(i: Int) {
+        if (touched[i] == generation) return
+        touched[i] = generation
+        g[i] = 0f
+        cameFrom[i] = -1
+        goesTo[i] = -1
+        if (blocked.get(i)) closed.set(i) else closed.clear(i)
+    }
+
+    private fun updateGrid(isBlocked: Int2P, obstacles: Seq<Circle>) {
+        val size = width * height
+        if (threat.size != size) {
+            blocked = Bits(size)
+            threat = IntArray(size)
+            touched = IntArray(size)
+            g = FloatArray(size)
+            cameFrom = IntArray(size)
+            goesTo = IntArray(size)
+            closed = Bits(size)
+            pathIndex = IntArray(size)
+            open.resize(size)
+        }
+
+        if (changes.poll(width, height, blockedKey, threats)) {
+            blocked.clear()
+            blockedCount = 0
+            threat.fill(0)
+            for (y in 0 until height) {
+                for (x in 0 until width) {
+                    if (isBlocked(x, y)) {
+                        blocked.set(x + y * width)
+                        blockedCount++
+                    }
+                }
+            }
+        } else {
+            val changed = changes.changed
+            for (i in 0 until changed.size) {
+                val x = Point2.x(changed[i]).toInt()
+                val y = Point2.y(changed[i]).toInt()
+                if (!Structs.inBounds(x, y, width, height)) continue
+                val cell = x + y * width
+                val now = isBlocked(x, y)
+                if (now == blocked.get(cell)) continue
+                blockedCount += if (now) 1 else -1
+                if (now) blocked.set(cell) else blocked.clear(cell)
+            }
+        }
+
+        changes.diffObstacles(obstacles) { x, y, delta -> threat[x + y * width] += delta }
+        changes.diffThreats(flying) { x, y, delta -> threat[x + y * width] += delta }
+    }
+
+    private fun h(i: Int): Float {
+        val dx = abs(i % width - endX)
+        val dy = abs(i / width - endY)
+        return dx + dy - 1.414f * min(dx, dy)
+    }
+
+    private fun aStarSearch(checkCorners: Boolean) {
+        touch(start)
+        open.add(start, Float.MAX_VALUE)
+        closed.set(start)
+
+        while (!open.isEmpty) {
+            val value = open.peekValue()
+            val current = open.pop()
+            if (current == end || value == Float.POSITIVE_INFINITY) return
+            val cx = current % width
+            val cy = current / width
+
+            for (d in 0 until 8) {
+                val x = cx + d8x[d]
+                val y = cy + d8y[d]
+                if (!Structs.inBounds(x, y, width, height)) continue
+                val diag = d % 2 == 1
+                if (checkCorners && diag && (blocked.get(x + cy * width) || blocked.get(cx + y * width))) continue
+
+                val next = x + y * width
+                val cost = g[current] * (if (diag) 1.00001f else 1f) + added(next) * if (diag) 1.414f else 1f // Tiebreaker is needed to draw correct path
+                touch(next)
+                if (!closed.get(next) || cost < g[next]) {
+                    closed.set(next)
+                    g[next] = cost
+                    cameFrom[next] = current
+                    open.addOrUpdate(next, cost + h(next))
+                }
+            }
+        }
+    }
+
+    private val d8x = intArrayOf(1, 1, 0, -1, -1, -1, 0, 1)
+    private val d8y = intArrayOf(0, 1, 1, 1, 0, -1, -1, -1)
+
+    /** See [AStarNavigatorOptimised.relaxPath] */
+    private fun relaxPath() {
+        if (!closed.get(end)) return
+        path.clear()
+        var current = end
+        var p = -1
+        while (current != -1) {
+            path.add(current)
+            goesTo[current] = p
+            p = current
+            current = cameFrom[current]
+        }
+        path.reverse()
+        val psize = path.size
+
+        for (i in 0 until psize) pathIndex[path[i]] = i
+        val spaces = FloatArray(psize - 1) { if (goesTo[path[it]] == -1) Float.POSITIVE_INFINITY else g[goesTo[path[it]]] - g[path[it]] }
+        val removed = Bits(psize)
+        val recycle = Bits(psize)
+        val inQueue = Bits(psize)
+        val queue = IntQueue(psize)
+        var hasRelaxed = true
+        var passes = 0
+        while (goesTo[start] != end) {
+            if (queue.isEmpty) {
+                if (!hasRelaxed || passes++ >= MAX_RELAX_PASSES) break
+                hasRelaxed = false
+                var curr = goesTo[start]
+                while (curr != -1) {
+                    if (!collinear(curr)) queue.addLast(pathIndex[curr])
+                    curr = goesTo[curr]
+                }
+                if (queue.isEmpty) break
+            }
+            while (!queue.isEmpty) {
+                val i = queue.removeFirst()
+                if (removed.get(i)) continue
+                if (recycle.getAndClear(i)) {
+                    queue.addLast(i)
+                    continue
+                }
+                inQueue.clear(i)
+                val curr = path[i]
+                val prev = cameFrom[curr]
+                val next = goesTo[curr]
+                if (prev == -1 || next == -1 || collinear(prev, curr, next)) continue
+                val prevI = pathIndex[prev]
+                val nextI = pathIndex[next]
+                val cost = spaces[prevI] + spaces[i]
+                val newCost = lineOfSight(prev, next)
+                if (newCost <= cost) {
+                    hasRelaxed = true
+                    goesTo[prev] = next
+                    cameFrom[next] = prev
+                    goesTo[curr] = -1
+                    cameFrom[curr] = -1
+                    removed.set(i)
+                    spaces[prevI] = newCost
+
+                    recycle.set(nextI) // move on to the next corner - don't focus on reevaluating the same one
+                    if (!inQueue.getAndSet(prevI)) queue.addLast(prevI)
+                    if (!inQueue.getAndSet(nextI)) queue.addLast(nextI)
+                }
+            }
+        }
+    }
+
+    private fun collinear(c: Int): Boolean {
+        val prev = cameFrom[c]
+        val next = goesTo[c]
+        return prev == -1 || next == -1 || collinear(prev, c, next)
+    }
+
+    private fun collinear(u: Int, v: Int, w: Int): Boolean {
+        val x1 = u % width; val y1 = u / width
+        val x2 = v % width; val y2 = v / width
+        val x3 = w % width; val y3 = w / width
+        return (y3 - y2) * (x2 - x1) == (y2 - y1) * (x3 - x2)
+    }
+
+    private fun lineOfSight(a: Int, b: Int) = lineCost(a % width, a / width, b % width, b / width) { x, y -> added(x + y * width) }
+
+    override fun findPath(
+        start: Vec2,
+        end: Vec2,
+        obstacles: Seq<Circle>,
+        width: Float,
+        height: Float,
+        blocked: Int2P
+    ): Array<PositionWaypoint> {
+        val t0 = Time.nanos()
+        this.width = ceil(width / tilesize).toInt() + 1
+        this.height = ceil(height / tilesize).toInt() + 1
+
+        start.clamp(0f, 0f, width, height)
+        end.clamp(0f, 0f, width, height)
+
+        val startX = World.toTile(start.x).coerceIn(0, this.width - 1)
+        val startY = World.toTile(start.y).coerceIn(0, this.height - 1)
+        endX = World.toTile(end.x).coerceIn(0, this.width - 1)
+        endY = World.toTile(end.y).coerceIn(0, this.height - 1)
+        this.start = startX + startY * this.width
+        this.end = endX + endY * this.width
+
+        updateGrid(blocked, obstacles)
+        val hasBlocked = blockedCount > 0
+        open.clear()
+        generation++
+        touch(this.end)
+        points.clear()
+
+        val t1 = Time.nanos()
+        if (!this.blocked.get(this.end)) { // don't bother searching if it's blocked off
+            aStarSearch(hasBlocked)
+            val t2 = Time.nanos()
+            relaxPath()
+            val t3 = Time.nanos()
+            if (closed.get(this.end)) {
+                var current = this.end
+                while (current != -1) {
+                    points.add(pool.obtain().set(World.unconv((current % this.width).toFloat()), World.unconv((current / this.width).toFloat())))
+                    current = cameFrom[current]
+                }
+                points.reverse()
+                if (hasBlocked) adjustWaypoints(points, this.width, this.height) { x, y -> this.blocked.get(x + y * this.width) }
+            }
+            if (ClientVars.benchmarkNav) Log.debug(
+                "AStarNavigatorCompact took @ us (@ init, @ A*, @ relax, @ tol [blocked: @])",
+                us(Time.nanos() - t0), us(t1 - t0), us(t2 - t1), us(t3 - t2), us(Time.nanos() - t3), hasBlocked
+            )
+        } else if (ClientVars.benchmarkNav) Log.debug("AStarNavigatorCompact took @ us (@ init, not pathed)", us(Time.nanos() - t0), us(t1 - t0))
+        return points.toTypedArray()
+    }
+
+    private fun us(nanos: Long) = nanos / 1000
+}
@@ -30,8 +30,10 @@ object AStarNavigatorOptimised : Navigator() {
     private var tileHeight = 0
     private val points = mutableListOf<PositionWaypoint>()
 
-    private val d8x = intArrayOf(1, 1, 0, -1, -1, -1, 0, 1)
-    private val d8y = intArrayOf(0, 1, 1, 1, 0, -1, -1, -1)
+    private val changes = GridChanges() // Blockage and turret costs are kept between searches and only updated where something changed
+    private var generation = 0 // Cells touched by an older search are reset lazily, see touch
+    private var blockedCount = 0
+
     private inline fun d8(cons: (x: Int, y: Int, diag: Boolean) -> Unit) {
         cons(1, 0, false)
         cons(1, 1, true)
@@ -45,8 +47,65 @@ object AStarNavigatorOptimised : Navigator() {
 
     private fun cell(x: Int, y: Int) = grid[x + (y * tileWidth)]
 
+    /** Resets the search state of [cell] if it was last touched by an earlier search */
+    private fun touch(cell: Cell): Cell {
+        if (cell.generation != generation) {
+            cell.generation = generation
+            cell.g = 0f
+            cell.cameFrom = null
+            cell.goesTo = null
+            cell.closed = cell.blocked
+            cell.inHeap = false
+        }
+        return cell
+    }
+
+    /** Brings blockage and obstacle costs up to date, rechecking every tile only if the grid or [Navigator.blockedKey] changed since the last search */
+    private fun updateGrid(blocked: Int2P, obstacles: Seq<Circle>) {
+        if (!gridSize.equals(tileWidth, tileHeight)) {
+            grid = Array(tileWidth * tileHeight) { Cell(it % tileWidth, it / tileWidth) }
+            gridSize.set(tileWidth, tileHeight)
+        }
+
+        if (changes.poll(tileWidth, tileHeight, blockedKey, threats)) {
+            blockedCount = 0
+            for (cell in grid) {
+                cell.blocked = blocked(cell.x, cell.y)
+                if (cell.blocked) blockedCount++
+                cell.threat = 0
+                cell.updateAdded()
+            }
+        } else {
+            val changed = changes.changed
+            for (i in 0 until changed.size) {
+                val x = Point2.x(changed[i]).toInt()
+                val y = Point2.y(changed[i]).toInt()
+                if (!Structs.inBounds(x, y, tileWidth, tileHeight)) continue
+                val cell = cell(x, y)
+                val now = blocked(x, y)
+                if (now == cell.blocked) continue
+                blockedCount += if (now) 1 else -1
+                cell.blocked = now
+                cell.updateAdded()
+            }
+        }
+
+        changes.diffObstacles(obstacles) { x, y, delta ->
+            val cell = cell(x, y)
+            cell.threat += delta
+            cell.updateAdded()
+        }
+        changes.diffThreats(flying) { x, y, delta ->
+            val cell = cell(x, y)
+            cell.threat += delta
+            cell.updateAdded()
+        }
+    }
+
     override fun init() {}
 
+    override val benchmarkAgainst: Navigator get() = AStarNavigatorCompact
+
     /** Calculates the distance heuristic for this cell */
     private fun h(cell: Cell): Float {
         val dx = abs(cell.x - endX)
@@ -54,9 +113,8 @@ object AStarNavigatorOptimised : Navigator() {
         return dx + dy - 1.414f * min(dx, dy)
     }
 
-    private fun dist(x1: Int, y1: Int, x2: Int, y2: Int) = sqrt(1f * (x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1))
-
     private fun checkAndUpdateCost(current: Cell, t: Cell, cost: Float) {
+        touch(t)
         if (!t.closed || cost < t.g) {
             t.closed = true
             t.g = cost
@@ -77,7 +135,7 @@ object AStarNavigatorOptimised : Navigator() {
     /**@param checkCorners whether to check corners for diagonal movement **/
     private fun aStarSearch(checkCorners: Boolean = false) {
         //add the start location to open list.
-        addToHeap(cell(startX, startY), Float.MAX_VALUE)
+        addToHeap(touch(cell(startX, startY)), Float.MAX_VALUE)
         cell(startX, startY).closed = true
 
         var current: Cell
@@ -142,9 +200,10 @@ object AStarNavigatorOptimised : Navigator() {
         val queue = IntQueue(psize)
         var debug = psize
         var hasRelaxed = true
+        var passes = 0
         while (start.goesTo !== end) {
             if (queue.isEmpty) {
-                if (!hasRelaxed) break
+                if (!hasRelaxed || passes++ >= MAX_RELAX_PASSES) break
                 hasRelaxed = false
                 //Log.debug("Populating queue (path: @)", debug)
                 var curr = start.goesTo
@@ -191,8 +250,7 @@ object AStarNavigatorOptimised : Navigator() {
             }
         }
         // FIXME: Optimise this, especially at the straight sections they can be reduced
-        // Worst case scenario: O(n^2) (very bad)(very very bad)
-        // TODO: Set an upper bound on number of passes
+        // Worst case scenario: O(n^2) line checks per pass, at most MAX_RELAX_PASSES passes
         // TODO: Make relaxation prefer the direction with longer straight, so that relaxation is more optimal
     }
 
@@ -206,29 +264,7 @@ object AStarNavigatorOptimised : Navigator() {
         return (y3 - y2) * (x2 - x1) == (y2 - y1) * (x3 - x2)
     }
 
-    private fun diagonalLineOfSight(x1: Int, y1: Int, x2: Int, y2: Int): Float {
-        return if (cell(x1, y2).blocked || cell(x2, y1).blocked) Float.POSITIVE_INFINITY else Mathf.sqrt2
-    }
-
-    private const val step_count = 200 // TODO: Use fixed step size or just get overlapped pixels and do math
-    // TODO: yeah we will need overlapped pixels since the ray might land on the corner
-    private fun lineOfSight(x1: Int, y1: Int, x2: Int, y2: Int): Float {
-        val absdx = abs(x1 - x2)
-        if (absdx == 1 && absdx == abs(y1 - y2)) return diagonalLineOfSight(x1, y1, x2, y2)
-        var cost = 0f
-        var x = x1.toFloat()
-        var y = y1.toFloat()
-        val step = dist(x1, y1, x2, y2) / step_count // 200 steps per ray
-        val dx = (x2.toFloat() - x) / step_count
-        val dy = (y2.toFloat() - y) / step_count
-        for (i in 0 until step_count) {
-            x += dx
-            y += dy
-            if (cell(x.roundToInt(), y.roundToInt()).blocked) return Float.POSITIVE_INFINITY
-            cost += (cell(x.roundToInt(), y.roundToInt()).added - 1) * step
-        }
-        return cost + dist(x1, y1, x2, y2)
-    }
+    private fun lineOfSight(x1: Int, y1: Int, x2: Int, y2: Int) = lineCost(x1, y1, x2, y2) { x, y -> cell(x, y).added }
 
     override fun findPath(
         start: Vec2,
@@ -251,35 +287,11 @@ object AStarNavigatorOptimised : Navigator() {
         endX = World.toTile(end.x).coerceIn(0, tileWidth - 1)
         endY = World.toTile(end.y).coerceIn(0, tileHeight - 1)
 
-        if (!gridSize.equals(tileWidth, tileHeight)) {
-            grid = Array(tileWidth * tileHeight) { Cell(it % tileWidth, it / tileWidth) }
-            gridSize.set(tileWidth, tileHeight)
-        }
-
+        updateGrid(blocked, obstacles)
+        val hasBlocked = blockedCount > 0
         open.clear()
-
-        // TODO: VERY long init time when ground (cache friendliness?)
-        var hasBlocked = false
-        // Reset all cells
-        for (x in 0 until tileWidth) {
-            for (y in 0 until tileHeight) {
-                val cell = cell(x, y)
-                cell.g = 0f
-                cell.cameFrom = null
-                cell.goesTo = null
-                cell.blocked = blocked(x, y)
-                hasBlocked = hasBlocked || cell.blocked
-                cell.closed = cell.blocked
-                cell.added = if (cell.blocked) Float.POSITIVE_INFINITY else 1f
-                cell.inHeap = false
-            }
-        }
-
-        for (turret in obstacles) {
-            Geometry.circle(World.toTile(turret.x), World.toTile(turret.y), World.toTile(turret.radius)) { x, y ->
-                if (Structs.inBounds(x, y, tileWidth, tileHeight)) cell(x, y).added += 100f
-            }
-        }
+        generation++
+        touch(cell(endX, endY))
 
         if (!cell(endX, endY).blocked) { // don't bother searching if it's blocked off
             val t1 = Time.nanos()
@@ -296,44 +308,7 @@ object AStarNavigatorOptimised : Navigator() {
                     current = current.cameFrom
                 }
                 points.reverse()
-                if (hasBlocked) {
-                    val tileSize = tilesize.toFloat()
-                    for (c in points) { // adjust tolerance values
-                        val cx = World.toTile(c.x)
-                        val cy = World.toTile(c.y)
-                        var blockedNeighbour = false
-                        for (j in d8x.indices) {
-                            val x = cx + d8x[j]
-                            val y = cy + d8y[j]
-                            if (Structs.inBounds(x, y, tileWidth, tileHeight) && cell(x, y).blocked) {
-                                blockedNeighbour = true
-                                break
-                            }
-                        }
-                        if (blockedNeighbour) {
-                            c.tolerance = tileSize / 2f // set tolerance to only that tile
-                        }
-                    }
-                    // corner identification
-                    val v1 = Vec2()
-                    val v2 = Vec2() //TODO: move this out
-                    for (i in 1 until points.size - 1) {
-                        val c = points[i]
-                        v1.set(points[i + 1].x - c.x, points[i + 1].y - c.y)
-                        v2.set(points[i - 1].x - c.x, points[i - 1].y - c.y)
-                        val angle = v1.angle(v2)
-                        if (abs(90f - abs(angle)) < 15f) { // if it is a corner
-                            v1.add(v2).setLength(tileSize) // get midpoint of the angle
-                            val ccx = World.conv(c.x + v1.x).roundToInt()
-                            val ccy = World.conv(c.y + v1.y).roundToInt()
-                            if (!Structs.inBounds(ccx, ccy, tileWidth, tileHeight)) continue
-                            if (cell(ccx, ccy).blocked) {
-                                //c.set(c.x - v1.x * 0.25f, c.y - v1.y * 0.25f, c.tolerance / 2, c.distance)
-                                c.mustPassThrough = points[i - 1]
-                            }
-                        }
-                    }
-                }
+                if (hasBlocked) adjustWaypoints(points, tileWidth, tileHeight) { x, y -> cell(x, y).blocked }
             }
             val t4 = Time.nanos()
             if (ClientVars.benchmarkNav) Log.debug(
@@ -353,12 +328,18 @@ object AStarNavigatorOptimised : Navigator() {
         var g = 0f // cost so far
         // f has been moved to value
         var added = 1f
+        var threat = 0 // Number of obstacles and turrets covering this cell
+        var generation = 0 // The search that last touched this cell
         var cameFrom: Cell? = null
         var goesTo: Cell? = null
         var closed = false
         var blocked = false
         var inHeap = false
 
+        fun updateAdded() {
+            added = if (blocked) Float.POSITIVE_INFINITY else 1f + 100f * threat
+        }
+
         override fun toString(): String {
             return "[$x, $y]"
         }
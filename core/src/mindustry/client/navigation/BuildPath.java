@@ -27,12 +27,11 @@ import static mindustry.Vars.*;
 
 public class BuildPath extends Path { // FINISHME: Dear god, this file does not belong on this planet, its so bad.
     private boolean show, activeVirus;
-    Interval timer = new Interval(2);
-    public Queue<BuildPlan> broken = new Queue<>(), boulders = new Queue<>(), assist = new Queue<>(), unfinished = new Queue<>(), cleanup = new Queue<>(), networkAssist = new Queue<>(), virus = new Queue<>(), drills = new Queue<>(), belts = new Queue<>(), overdrives = new Queue<>();
-    public Seq<Queue<BuildPlan>> queues = new Seq<>();
+    Interval timer = new Interval();
+    public PlanGrid broken = new PlanGrid(), boulders = new PlanGrid(), assist = new PlanGrid(), unfinished = new PlanGrid(), cleanup = new PlanGrid(), networkAssist = new PlanGrid(), virus = new PlanGrid(), drills = new PlanGrid(), belts = new PlanGrid(), overdrives = new PlanGrid();
+    public Seq<PlanGrid> queues = new Seq<>();
     public Seq<Item> mineItems;
     private int cap;
-    private GridBits blocked = new GridBits(world.width(), world.height()), blockedPlayer = new GridBits(world.width(), world.height()), temp = new GridBits(world.width(), world.height());
     private int radius = Core.settings.getInt("defaultbuildpathradius");
     private final Vec2 origin = new Vec2(player.x, player.y);
     public static final ObjectMap<Block, Block> upgrades = ObjectMap.of(
@@ -44,20 +43,14 @@ public class BuildPath extends Path { // FINISHME: Dear god, this file does not
     private boolean valid;
     private final Pool<BuildPlan> pool = Pools.get(BuildPlan.class, BuildPlan::new, 15_000); // This is cursed but
     private final Seq<BuildPlan> priority = new Seq<>(301);
+    /** The plan in {@link #broken} made for each of the team's block plans, kept between updates so that only new block plans need a new one */
+    private final ObjectMap<Teams.BlockPlan, BuildPlan> brokenPlans = new ObjectMap<>();
+    private final ObjectSet<Teams.BlockPlan> seenBlockPlans = new ObjectSet<>();
+    private final Seq<BuildPlan> stale = new Seq<>();
     private CompletableFuture<Void> job = null;
 
     public static int maxPlans = 300, delay = 15;
 
-    static {
-        Events.on(EventType.WorldLoadEvent.class, e -> { // Account for changing world sizes
-            if (Navigation.currentlyFollowing instanceof BuildPath bp) {
-                bp.blocked = new GridBits(world.width(), world.height());
-                bp.blockedPlayer = new GridBits(world.width(), world.height());
-                bp.temp = new GridBits(world.width(), world.height());
-            }
-        });
-    }
-
     {
         addListener(() -> {
             pool.clear(); // Remove the unneeded items on path end
@@ -126,15 +119,67 @@ public class BuildPath extends Path { // FINISHME: Dear god, this file does not
     public boolean getShow() { return show; }
 
     public void clearQueues() {
+        releasePlans();
+        for (var plan : broken) pool.free(plan);
+        broken.clear();
+        brokenPlans.clear();
+        clearScanned();
+    }
+
+    /** Takes the plans that came from the queues back off the unit, so that the closest ones can be picked again */
+    private void releasePlans() {
+        var plans = player.unit().plans;
+        for (int i = plans.size - 1; i >= 0; i--) {
+            var plan = plans.get(i);
+            for (int j = 0; j < queues.size; j++) {
+                if (queues.get(j).contains(plan)) {
+                    plans.removeIndex(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Empties the queues that are refilled from scratch on every update, and drops the network assist plans that are done */
+    private void clearScanned() {
+        stale.clear();
+        for (var plan : networkAssist) {
+            if (plan.isDone()) stale.add(plan);
+        }
+        for (var plan : stale) networkAssist.remove(plan);
+
         for (var queue : queues) {
-            for (var plan : queue) {
-                if (queue == networkAssist && !plan.isDone() || plan.freed) continue;
-                player.unit().plans.remove(plan);
-                pool.free(plan);
+            if (queue == broken || queue == networkAssist) continue;
+            if (queue != assist) { // Assist plans belong to the units being assisted
+                for (var plan : queue) {
+                    if (!plan.freed) pool.free(plan);
+                }
             }
-            if (queue != networkAssist) queue.clear();
+            queue.clear();
+        }
+    }
+
+    /** Brings {@link #broken} in line with the team's block plans. These change in too many places to follow with events, but they are compared by identity so this allocates nothing unless they changed. */
+    private void syncBroken() {
+        var blockPlans = player.team().data().plans;
+        seenBlockPlans.clear();
+        for (Teams.BlockPlan block : blockPlans) {
+            seenBlockPlans.add(block);
+            if (brokenPlans.containsKey(block)) continue;
+            var plan = pool.obtain().set(block.x, block.y, block.rotation, content.block(block.block), block.config);
+            var replaced = broken.add(plan);
+            if (replaced != null) pool.free(replaced);
+            brokenPlans.put(block, plan);
         }
 
+        if (brokenPlans.size == seenBlockPlans.size) return;
+        var entries = brokenPlans.entries();
+        while (entries.hasNext()) {
+            var entry = entries.next();
+            if (seenBlockPlans.contains(entry.key)) continue;
+            if (broken.remove(entry.value)) pool.free(entry.value);
+            entries.remove();
+        }
     }
 
     @Override
@@ -150,43 +195,25 @@ public class BuildPath extends Path { // FINISHME: Dear god, this file does not
                 }
             }
 
-            if (timer.get(1, 300)) {
-                clientThread.post(() -> {
-                    for (var turret : Navigation.getEnts()) {
-                        var canHit = turret.canHitPlayer();
-                        if (!turret.canShoot() || !(turret.targetGround || canHit) || turret.entity.team() == Team.derelict) continue;
-                        Geometry.circle(World.toTile(turret.x()), World.toTile(turret.y()), Mathf.ceil(turret.range / tilesize) + tilesize, (x, y) -> {
-                            if (Structs.inBounds(x, y, world.width(), world.height()) && turret.contains(x * tilesize, y * tilesize)) {
-                                temp.set(x, y);
-                                if (turret.targetGround) blocked.set(x, y);
-                                if (canHit) blockedPlayer.set(x, y);
-                            }
-                        });
+            releasePlans();
+            clearScanned();
+            // Only the first plan is worked on, so bring the closest one to the front instead of sorting them all
+            var plans = player.unit().plans;
+            if (plans.size > 1) {
+                int closest = 0;
+                float closestDst = Float.MAX_VALUE;
+                for (int i = 0; i < plans.size; i++) {
+                    float dst = plans.get(i).dst2(player);
+                    if (dst < closestDst) {
+                        closest = i;
+                        closestDst = dst;
                     }
-                    for (var t : world.tiles) { // Unset tiles as needed
-                        if (!temp.get(t.x, t.y)) {
-                            blocked.set(t.x, t.y, false);
-                            blockedPlayer.set(t.x, t.y, false);
-                        }
-                    }
-                    temp.clear();
-                });
-            }
-
-            clearQueues();
-            if (player.unit().plans.size > 0) {
-                var arr = player.unit().plans.toArray(BuildPlan.class); // FINISHME: Add an overload that takes an array param to avoid making a new one every time, make it use arraycopy twice instead of running get() in a loop
-                Sort.instance().sort(arr, Structs.comparingFloat(p -> p.dst2(player)));
-                player.unit().plans.clear();
-                Structs.each(player.unit().plans::add, arr);
-            }
-
-            if (queues.contains(broken, true) && !player.unit().team.data().plans.isEmpty()) {
-                for (Teams.BlockPlan block : player.unit().team.data().plans) {
-                    broken.add(pool.obtain().set(block.x, block.y, block.rotation, content.block(block.block), block.config));
                 }
+                if (closest > 0) plans.addFirst(plans.removeIndex(closest));
             }
 
+            if (queues.contains(broken, true)) syncBroken();
+
             if (queues.contains(assist, true)) {
                 for (Unit unit : player.team().data().units) {
                     if (player.unit() != null && unit != player.unit() && unit.isBuilding() && unit.updateBuilding) {
@@ -259,9 +286,7 @@ public class BuildPath extends Path { // FINISHME: Dear god, this file does not
                         sortPlans(queue, all);
                         if (priority.size == 0) continue;
 
-                        for(int k = 0, count = Math.min(priority.size, maxPlans); k < count; k++){ // Imagine a language with a repeat method
-                            player.unit().addBuild(priority.pop());
-                        }
+                        for (int k = 0; k < priority.size; k++) player.unit().addBuild(priority.get(k));
                         priority.clear();
                         break sort;
                     }
@@ -292,15 +317,13 @@ public class BuildPath extends Path { // FINISHME: Dear god, this file does not
                 //discard invalid request
                 player.unit().plans.removeFirst();
             }
-        } else if (blockedPlayer.get(player.tileX(), player.tileY())) { // Leave enemy turret range while not building
+        } else if (Navigation.getThreats().threat(player.tileX(), player.tileY(), player.unit().isFlying()) > 0) { // Leave enemy turret range while not building
             if (job == null || job.isDone()) {
-                job = clientThread.post(() -> { // FINISHME: This is totally not inefficient at all...
-                    var safeTiles = new Seq<Tile>();
-                    world.tiles.eachTile(t -> {
-                        if (!blockedPlayer.get(t.x, t.y)) safeTiles.add(t);
-                    });
-                    var tile = Geometry.findClosest(player.x, player.y, safeTiles);
-                    waypoint.set(tile.getX(), tile.getY(), 0, 0);
+                boolean flying = player.unit().isFlying();
+                int x = player.tileX(), y = player.tileY();
+                job = clientThread.post(() -> {
+                    int safe = Navigation.getThreats().closestSafe(x, y, flying);
+                    if (safe != -1) waypoint.set(Point2.x(safe) * tilesizeF, Point2.y(safe) * tilesizeF, 0, 0);
                 });
             }
             waypoint.run(0);
@@ -325,27 +348,27 @@ public class BuildPath extends Path { // FINISHME: Dear god, this file does not
         return null;
     }
 
-    /** Adds all the plans to the priority variable
+    /** Adds the closest {@link #maxPlans} plans that can be built to the priority variable, closest first
      * @param includeAll whether to include unaffordable plans (appended to end of affordable ones) */
-    private void sortPlans(Queue<BuildPlan> plans, boolean includeAll) {
-        float rad = radius * tilesize;
-        planLoop:
-        for (int i = 0, size = plans.size; i < size; i++) {
-            var plan = plans.get(i);
-            if ((radius == 0 || plan.within(origin, rad)) && (includeAll || !player.unit().shouldSkip(plan, player.core())) && validPlan(plan)) { // FINISHME: Implement and use a min-max heap and remove the 300th element whenever the priority queue is larger then that as we only use that many.
-                var edges = Edges.getInsideEdges(plan.block.size);
-                var tile = plan.tile();
-                for (var edge : edges) { // Check if any of the inner edges are blocked
-                    if (blocked.get(tile.x + edge.x, tile.y + edge.y)) continue planLoop;
-                }
-                priority.add(plan);
-            }
+    private void sortPlans(PlanGrid plans, boolean includeAll) {
+        var core = player.core();
+        plans.nearest(player.x, player.y, maxPlans, plan -> !player.unit().shouldSkip(plan, core) && buildable(plan), priority);
+        if (includeAll) plans.nearest(player.x, player.y, maxPlans - priority.size, plan -> player.unit().shouldSkip(plan, core) && buildable(plan), priority);
+    }
+
+    /** Whether the plan is in range of the origin, valid and not blocked by enemy turrets */
+    private boolean buildable(BuildPlan plan) {
+        if (radius != 0 && !plan.within(origin, radius * tilesize) || !validPlan(plan)) return false;
+        var threats = Navigation.getThreats();
+        var tile = plan.tile();
+        for (var edge : Edges.getInsideEdges(plan.block.size)) { // Check if any of the inner edges are blocked
+            if (threats.ground(tile.x + edge.x, tile.y + edge.y) > 0) return false;
         }
-        priority.sort(Structs.comps(Structs.comparingBool(p -> !(p.block != null && player.unit().shouldSkip(p, player.core()))), Structs.comparingFloat(p -> -p.dst2(player))));
+        return true;
     }
 
     private boolean validPlan(BuildPlan req) {
-        return (!activeVirus || virus.indexOf(req, true) == -1 || req.tile().block() instanceof LogicBlock)
+        return (!activeVirus || !virus.contains(req) || req.tile().block() instanceof LogicBlock)
             && (req.breaking ? Build.validBreak(player.team(), req.x, req.y) : Build.validPlace(req.block, player.team(), req.x, req.y, req.rotation));
     }
 }
@@ -0,0 +1,183 @@
+package mindustry.client.navigation
+
+import arc.*
+import arc.math.geom.*
+import arc.struct.*
+import mindustry.client.navigation.waypoints.*
+import mindustry.core.*
+import mindustry.game.EventType.*
+import mindustry.Vars.*
+import mindustry.world.*
+import kotlin.math.*
+
+/**
+ * Tracks what changed in the world between searches so that a grid navigator can keep its blockage and obstacle costs instead of rebuilding them every time.
+ * Events arrive on the main thread; everything else is meant to be called from the thread running the searches.
+ */
+class GridChanges {
+    private var invalidated = true // Guarded by dirty
+    private val dirty = IntSeq() // Tiles changed since the last poll, guarded by itself
+    private var key: Any? = null
+    private var width = -1
+    private var height = -1
+
+    /** Tiles that need their blockage rechecked, filled by [poll] */
+    @JvmField val changed = IntSeq()
+
+    private var stamped = LongArray(16) // Sorted obstacle circles currently added to the grid, see stampKey
+    private var stampedSize = 0
+    private var nextStamps = LongArray(16)
+
+    private var threats: ThreatField? = null
+    private var threatsFlying = false
+    /** How far into the journal of [threats] has been applied, -1 if none of it has since the last rebuild */
+    private var threatCursor = -1L
+
+    init {
+        Events.on(TileChangeEvent::class.java) { markChanged(it.tile) }
+        Events.on(BuildTeamChangeEvent::class.java) { markChanged(it.build.tile) }
+        Events.on(TileSolidityChangeEvent::class.java) { markChanged(it.tile) } // Doors
+        Events.on(WorldLoadEvent::class.java) {
+            synchronized(dirty) {
+                dirty.clear()
+                invalidated = true
+            }
+        }
+    }
+
+    /**
+     * Queues every tile of the block on [tile] to have its blockage rechecked.  Nothing drains the queue while the navigator isn't pathing,
+     * so once it holds more tiles than the map it is dropped for a full rebuild.
+     */
+    private fun markChanged(tile: Tile) {
+        synchronized(dirty) {
+            if (invalidated) return
+            if (tile.build == null) dirty.add(tile.pos())
+            else tile.build.tile.getLinkedTiles { dirty.add(it.pos()) }
+            if (dirty.size > world.width() * world.height()) {
+                invalidated = true
+                dirty.clear()
+                dirty.shrink()
+            }
+        }
+    }
+
+    /**
+     * @param key the [Navigator.blockedKey] of this search
+     * @param threats the [Navigator.threats] of this search, see [diffThreats]
+     * @return true if the grid has to be rebuilt from scratch, otherwise [changed] holds the tiles to recheck
+     */
+    fun poll(width: Int, height: Int, key: Any?, threats: ThreatField?): Boolean {
+        val rebuild: Boolean
+        synchronized(dirty) {
+            rebuild = invalidated || width != this.width || height != this.height || key != this.key ||
+                threats !== this.threats || threats != null && threatCursor < threats.journalStart
+            invalidated = false
+            changed.clear()
+            if (!rebuild) changed.addAll(dirty)
+            dirty.clear()
+        }
+        if (rebuild) {
+            this.width = width
+            this.height = height
+            this.key = key
+            stampedSize = 0
+            this.threats = threats
+            threatCursor = -1
+        }
+        return rebuild
+    }
+
+    /** Tile position and radius of an obstacle, packed so that the stamped set can be sorted and diffed */
+    private fun stampKey(circle: Circle) =
+        (World.toTile(circle.x).toLong() and 0xFFFF shl 32) or (World.toTile(circle.y).toLong() and 0xFFFF shl 16) or (World.toTile(circle.radius).toLong() and 0xFFFF)
+
+    private fun stamp(key: Long, delta: Int, cons: Int3) {
+        Geometry.circle((key shr 32).toShort().toInt(), (key shr 16).toShort().toInt(), key.toShort().toInt()) { x, y ->
+            if (x in 0 until width && y in 0 until height) cons(x, y, delta)
+        }
+    }
+
+    /** Calls [cons] for each in bounds tile covered by an obstacle that appeared (+1) or went away (-1) since the last search */
+    fun diffObstacles(obstacles: Seq<Circle>, cons: Int3) {
+        val count = obstacles.size
+        if (nextStamps.size < count) nextStamps = LongArray(count * 2)
+        for (i in 0 until count) nextStamps[i] = stampKey(obstacles[i])
+        nextStamps.sort(0, count)
+
+        var i = 0
+        var j = 0
+        while (i < stampedSize || j < count) {
+            when {
+                j >= count || (i < stampedSize && stamped[i] < nextStamps[j]) -> stamp(stamped[i++], -1, cons)
+                i >= stampedSize || nextStamps[j] < stamped[i] -> stamp(nextStamps[j++], 1, cons)
+                else -> { i++; j++ }
+            }
+        }
+
+        val swap = stamped
+        stamped = nextStamps
+        nextStamps = swap
+        stampedSize = count
+    }
+
+    /**
+     * Calls [cons] for each tile whose [ThreatField] count for [flying] units changed since the last search, or with every threatened tile after a rebuild.
+     * Only the turrets that changed are restamped, unless the unit switched between flying and walking.
+     */
+    fun diffThreats(flying: Boolean, cons: Int3) {
+        val threats = threats ?: return
+        if (threatCursor < 0) {
+            threats.each(flying, cons)
+        } else {
+            threats.replay(threatCursor, threatsFlying, cons)
+            if (flying != threatsFlying) threats.eachDifference(flying, cons)
+        }
+        threatCursor = threats.journalEnd
+        threatsFlying = flying
+    }
+
+    fun interface Int3 {
+        operator fun invoke(x: Int, y: Int, delta: Int)
+    }
+}
+
+/**
+ * Shrinks the tolerance of waypoints next to blocked tiles and makes corners around blocked tiles pass through the previous waypoint.
+ * Shared by the grid navigators so that they produce the same kind of output.
+ */
+internal inline fun adjustWaypoints(points: List<PositionWaypoint>, width: Int, height: Int, blocked: (x: Int, y: Int) -> Boolean) {
+    val tileSize = tilesize.toFloat()
+    for (c in points) { // adjust tolerance values
+        val cx = World.toTile(c.x)
+        val cy = World.toTile(c.y)
+        var blockedNeighbour = false
+        for (p in Geometry.d8) {
+            val x = cx + p.x
+            val y = cy + p.y
+            if (x in 0 until width && y in 0 until height && blocked(x, y)) {
+                blockedNeighbour = true
+                break
+            }
+        }
+        if (blockedNeighbour) {
+            c.tolerance = tileSize / 2f // set tolerance to only that tile
+        }
+    }
+    // corner identification
+    val v1 = Vec2()
+    val v2 = Vec2()
+    for (i in 1 until points.size - 1) {
+        val c = points[i]
+        v1.set(points[i + 1].x - c.x, points[i + 1].y - c.y)
+        v2.set(points[i - 1].x - c.x, points[i - 1].y - c.y)
+        val angle = v1.angle(v2)
+        if (abs(90f - abs(angle)) < 15f) { // if it is a corner
+            v1.add(v2).setLength(tileSize) // get midpoint of the angle
+            val ccx = World.conv(c.x + v1.x).roundToInt()
+            val ccy = World.conv(c.y + v1.y).roundToInt()
+            if (ccx !in 0 until width || ccy !in 0 until height) continue
+            if (blocked(ccx, ccy)) c.mustPassThrough = points[i - 1]
+        }
+    }
+}
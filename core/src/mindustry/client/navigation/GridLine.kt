@@ -0,0 +1,51 @@
+package mindustry.client.navigation
+
+import kotlin.math.*
+
+/** Upper bound on how many times path relaxation goes back over the whole path */
+const val MAX_RELAX_PASSES = 8
+
+/**
+ * Cost of walking in a straight line between the centers of two cells.
+ * Every cell the line crosses is visited exactly once, and each adds `cost - 1` for every tile of the line inside it on top of the line's length.
+ * An infinite cost makes the line impassable. Where the line goes exactly through a corner, both cells beside the corner must be passable.
+ */
+inline fun lineCost(x1: Int, y1: Int, x2: Int, y2: Int, cost: (x: Int, y: Int) -> Float): Float {
+    val adx = abs(x2 - x1)
+    val ady = abs(y2 - y1)
+    if (adx == 0 && ady == 0) return 0f
+    val stepX = if (x2 > x1) 1 else -1
+    val stepY = if (y2 > y1) 1 else -1
+    val length = sqrt((adx * adx + ady * ady).toFloat())
+
+    var x = x1
+    var y = y1
+    var crossedX = 0
+    var crossedY = 0
+    var t = 0f // Fraction of the line walked so far
+    var extra = 0f
+    while (crossedX < adx || crossedY < ady) {
+        // Cell borders are halfway between centers, compare (0.5 + crossedX) / adx with (0.5 + crossedY) / ady exactly
+        val order = (1 + 2 * crossedX) * ady - (1 + 2 * crossedY) * adx
+        val next = if (order <= 0) (0.5f + crossedX) / adx else (0.5f + crossedY) / ady
+        val c = cost(x, y)
+        if (c == Float.POSITIVE_INFINITY) return c
+        extra += (c - 1) * (next - t)
+        t = next
+        when {
+            order < 0 -> { x += stepX; crossedX++ }
+            order > 0 -> { y += stepY; crossedY++ }
+            else -> { // Through a corner
+                if (cost(x + stepX, y) == Float.POSITIVE_INFINITY || cost(x, y + stepY) == Float.POSITIVE_INFINITY) return Float.POSITIVE_INFINITY
+                x += stepX
+                y += stepY
+                crossedX++
+                crossedY++
+            }
+        }
+    }
+    val c = cost(x, y)
+    if (c == Float.POSITIVE_INFINITY) return c
+    extra += (c - 1) * (1 - t)
+    return length * (1 + extra)
+}
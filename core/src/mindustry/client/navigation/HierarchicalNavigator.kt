@@ -0,0 +1,457 @@
+package mindustry.client.navigation
+
+import arc.math.geom.*
+import arc.struct.*
+import arc.util.*
+import arc.util.pooling.*
+import mindustry.Vars.*
+import mindustry.client.*
+import mindustry.client.navigation.waypoints.*
+import mindustry.core.*
+import kotlin.math.*
+
+/**
+ * Hierarchical A* (HPA*). The map is split into [CLUSTER] sized square clusters, connected through entrances on their shared borders.
+ * A search first runs over the entrance graph and then refines only the clusters the abstract path goes through.
+ * Clusters are only rebuilt when a tile or obstacle inside them changes.
+ */
+object HierarchicalNavigator : Navigator() {
+    private const val CLUSTER = 16
+    /** Entrances at least this wide get a transition at each end instead of one in the middle */
+    private const val WIDE_ENTRANCE = 6
+
+    private val pool = Pools.get(PositionWaypoint::class.java) { PositionWaypoint() }
+    private val changes = GridChanges()
+    private var width = 0
+    private var height = 0
+    private var clustersX = 0
+    private var clustersY = 0
+    private var blockedCount = 0
+    private val points = mutableListOf<PositionWaypoint>()
+
+    private var blocked = Bits()
+    private var threat = IntArray(0)
+    private var clusters = emptyArray<Cluster>()
+    /** Transitions through the east and north border of each cluster, as (inside, outside) tile pairs */
+    private var east = emptyArray<IntArray>()
+    private var north = emptyArray<IntArray>()
+    /** Index of each entrance tile within its cluster's [Cluster.nodes] */
+    private var nodeIndex = IntArray(0)
+    private val dirtyEntrances = IntSet()
+    private val dirtyNodes = IntSet()
+    private val dirtyCosts = IntSet()
+
+    // Abstract search, reset lazily per search
+    private var generation = 0
+    private var touched = IntArray(0)
+    private var g = FloatArray(0)
+    private var cameFrom = IntArray(0)
+    private val open = IntHeap()
+
+    // Searches within one cluster, indexed by local x + local y * CLUSTER
+    private val localDist = FloatArray(CLUSTER * CLUSTER)
+    private val localParent = IntArray(CLUSTER * CLUSTER)
+    private val localDone = Bits(CLUSTER * CLUSTER)
+    private val localOpen = IntHeap(CLUSTER * CLUSTER)
+
+    private val abstractPath = IntSeq()
+    private val path = IntSeq()
+    private val segment = IntSeq()
+
+    private class Cluster(val x: Int, val y: Int, val width: Int, val height: Int) {
+        /** Entrance tiles in this cluster */
+        var nodes = IntArray(0)
+        /** Tiles across the border from each entrance */
+        var partners = emptyArray<IntArray>()
+        /** Cost between each pair of entrances through this cluster, nodes.size * nodes.size */
+        var costs = FloatArray(0)
+    }
+
+    override fun init() {}
+
+    override val benchmarkAgainst: Navigator get() = AStarNavigatorCompact
+
+    private fun added(i: Int) = if (blocked.get(i)) Float.POSITIVE_INFINITY else 1f + 100f * threat[i]
+
+    private fun clusterOf(x: Int, y: Int) = x / CLUSTER + y / CLUSTER * clustersX
+
+    private fun clusterOf(i: Int) = clusterOf(i % width, i / width)
+
+    private fun updateGrid(isBlocked: Int2P, obstacles: Seq<Circle>) {
+        val size = width * height
+        if (threat.size != size) {
+            blocked = Bits(size)
+            threat = IntArray(size)
+            nodeIndex = IntArray(size)
+            touched = IntArray(size)
+            g = FloatArray(size)
+            cameFrom = IntArray(size)
+            open.resize(size)
+        }
+
+        if (changes.poll(width, height, blockedKey, threats)) {
+            clustersX = (width + CLUSTER - 1) / CLUSTER
+            clustersY = (height + CLUSTER - 1) / CLUSTER
+            clusters = Array(clustersX * clustersY) {
+                val x = it % clustersX * CLUSTER
+                val y = it / clustersX * CLUSTER
+                Cluster(x, y, min(CLUSTER, width - x), min(CLUSTER, height - y))
+            }
+            east = Array(clusters.size) { IntArray(0) }
+            north = Array(clusters.size) { IntArray(0) }
+            blocked.clear()
+            blockedCount = 0
+            threat.fill(0)
+            for (y in 0 until height) {
+                for (x in 0 until width) {
+                    if (isBlocked(x, y)) {
+                        blocked.set(x + y * width)
+                        blockedCount++
+                    }
+                }
+            }
+            for (k in clusters.indices) dirtyEntrances.add(k)
+        } else {
+            val changed = changes.changed
+            for (i in 0 until changed.size) {
+                val x = Point2.x(changed[i]).toInt()
+                val y = Point2.y(changed[i]).toInt()
+                if (!Structs.inBounds(x, y, width, height)) continue
+                val cell = x + y * width
+                val now = isBlocked(x, y)
+                if (now == blocked.get(cell)) continue
+                blockedCount += if (now) 1 else -1
+                if (now) blocked.set(cell) else blocked.clear(cell)
+                dirtyEntrances.add(clusterOf(x, y))
+            }
+        }
+
+        changes.diffObstacles(obstacles) { x, y, delta ->
+            threat[x + y * width] += delta
+            dirtyCosts.add(clusterOf(x, y))
+        }
+        changes.diffThreats(flying) { x, y, delta ->
+            threat[x + y * width] += delta
+            dirtyCosts.add(clusterOf(x, y))
+        }
+
+        // Entrances are shared with the neighbouring clusters, so both sides of every border of a changed cluster are reassembled
+        val entrances = dirtyEntrances.iterator()
+        while (entrances.hasNext) {
+            val k = entrances.next()
+            val cx = k % clustersX
+            val cy = k / clustersX
+            findEast(k)
+            findNorth(k)
+            dirtyNodes.add(k)
+            if (cx > 0) {
+                findEast(k - 1)
+                dirtyNodes.add(k - 1)
+            }
+            if (cy > 0) {
+                findNorth(k - clustersX)
+                dirtyNodes.add(k - clustersX)
+            }
+            if (cx < clustersX - 1) dirtyNodes.add(k + 1)
+            if (cy < clustersY - 1) dirtyNodes.add(k + clustersX)
+        }
+        dirtyEntrances.clear()
+
+        val nodes = dirtyNodes.iterator()
+        while (nodes.hasNext) {
+            val k = nodes.next()
+            assemble(k)
+            dirtyCosts.add(k)
+        }
+        dirtyNodes.clear()
+
+        val costs = dirtyCosts.iterator()
+        while (costs.hasNext) computeCosts(costs.next())
+        dirtyCosts.clear()
+    }
+
+    private fun findEast(k: Int) {
+        val c = clusters[k]
+        east[k] = if (c.x + c.width < width) transitions(c.x + c.width - 1, c.y, 0, 1, 1, 0, c.height) else IntArray(0)
+    }
+
+    private fun findNorth(k: Int) {
+        val c = clusters[k]
+        north[k] = if (c.y + c.height < height) transitions(c.x, c.y + c.height - 1, 1, 0, 0, 1, c.width) else IntArray(0)
+    }
+
+    /** Walks [length] tiles from (x, y) along (dx, dy), pairing each with the tile at (ox, oy) across the border */
+    private fun transitions(x: Int, y: Int, dx: Int, dy: Int, ox: Int, oy: Int, length: Int): IntArray {
+        val out = IntSeq()
+        var runStart = -1
+        for (i in 0..length) {
+            val inside = (x + dx * i) + (y + dy * i) * width
+            val passable = i < length && !blocked.get(inside) && !blocked.get(inside + ox + oy * width)
+            if (passable && runStart == -1) runStart = i
+            if (!passable && runStart != -1) {
+                val end = i - 1
+                if (end - runStart + 1 >= WIDE_ENTRANCE) {
+                    addTransition(out, x + dx * runStart, y + dy * runStart, ox, oy)
+                    addTransition(out, x + dx * end, y + dy * end, ox, oy)
+                } else {
+                    val mid = (runStart + end) / 2
+                    addTransition(out, x + dx * mid, y + dy * mid, ox, oy)
+                }
+                runStart = -1
+            }
+        }
+        return out.toArray()
+    }
+
+    private fun addTransition(out: IntSeq, x: Int, y: Int, ox: Int, oy: Int) {
+        out.add(x + y * width)
+        out.add(x + ox + (y + oy) * width)
+    }
+
+    /** Collects the entrances of cluster [k] from the transitions on its four borders */
+    private fun assemble(k: Int) {
+        val nodes = IntSeq()
+        val partners = Seq<IntSeq>()
+        fun add(tile: Int, partner: Int) {
+            var index = nodes.indexOf(tile)
+            if (index == -1) {
+                index = nodes.size
+                nodes.add(tile)
+                partners.add(IntSeq(2))
+            }
+            partners[index].add(partner)
+        }
+
+        val cx = k % clustersX
+        val cy = k / clustersX
+        val own = east[k]
+        for (i in own.indices step 2) add(own[i], own[i + 1])
+        val top = north[k]
+        for (i in top.indices step 2) add(top[i], top[i + 1])
+        if (cx > 0) {
+            val west = east[k - 1]
+            for (i in west.indices step 2) add(west[i + 1], west[i])
+        }
+        if (cy > 0) {
+            val south = north[k - clustersX]
+            for (i in south.indices step 2) add(south[i + 1], south[i])
+        }
+
+        val c = clusters[k]
+        c.nodes = nodes.toArray()
+        c.partners = Array(partners.size) { partners[it].toArray() }
+        for (i in c.nodes.indices) nodeIndex[c.nodes[i]] = i
+    }
+
+    /** Recomputes the cost between every pair of entrances of cluster [k] */
+    private fun computeCosts(k: Int) {
+        val c = clusters[k]
+        val n = c.nodes.size
+        c.costs = FloatArray(n * n)
+        for (i in 0 until n) {
+            local(c, c.nodes[i], -1)
+            for (j in 0 until n) c.costs[i * n + j] = localDist[localIndex(c, c.nodes[j])]
+        }
+    }
+
+    private fun localIndex(c: Cluster, tile: Int) = (tile % width - c.x) + (tile / width - c.y) * CLUSTER
+
+    /** Dijkstra from [from] over the tiles of [c], filling [localDist] and [localParent]. Stops once [to] is reached unless it is -1. */
+    private fun local(c: Cluster, from: Int, to: Int) {
+        localDist.fill(Float.POSITIVE_INFINITY)
+        localDone.clear()
+        localOpen.clear()
+        val start = localIndex(c, from)
+        val target = if (to == -1) -1 else localIndex(c, to)
+        localDist[start] = 0f
+        localParent[start] = -1
+        localOpen.add(start, 0f)
+
+        while (!localOpen.isEmpty) {
+            val current = localOpen.pop()
+            if (current == target) return
+            localDone.set(current)
+            val lx = current % CLUSTER
+            val ly = current / CLUSTER
+            for (p in Geometry.d8) {
+                val x = lx + p.x
+                val y = ly + p.y
+                if (x < 0 || y < 0 || x >= c.width || y >= c.height) continue
+                val next = x + y * CLUSTER
+                if (localDone.get(next)) continue
+                val diag = p.x != 0 && p.y != 0
+                if (diag && (blocked.get(c.x + x + (c.y + ly) * width) || blocked.get(c.x + lx + (c.y + y) * width))) continue
+                val cost = localDist[current] + added(c.x + x + (c.y + y) * width) * if (diag) 1.414f else 1f
+                if (cost < localDist[next]) {
+                    localDist[next] = cost
+                    localParent[next] = current
+                    localOpen.addOrUpdate(next, cost)
+                }
+            }
+        }
+    }
+
+    private fun touch(i: Int) {
+        if (touched[i] == generation) return
+        touched[i] = generation
+        g[i] = Float.POSITIVE_INFINITY
+        cameFrom[i] = -1
+    }
+
+    private fun relax(from: Int, to: Int, cost: Float, end: Int) {
+        if (cost == Float.POSITIVE_INFINITY) return
+        touch(to)
+        if (cost >= g[to]) return
+        g[to] = cost
+        cameFrom[to] = from
+        val dx = abs(to % width - end % width)
+        val dy = abs(to / width - end / width)
+        open.addOrUpdate(to, cost + dx + dy - 0.586f * min(dx, dy))
+    }
+
+    private fun isNode(tile: Int): Boolean {
+        val nodes = clusters[clusterOf(tile)].nodes
+        val index = nodeIndex[tile]
+        return index < nodes.size && nodes[index] == tile
+    }
+
+    /** Searches the entrance graph, leaving the tiles it goes through in [abstractPath] */
+    private fun abstractSearch(start: Int, end: Int): Boolean {
+        val startCluster = clusters[clusterOf(start)]
+        val endCluster = clusters[clusterOf(end)]
+
+        local(startCluster, start, -1)
+        val startCosts = FloatArray(startCluster.nodes.size) { localDist[localIndex(startCluster, startCluster.nodes[it])] }
+        val direct = if (startCluster === endCluster) localDist[localIndex(startCluster, end)] else Float.POSITIVE_INFINITY
+        local(endCluster, end, -1) // Costs are nearly symmetric, end to entrance stands in for entrance to end
+        val endCosts = FloatArray(endCluster.nodes.size) { localDist[localIndex(endCluster, endCluster.nodes[it])] }
+
+        generation++
+        open.clear()
+        touch(start)
+        g[start] = 0f
+        open.add(start, 0f)
+        while (!open.isEmpty) {
+            val current = open.pop()
+            if (current == end) break
+            val cost = g[current]
+            if (current == start) {
+                for (i in startCluster.nodes.indices) relax(current, startCluster.nodes[i], cost + startCosts[i], end)
+                relax(current, end, cost + direct, end)
+            }
+            if (!isNode(current)) continue
+            val cluster = clusters[clusterOf(current)]
+            val i = nodeIndex[current]
+            val n = cluster.nodes.size
+            for (j in 0 until n) if (j != i) relax(current, cluster.nodes[j], cost + cluster.costs[i * n + j], end)
+            for (partner in cluster.partners[i]) relax(current, partner, cost + added(partner), end)
+            if (cluster === endCluster) relax(current, end, cost + endCosts[i], end)
+        }
+
+        touch(end)
+        if (g[end] == Float.POSITIVE_INFINITY) return false
+        abstractPath.clear()
+        var current = end
+        while (current != -1) {
+            abstractPath.add(current)
+            current = cameFrom[current]
+        }
+        abstractPath.reverse()
+        return true
+    }
+
+    /** Expands [abstractPath] into every tile along the way, searching only inside the clusters it goes through */
+    private fun refine() {
+        path.clear()
+        path.add(abstractPath[0])
+        for (i in 1 until abstractPath.size) {
+            val from = abstractPath[i - 1]
+            val to = abstractPath[i]
+            if (clusterOf(from) != clusterOf(to)) { // Across a border
+                path.add(to)
+                continue
+            }
+            val c = clusters[clusterOf(from)]
+            local(c, from, to)
+            segment.clear()
+            var current = localIndex(c, to)
+            val origin = localIndex(c, from)
+            if (localDist[current] == Float.POSITIVE_INFINITY) current = origin // Costs changed under us, fall back to a straight hop
+            segment.add(to)
+            if (current != origin) current = localParent[current]
+            while (current != origin && current != -1) {
+                segment.add(c.x + current % CLUSTER + (c.y + current / CLUSTER) * width)
+                current = localParent[current]
+            }
+            for (j in segment.size - 1 downTo 0) path.add(segment[j])
+        }
+    }
+
+    /** Drops every tile that can be skipped with a straight line no more expensive than the path it replaces */
+    private fun smooth(): IntSeq {
+        val n = path.size
+        val walked = FloatArray(n) // Cost of the path up to each tile
+        for (i in 1 until n) {
+            val dx = abs(path[i] % width - path[i - 1] % width)
+            val dy = abs(path[i] / width - path[i - 1] / width)
+            walked[i] = walked[i - 1] + added(path[i]) * (if (dx + dy > 1) 1.414f else 1f)
+        }
+        val out = IntSeq()
+        out.add(path[0])
+        var anchor = 0
+        var j = 1
+        while (j < n - 1) {
+            val a = path[anchor]
+            val b = path[j + 1]
+            val straight = lineCost(a % width, a / width, b % width, b / width) { x, y -> added(x + y * width) }
+            if (straight <= walked[j + 1] - walked[anchor] + 0.001f) {
+                j++
+            } else {
+                out.add(path[j])
+                anchor = j
+                j = anchor + 1
+            }
+        }
+        if (n > 1) out.add(path[n - 1])
+        return out
+    }
+
+    override fun findPath(
+        start: Vec2,
+        end: Vec2,
+        obstacles: Seq<Circle>,
+        width: Float,
+        height: Float,
+        blocked: Int2P
+    ): Array<PositionWaypoint> {
+        val t0 = Time.nanos()
+        this.width = ceil(width / tilesize).toInt() + 1
+        this.height = ceil(height / tilesize).toInt() + 1
+
+        start.clamp(0f, 0f, width, height)
+        end.clamp(0f, 0f, width, height)
+        val startTile = World.toTile(start.x).coerceIn(0, this.width - 1) + World.toTile(start.y).coerceIn(0, this.height - 1) * this.width
+        val endTile = World.toTile(end.x).coerceIn(0, this.width - 1) + World.toTile(end.y).coerceIn(0, this.height - 1) * this.width
+
+        updateGrid(blocked, obstacles)
+        points.clear()
+        val t1 = Time.nanos()
+        if (this.blocked.get(endTile) || !abstractSearch(startTile, endTile)) {
+            if (ClientVars.benchmarkNav) Log.debug("HierarchicalNavigator took @ us (@ init, not pathed)", (Time.nanos() - t0) / 1000, (t1 - t0) / 1000)
+            return points.toTypedArray()
+        }
+        val t2 = Time.nanos()
+        refine()
+        val tiles = smooth()
+        for (i in 0 until tiles.size) {
+            points.add(pool.obtain().set(World.unconv((tiles[i] % this.width).toFloat()), World.unconv((tiles[i] / this.width).toFloat())))
+        }
+        if (blockedCount > 0) adjustWaypoints(points, this.width, this.height) { x, y -> this.blocked.get(x + y * this.width) }
+
+        if (ClientVars.benchmarkNav) Log.debug(
+            "HierarchicalNavigator took @ us (@ init, @ abstract over @ nodes, @ refine over @ tiles)",
+            (Time.nanos() - t0) / 1000, (t1 - t0) / 1000, (t2 - t1) / 1000, abstractPath.size, (Time.nanos() - t2) / 1000, path.size
+        )
+        return points.toTypedArray()
+    }
+}
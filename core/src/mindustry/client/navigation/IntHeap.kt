@@ -0,0 +1,90 @@
+package mindustry.client.navigation
+
+/** Binary min heap of cell indices. Tracks each cell's position so that its value can be changed in place. */
+class IntHeap(capacity: Int = 0) {
+    private var cells = IntArray(capacity)
+    private var values = FloatArray(capacity)
+    private var positions = IntArray(capacity) { -1 } // Position of each cell in the heap, -1 if it is not in it
+    var size = 0
+        private set
+    val isEmpty get() = size == 0
+
+    fun resize(capacity: Int) {
+        cells = IntArray(capacity)
+        values = FloatArray(capacity)
+        positions = IntArray(capacity) { -1 }
+        size = 0
+    }
+
+    fun clear() {
+        for (i in 0 until size) positions[cells[i]] = -1
+        size = 0
+    }
+
+    fun add(cell: Int, value: Float) {
+        cells[size] = cell
+        values[size] = value
+        positions[cell] = size
+        up(size++)
+    }
+
+    fun addOrUpdate(cell: Int, value: Float) {
+        val pos = positions[cell]
+        if (pos == -1) return add(cell, value)
+        val old = values[pos]
+        values[pos] = value
+        if (value < old) up(pos) else down(pos)
+    }
+
+    fun peekValue() = values[0]
+
+    fun pop(): Int {
+        val top = cells[0]
+        positions[top] = -1
+        if (--size > 0) {
+            cells[0] = cells[size]
+            values[0] = values[size]
+            positions[cells[0]] = 0
+            down(0)
+        }
+        return top
+    }
+
+    private fun up(index: Int) {
+        var i = index
+        val cell = cells[i]
+        val value = values[i]
+        while (i > 0) {
+            val parent = (i - 1) shr 1
+            if (values[parent] <= value) break
+            move(parent, i)
+            i = parent
+        }
+        cells[i] = cell
+        values[i] = value
+        positions[cell] = i
+    }
+
+    private fun down(index: Int) {
+        var i = index
+        val cell = cells[i]
+        val value = values[i]
+        while (true) {
+            var child = (i shl 1) + 1
+            if (child >= size) break
+            if (child + 1 < size && values[child + 1] < values[child]) child++
+            if (values[child] >= value) break
+            move(child, i)
+            i = child
+        }
+        cells[i] = cell
+        values[i] = value
+        positions[cell] = i
+    }
+
+    private fun move(from: Int, to: Int) {
+        cells[to] = cells[from]
+        values[to] = values[from]
+        positions[cells[to]] = to
+    }
+}
@@ -19,10 +19,17 @@ class MinePath @JvmOverloads constructor(
 ) : Path() {
 
     private var lastItem: Item? = null // Last item mined
-    private var timer = Interval()
+    private var timer = Interval(2)
     private var coreIdle = false
     private var bestItem: Item? = null
     var tile: Tile? = null
+    /** The last ore found out of turret range and what it was found against, searching every ore each frame is slow on big maps */
+    private var safeOre: Tile? = null
+    private var safeThreats: ThreatField? = null
+    private var safeJournal = -1L
+    private var safeOreVersion = -1
+    private var safeItem: Item? = null
+    private var safeFlying = false
 
     init {
         val split = args.lowercase().split("\\s".toRegex())
@@ -105,13 +112,31 @@ class MinePath @JvmOverloads constructor(
 
         // mine
         } else {
-            tile = indexer.findClosestMineableOre(player.unit(), bestItem) ?: return
+            val threats = Navigation.getThreats()
+            val flying = player.unit().isFlying
+            val closest = indexer.findClosestMineableOre(player.unit(), bestItem) ?: return
+            // Look through every ore for one out of turret range only when needed, keep mining in range if there is none
+            tile = if (threats.threat(closest.x.toInt(), closest.y.toInt(), flying) == 0) closest
+                else safeOre(threats, flying) ?: closest
             if (player.within(tile, player.unit().type.mineRange)) player.unit().mineTile = tile
             player.boosting = player.unit().type.canBoost && !player.within(tile, player.unit().type.mineRange)
             goTo(tile, player.unit().type.mineRange - tilesize * 2)
         }
     }
 
+    /** The closest ore out of turret range, searched again only when the threats, the ores or what is mined changed or every few seconds as the player moves */
+    private fun safeOre(threats: ThreatField, flying: Boolean): Tile? {
+        if (threats !== safeThreats || threats.journalEnd != safeJournal || indexer.oreVersion != safeOreVersion || bestItem != safeItem || flying != safeFlying || timer.get(1, 300f)) {
+            safeThreats = threats
+            safeJournal = threats.journalEnd
+            safeOreVersion = indexer.oreVersion
+            safeItem = bestItem
+            safeFlying = flying
+            safeOre = indexer.findClosestMineableOre(player.unit(), bestItem) { threats.threat(it.x.toInt(), it.y.toInt(), flying) == 0 }
+        }
+        return safeOre
+    }
+
     @Synchronized
     override fun draw() {
         if ((waypoints.waypoints.lastOrNull()?.dst(player) ?: 0F) > tilesize * 3) waypoints.draw()
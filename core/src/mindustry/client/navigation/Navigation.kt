@@ -5,8 +5,8 @@ import arc.math.geom.*
 import arc.struct.*
 import mindustry.*
 import mindustry.client.navigation.waypoints.*
+import mindustry.game.*
 import mindustry.game.EventType.*
-import java.util.concurrent.*
 import java.util.concurrent.atomic.*
 
 object Navigation {
@@ -16,134 +16,167 @@ object Navigation {
 
     @JvmField var recordedPath: WaypointPath<Waypoint>? = null
 
-    private val ents = ObjectSet<TurretPathfindingEntity>()
-    private var obstacleTree = EntityTree(Rect(0f, 0f, 0f, 0f))
-    private var allyTree = EntityTree(Rect(0f, 0f, 0f, 0f))
-    private var tmpTree = EntityTree(Rect(0f, 0f, 0f, 0f))
-    private var obstacles = Seq<TurretPathfindingEntity>()
-    private var allies = Seq<TurretPathfindingEntity>()
+    private val ents = ObjectSet<TurretPathfindingEntity>() // Client thread only
+    private var enemyTurrets = EntityGrid.of(0f, 0f) // Client thread only
+    private var allyTurrets = EntityGrid.of(0f, 0f) // Client thread only
+    private var indexedTeam: Team? = null // Client thread only
+    private var turretVersion = 0 // Client thread only, see ObstacleSnapshot.turretVersion
+    private var publishedVersion = -1 // Client thread only, the turretVersion of the current snapshots
+    private var entsChanged = false // Client thread only, whether entities were added or removed since the last publish
+    private val enemyEnts = Seq<TurretPathfindingEntity>() // Client thread only, these four are refilled on every publish and copied when something changed
+    private val allyEnts = Seq<TurretPathfindingEntity>()
+    private val enemyUnits = Seq<TurretPathfindingEntity>()
+    private val allyUnits = Seq<TurretPathfindingEntity>()
+    @Volatile private var threats = ThreatField.empty
+    private val obstacles = AtomicReference(ObstacleSnapshot.empty)
+    private val allies = AtomicReference(ObstacleSnapshot.empty)
+    private val publishing = AtomicBoolean()
     lateinit var navigator: Navigator
 
     init {
         Events.on(WorldLoadEvent::class.java) {
-            obstacleTree = EntityTree(Vars.world.getQuadBounds(Rect()))
-            allyTree = EntityTree(Vars.world.getQuadBounds(Rect()))
-            tmpTree = EntityTree(Vars.world.getQuadBounds(Rect()))
+            obstacles.set(ObstacleSnapshot.empty)
+            allies.set(ObstacleSnapshot.empty)
+            publishing.set(false) // The client thread is restarted on world load, a pending publish would never run
+            threats = ThreatField.empty // Start over on the next publish
             ents.shrink(51)
         }
     }
 
-    @JvmStatic fun addEnt(ent: TurretPathfindingEntity) = clientThread.post { ents.add(ent) }
-    @JvmStatic fun removeEnt(ent: TurretPathfindingEntity) = clientThread.post { ents.remove(ent) }
-
-    @JvmOverloads @JvmStatic
-    fun follow(path: Path?, repeat: Boolean = false) {
-        stopFollowing()
-        currentlyFollowing = path ?: return
-        path.init()
-        state = NavigationState.FOLLOWING
-        Path.repeat = repeat
+    @JvmStatic fun addEnt(ent: TurretPathfindingEntity) = clientThread.post {
+        if (!ents.add(ent)) return@post
+        entsChanged = true
+        if (ent.turret && indexedTeam != null) index(ent)
+    }
+    @JvmStatic fun removeEnt(ent: TurretPathfindingEntity) = clientThread.post {
+        if (!ents.remove(ent)) return@post
+        entsChanged = true
+        unindex(ent)
     }
 
-    private var job = CompletableFuture.completedFuture<Seq<TurretPathfindingEntity>>(null)
-    private var allyJob = CompletableFuture.completedFuture<Seq<TurretPathfindingEntity>>(null)
-    private var updatingEnts = AtomicInteger(0)
-    private var updatingAllyEnts = AtomicInteger(0)
-    private var lastFrame = 0L
+    /** Client thread only */
+    private fun index(ent: TurretPathfindingEntity) {
+        val enemy = ent.entity.team() != indexedTeam
+        if (enemy) enemyTurrets = enemyTurrets.with(ent) else allyTurrets = allyTurrets.with(ent)
+        ent.indexedEnemy = enemy
+        turretVersion++
+        updateThreat(ent)
+    }
 
     /** Client thread only */
-    private fun updateEnts(force: Boolean = false): Seq<TurretPathfindingEntity> {
-        if ((force || updatingEnts.get() <= 0) && Core.graphics.frameId > lastFrame) { // Update once per frame
-            lastFrame = Core.graphics.frameId
-            val tree = tmpTree
-            obstacles = Seq()
-            tree.use {
-                clear()
-                for (ent in ents) {
-                    if (ent.entity.team() != Vars.player.team()) {
-                        insert(ent)
-                        obstacles.add(ent)
-                    }
-                }
+    private fun unindex(ent: TurretPathfindingEntity) {
+        when (ent.indexedEnemy) {
+            true -> enemyTurrets = enemyTurrets.without(ent)
+            false -> allyTurrets = allyTurrets.without(ent)
+            null -> {}
+        }
+        ent.indexedEnemy = null
+        turretVersion++
+        updateThreat(ent)
+    }
+
+    /** Client thread only. Stamps [ent] into [threats] or takes it back out if whether it can shoot at the player's team changed. */
+    private fun updateThreat(ent: TurretPathfindingEntity) {
+        val now = ent.indexedEnemy == true && ent.entity.team() != Team.derelict && ent.shooting
+        if (now == ent.threatening) return
+        threats.stamp(ent, if (now) 1 else -1)
+        ent.threatening = now
+    }
+
+    /**
+     * Client thread only. Publishes new obstacle snapshots if anything changed since the last ones.
+     * Turret grids are carried over and only touched for turrets that changed sides, unit grids are only rebuilt once a unit enters another cell.
+     */
+    private fun publish() {
+        val team = Vars.player.team()
+        val width = Vars.world.unitWidth().toFloat()
+        val height = Vars.world.unitHeight().toFloat()
+        if (team != indexedTeam || enemyTurrets.worldWidth != width || enemyTurrets.worldHeight != height || threats.width != Vars.world.width() || threats.height != Vars.world.height()) { // Start over
+            indexedTeam = team
+            enemyTurrets = EntityGrid.of(width, height, ents.filter { it.turret && it.entity.team() != team })
+            allyTurrets = EntityGrid.of(width, height, ents.filter { it.turret && it.entity.team() == team })
+            threats = ThreatField(Vars.world.width(), Vars.world.height())
+            turretVersion++
+            entsChanged = true // The unit grids are sized for the old world
+            for (ent in ents) {
+                ent.indexedEnemy = if (ent.turret) ent.entity.team() != team else null
+                ent.threatening = false
+                updateThreat(ent)
             }
-            tmpTree = obstacleTree
-            obstacleTree = tree
         }
-        return obstacles
-    }
 
-    /** Client thread only */
-    private fun updateAllyEnts(force: Boolean = false): Seq<TurretPathfindingEntity> {
-        if ((force || updatingAllyEnts.get() <= 0) && Core.graphics.frameId > lastFrame) { // Update once per frame
-            lastFrame = Core.graphics.frameId
-            val tree = tmpTree
-            allies = Seq()
-            tree.use {
-                clear()
-                for (ent in ents) {
-                    if (ent.entity.team() == Vars.player.team()) {
-                        insert(ent)
-                        allies.add(ent)
-                    }
+        enemyEnts.clear()
+        allyEnts.clear()
+        enemyUnits.clear()
+        allyUnits.clear()
+        var unitsMoved = entsChanged
+        for (ent in ents) {
+            val enemy = ent.entity.team() != team
+            if (!ent.turret) {
+                (if (enemy) enemyUnits else allyUnits).add(ent)
+                val cell = EntityGrid.cellOf(ent, width, height)
+                if (cell != ent.publishedCell || enemy != ent.publishedEnemy) { // Grid queries read positions live, moving within a cell changes nothing
+                    ent.publishedCell = cell
+                    ent.publishedEnemy = enemy
+                    unitsMoved = true
+                }
+            } else {
+                if (ent.shooting != ent.canShoot()) { // Lost or regained power or ammo
+                    ent.shooting = !ent.shooting
+                    turretVersion++
                 }
+                if (ent.indexedEnemy != enemy) { // Building changed teams
+                    unindex(ent)
+                    index(ent)
+                } else updateThreat(ent)
             }
-            tmpTree = allyTree
-            allyTree = tree
+            (if (enemy) enemyEnts else allyEnts).add(ent)
         }
-        return allies
+        if (!unitsMoved && turretVersion == publishedVersion) return // Readers keep the current snapshots
+        obstacles.set(ObstacleSnapshot(enemyTurrets, if (unitsMoved) EntityGrid.of(width, height, enemyUnits) else obstacles.get().units, enemyEnts.copy(), turretVersion))
+        allies.set(ObstacleSnapshot(allyTurrets, if (unitsMoved) EntityGrid.of(width, height, allyUnits) else allies.get().units, allyEnts.copy(), turretVersion))
+        publishedVersion = turretVersion
+        entsChanged = false
     }
 
-    @JvmStatic
-    /** Thread safe */
-    fun getEnts(): Seq<TurretPathfindingEntity> {
-        if (Thread.currentThread().name == "main") {
-            if (updatingEnts.get() <= 0) clientThread.submit(::updateEnts).get()
-            updatingEnts.set(2)
-        } else updateEnts()
-        return obstacles
+    @JvmOverloads @JvmStatic
+    fun follow(path: Path?, repeat: Boolean = false) {
+        stopFollowing()
+        currentlyFollowing = path ?: return
+        path.init()
+        state = NavigationState.FOLLOWING
+        Path.repeat = repeat
     }
 
-    /** Thread safe */
+    /** Thread safe, never blocks. The returned [Seq] must not be modified. */
     @JvmStatic
-    fun getTree(): EntityTree {
-        if (Thread.currentThread().name == "main") {
-            if (updatingEnts.get() <= 0) clientThread.submit(::updateEnts).get()
-            updatingEnts.set(2)
-        } else updateEnts()
-        return obstacleTree
-    }
+    fun getEnts(): Seq<TurretPathfindingEntity> = obstacles.get().ents
 
+    /** Thread safe, never blocks */
     @JvmStatic
-    /** Thread safe */
-    fun getAllyEnts(): Seq<TurretPathfindingEntity> {
-        if (Thread.currentThread().name == "main") {
-            if (updatingAllyEnts.get() <= 0) clientThread.submit(::updateAllyEnts).get()
-            updatingAllyEnts.set(2)
-        } else updateAllyEnts()
-        return allies
-    }
+    fun getTree(): ObstacleSnapshot = obstacles.get()
 
-    /** Thread safe */
+    /** Thread safe, never blocks. Only the client thread writes to it, see [ThreatField]. */
     @JvmStatic
-    fun getAllyTree(): EntityTree {
-        if (Thread.currentThread().name == "main") {
-            if (updatingAllyEnts.get() <= 0) clientThread.submit(::updateAllyEnts).get()
-            updatingAllyEnts.set(2)
-        } else updateAllyEnts()
-        return allyTree
-    }
+    fun getThreats(): ThreatField = threats
 
-    fun update() {
-        if (job.isDone && updatingEnts.get() > 0) {
-            if (updatingEnts.get() == 1) obstacles.set(job.get())
-            job = clientThread.submit { updateEnts(true) }
-            updatingEnts.decrementAndGet()
-        }
+    /** Thread safe, never blocks. The returned [Seq] must not be modified. */
+    @JvmStatic
+    fun getAllyEnts(): Seq<TurretPathfindingEntity> = allies.get().ents
+
+    /** Thread safe, never blocks */
+    @JvmStatic
+    fun getAllyTree(): ObstacleSnapshot = allies.get()
 
-        if (allyJob.isDone && updatingAllyEnts.get() > 0) {
-            if (updatingAllyEnts.get() == 1) allies.set(allyJob.get())
-            allyJob = clientThread.submit { updateAllyEnts(true) }
-            updatingAllyEnts.decrementAndGet()
+    fun update() {
+        if (Vars.state.isGame && publishing.compareAndSet(false, true)) { // At most one publish in flight, readers keep the previous snapshot until it lands
+            clientThread.post {
+                try {
+                    publish()
+                } finally {
+                    publishing.set(false)
+                }
+            }
         }
 
         if (!isPaused && !Vars.state.isPaused) {
@@ -6,6 +6,7 @@ import arc.struct.*
 import arc.util.*
 import arc.util.pooling.*
 import mindustry.Vars.*
+import mindustry.client.*
 import mindustry.client.navigation.waypoints.*
 import mindustry.client.utils.*
 import mindustry.content.*
@@ -18,12 +19,21 @@ abstract class Navigator {
     val map = IntMap<Vec2>()
     var lastWp = 0L
     private val realObstacles = Seq<Circle>() // Avoids creating new lists every time navigate is called
+    /** Identifies what the blocked predicate passed to [findPath] checks. While it stays equal, only tiles that changed can give a different answer. */
+    protected var blockedKey: Any? = null
+    /** Turrets that can hit the unit being pathed for, null if none can.  Turrets aren't passed to [findPath] as obstacles, read their threat from here. */
+    protected var threats: ThreatField? = null
+    /** Which layer of [threats] applies */
+    protected var flying = false
 
     init {
         Events.on(EventType.WorldLoadEvent::class.java) {
             map.clear()
         }
     }
+    /** Another implementation to run and time alongside this one when [ClientVars.benchmarkNav] is set */
+    protected open val benchmarkAgainst: Navigator? = null
+
     /** Called once upon client loading.  */
     abstract fun init()
 
@@ -45,9 +55,12 @@ abstract class Navigator {
         end.clamp(0f, 0f, world.unitWidth().toFloat(), world.unitHeight().toFloat())
         val additionalRadius = player.unit().hitSize / 2 + tilesize
 
+        threats = null
+        flying = player.unit().isFlying
         if (player.unit().type.targetable(player.unit(), player.team()) && player.unit().type.hittable(player.unit())) {
+            threats = Navigation.getThreats()
             for (turret in obstacles) {
-                if (turret.canHitPlayer() && turret.canShoot()) {
+                if (!turret.turret && turret.canHitPlayer() && turret.canShoot()) { // Turrets are in the threat field
                     realObstacles.add(
                         Pools.obtain(Circle::class.java) { Circle() }.set(
                             turret.x(),
@@ -95,17 +108,28 @@ abstract class Navigator {
         val avoidFlood = CustomMode.flood() && player.unit().type != UnitTypes.horizon
         val canBoost = player.unit().type.canBoost
         val solidity = player.unit().solidity()
-        val ret = findPath(
-            start, end, realObstacles, world.unitWidth().toFloat(), world.unitHeight().toFloat()
-        ) { x, y ->
-            world.tileChanges
+        blockedKey = BlockedKey(avoidFlood, canBoost, solidity)
+        val blocked = Int2P { x, y ->
             avoidFlood && world.tiles.getc(x, y).team() == Team.blue || player.unit().type != null && !canBoost && solidity?.solid(x, y) ?: false
         }
+        val ret = findPath(start, end, realObstacles, world.unitWidth().toFloat(), world.unitHeight().toFloat(), blocked)
+        val other = if (ClientVars.benchmarkNav) benchmarkAgainst else null
+        if (other != null) {
+            other.blockedKey = blockedKey
+            other.threats = threats
+            other.flying = flying
+            val t0 = Time.nanos()
+            val alt = other.findPath(start, end, realObstacles, world.unitWidth().toFloat(), world.unitHeight().toFloat(), blocked)
+            Log.debug("@ returned @ waypoints, @ returned @ in @ us", this::class.simpleName, ret.size, other::class.simpleName, alt.size, Time.timeSinceNanos(t0) / 1000)
+            for (wp in alt) Pools.free(wp)
+        }
         Pools.freeAll(realObstacles)
         realObstacles.clear()
         return ret
     }
 
+    private data class BlockedKey(val avoidFlood: Boolean, val canBoost: Boolean, val solidity: Any?)
+
     protected fun interface Int2P {
         operator fun invoke(x: Int, y: Int) : Boolean
     }
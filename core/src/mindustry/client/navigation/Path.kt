@@ -51,7 +51,7 @@ abstract class Path {
                         Pools.freeAll(filter)
                         filter.clear()
                         if (path.isNotEmpty() && (targetPos.within(destX, destY, 1F) || (Navigation.currentlyFollowing != null && Navigation.currentlyFollowing !is WaypointPath<*>))) { // Same destination
-                            val relaxed = Navigation.navigator is AStarNavigatorOptimised
+                            val relaxed = Navigation.navigator !is AStarNavigator
                             filter.addAll(*path)
                             if (!relaxed) filter.removeAll { (it.dst(destX, destY) < dist).apply { if (this) Pools.free(it) } }
                             else while(filter.size > 1 && filter[filter.size - 2].dst(destX, destY) < dist) Pools.free(filter.pop())
@@ -0,0 +1,131 @@
+package mindustry.client.navigation
+
+import arc.func.*
+import arc.math.geom.*
+import arc.struct.*
+import mindustry.Vars.*
+import mindustry.entities.units.*
+import kotlin.math.*
+
+/**
+ * Build plans bucketed by the cell their tile is in, at most one per tile.  The plans nearest to a point are found by looking at the cells
+ * around it rather than sorting every plan, which matters once a large rebuild leaves thousands of them.
+ * Not thread safe.
+ */
+class PlanGrid : Iterable<BuildPlan> {
+    private val plans = IntMap<BuildPlan>()
+    private val cells = IntMap<Seq<BuildPlan>>()
+    // Bounds of the cells that have ever held a plan, so that searches know when to stop
+    private var minX = Int.MAX_VALUE
+    private var minY = Int.MAX_VALUE
+    private var maxX = Int.MIN_VALUE
+    private var maxY = Int.MIN_VALUE
+    private val candidates = Seq<BuildPlan>()
+
+    val size get() = plans.size
+
+    fun isEmpty() = plans.isEmpty
+
+    fun any() = plans.size > 0
+
+    operator fun get(x: Int, y: Int): BuildPlan? = plans.get(Point2.pack(x, y))
+
+    /** Whether [plan] itself, not just one on the same tile, is in this grid */
+    fun contains(plan: BuildPlan) = get(plan.x, plan.y) === plan
+
+    /** Adds [plan], replacing the plan on the same tile if there is one.  @return the replaced plan */
+    fun add(plan: BuildPlan): BuildPlan? {
+        val old = plans.put(Point2.pack(plan.x, plan.y), plan)
+        if (old === plan) return null
+        if (old != null) cellOf(old.x, old.y)?.remove(old, true)
+        val cx = Math.floorDiv(plan.x, CELL)
+        val cy = Math.floorDiv(plan.y, CELL)
+        val key = Point2.pack(cx, cy)
+        (cells.get(key) ?: Seq<BuildPlan>(false, 8).also { cells.put(key, it) }).add(plan)
+        minX = min(minX, cx)
+        minY = min(minY, cy)
+        maxX = max(maxX, cx)
+        maxY = max(maxY, cy)
+        return old
+    }
+
+    /** Removes the plan on this tile.  @return the removed plan */
+    fun remove(x: Int, y: Int): BuildPlan? {
+        val old = plans.remove(Point2.pack(x, y)) ?: return null
+        cellOf(x, y)?.remove(old, true)
+        return old
+    }
+
+    /** Removes [plan] if it is in this grid */
+    fun remove(plan: BuildPlan) = contains(plan) && remove(plan.x, plan.y) != null
+
+    fun clear() {
+        plans.clear()
+        for (cell in cells.values()) cell.clear() // Kept, the same cells tend to fill up again
+        minX = Int.MAX_VALUE
+        minY = Int.MAX_VALUE
+        maxX = Int.MIN_VALUE
+        maxY = Int.MIN_VALUE
+    }
+
+    private fun cellOf(x: Int, y: Int) = cells.get(Point2.pack(Math.floorDiv(x, CELL), Math.floorDiv(y, CELL)))
+
+    /** The plans in no particular order.  The iterator is reused, don't nest loops over the same grid or change it while iterating. */
+    override fun iterator(): Iterator<BuildPlan> = plans.values()
+
+    /**
+     * Adds the [max] plans closest to ([x], [y]) in world units that pass [filter] to [out], closest first.  The cells are visited in growing rings,
+     * so [filter] only sees plans about as close as the furthest one returned.
+     */
+    fun nearest(x: Float, y: Float, max: Int, filter: Boolf<BuildPlan>, out: Seq<BuildPlan>) {
+        if (plans.isEmpty || max <= 0) return
+        val cx = Math.floorDiv(x.toInt(), CELL * tilesize)
+        val cy = Math.floorDiv(y.toInt(), CELL * tilesize)
+        val reach = max(max(cx - minX, maxX - cx), max(cy - minY, maxY - cy))
+        candidates.clear()
+
+        fun visit(cellX: Int, cellY: Int) {
+            if (cellX !in minX..maxX || cellY !in minY..maxY) return
+            val cell = cells.get(Point2.pack(cellX, cellY)) ?: return
+            for (i in 0 until cell.size) if (filter.get(cell.items[i])) candidates.add(cell.items[i])
+        }
+
+        var r = 0
+        while (r <= reach) {
+            if (r == 0) visit(cx, cy)
+            else {
+                for (dx in -r..r) {
+                    visit(cx + dx, cy - r)
+                    visit(cx + dx, cy + r)
+                }
+                for (dy in -r + 1 until r) {
+                    visit(cx - r, cy + dy)
+                    visit(cx + r, cy + dy)
+                }
+            }
+            // Plans in the next ring are at least r cells away, stop once enough are closer than that
+            if (candidates.size >= max) {
+                val limit = r * CELL * tilesize.toFloat()
+                var closer = 0
+                for (i in 0 until candidates.size) if (dst2(candidates.items[i], x, y) <= limit * limit) closer++
+                if (closer >= max) break
+            }
+            r++
+        }
+
+        candidates.sort { a, b -> dst2(a, x, y).compareTo(dst2(b, x, y)) }
+        for (i in 0 until min(max, candidates.size)) out.add(candidates.items[i])
+        candidates.clear()
+    }
+
+    private fun dst2(plan: BuildPlan, x: Float, y: Float): Float {
+        val dx = plan.x * tilesize - x
+        val dy = plan.y * tilesize - y
+        return dx * dx + dy * dy
+    }
+
+    companion object {
+        /** Width of a cell in tiles */
+        const val CELL = 16
+    }
+}
@@ -0,0 +1,127 @@
+package mindustry.client.navigation
+
+import arc.math.geom.*
+import arc.struct.*
+import mindustry.Vars.*
+import mindustry.core.*
+import kotlin.math.*
+
+/**
+ * The number of enemy turrets that can hit each tile, counted separately for ground and air units, so that anything avoiding turrets can check a tile in O(1).
+ * [Navigation] keeps one per world and team and only restamps the tiles around turrets that are added, removed, change team or start or stop being able to shoot.
+ * Written on [clientThread]. Readers on other threads may see a turret half stamped, which is sorted out by the next read.
+ */
+class ThreatField(val width: Int, val height: Int) {
+    private val ground = IntArray(width * height)
+    private val air = IntArray(width * height)
+    /** Turrets stamped (1) or unstamped (-1) since [journalStart], replayed by [GridChanges] so that navigators don't have to scan the whole field */
+    private val journal = Seq<TurretPathfindingEntity>()
+    private val journalDeltas = IntSeq()
+    /** The position of the first entry in the journal, older entries are dropped once it gets long */
+    var journalStart = 0L
+        private set
+    val journalEnd get() = journalStart + journal.size
+
+    fun ground(x: Int, y: Int) = if (x in 0 until width && y in 0 until height) ground[x + y * width] else 0
+
+    fun air(x: Int, y: Int) = if (x in 0 until width && y in 0 until height) air[x + y * width] else 0
+
+    /** The number of turrets that can hit a unit standing on this tile */
+    fun threat(x: Int, y: Int, flying: Boolean) = if (flying) air(x, y) else ground(x, y)
+
+    /** Adds [delta] to the tiles [ent] can hit.  Client thread only. */
+    internal fun stamp(ent: TurretPathfindingEntity, delta: Int) {
+        if (width == 0 || height == 0) return
+        forEachCovered(ent) { x, y ->
+            val i = x + y * width
+            if (ent.targetGround) ground[i] += delta
+            if (ent.targetAir) air[i] += delta
+        }
+        journal.add(ent)
+        journalDeltas.add(delta)
+        if (journal.size > JOURNAL_SIZE) {
+            val drop = journal.size / 2
+            journal.removeRange(0, drop - 1)
+            journalDeltas.removeRange(0, drop - 1)
+            journalStart += drop
+        }
+    }
+
+    /** Calls [cons] with each in bounds tile whose center is within reach of [ent] */
+    private inline fun forEachCovered(ent: TurretPathfindingEntity, cons: (x: Int, y: Int) -> Unit) {
+        val reach = ent.range + PADDING
+        val r = ceil(reach / tilesize).toInt()
+        val cx = World.toTile(ent.x())
+        val cy = World.toTile(ent.y())
+        for (y in max(0, cy - r)..min(height - 1, cy + r)) {
+            val dy = y * tilesize - ent.y()
+            for (x in max(0, cx - r)..min(width - 1, cx + r)) {
+                val dx = x * tilesize - ent.x()
+                if (dx * dx + dy * dy <= reach * reach) cons(x, y)
+            }
+        }
+    }
+
+    /** Calls [cons] with how the threat to [flying] units changed on each tile since [cursor], an earlier [journalEnd] no older than [journalStart] */
+    fun replay(cursor: Long, flying: Boolean, cons: GridChanges.Int3) {
+        for (i in (cursor - journalStart).toInt() until journal.size) {
+            val ent = journal[i]
+            if (if (flying) !ent.targetAir else !ent.targetGround) continue
+            val delta = journalDeltas[i]
+            forEachCovered(ent) { x, y -> cons(x, y, delta) }
+        }
+    }
+
+    /** Calls [cons] with every tile that [flying] units can be hit on and the number of turrets that can hit them */
+    fun each(flying: Boolean, cons: GridChanges.Int3) {
+        val counts = if (flying) air else ground
+        for (i in counts.indices) if (counts[i] != 0) cons(i % width, i / width, counts[i])
+    }
+
+    /** Calls [cons] with how the threat on each tile changes when switching to [flying] units from the other kind */
+    fun eachDifference(flying: Boolean, cons: GridChanges.Int3) {
+        for (i in ground.indices) {
+            val delta = if (flying) air[i] - ground[i] else ground[i] - air[i]
+            if (delta != 0) cons(i % width, i / width, delta)
+        }
+    }
+
+    /** The closest tile to ([x], [y]) that no turret can hit [flying] units on, packed with [Point2.pack], or -1 if there is none */
+    fun closestSafe(x: Int, y: Int, flying: Boolean): Int {
+        val counts = if (flying) air else ground
+        var best = -1
+        var bestDst = Int.MAX_VALUE
+        fun check(tx: Int, ty: Int) {
+            if (tx !in 0 until width || ty !in 0 until height || counts[tx + ty * width] != 0) return
+            val dst = (tx - x) * (tx - x) + (ty - y) * (ty - y)
+            if (dst < bestDst) {
+                best = Point2.pack(tx, ty)
+                bestDst = dst
+            }
+        }
+
+        check(x, y)
+        var r = 1
+        // Every tile on ring r is at least r away, so stop once that is further than the best so far
+        while (r <= max(width, height) && (best == -1 || r * r <= bestDst)) {
+            for (dx in -r..r) {
+                check(x + dx, y - r)
+                check(x + dx, y + r)
+            }
+            for (dy in -r + 1 until r) {
+                check(x - r, y + dy)
+                check(x + r, y + dy)
+            }
+            r++
+        }
+        return best
+    }
+
+    companion object {
+        /** Added to each turret's range, as turrets aim at a unit's hitbox rather than its center */
+        private val PADDING = tilesize.toFloat()
+        private const val JOURNAL_SIZE = 4096
+
+        @JvmField val empty = ThreatField(0, 0)
+    }
+}
@@ -7,8 +7,7 @@ import arc.struct.*
 import mindustry.Vars.*
 import mindustry.gen.*
 import mindustry.logic.*
-import java.util.concurrent.locks.*
-import kotlin.concurrent.*
+import kotlin.math.*
 
 class TurretPathfindingEntity(@JvmField val entity: Ranged, @JvmField val range: Float, @JvmField val targetGround: Boolean, @JvmField val targetAir: Boolean, private val canShoot: Boolp) : QuadTreeObject {
     var id = 0L
@@ -18,6 +17,16 @@ class TurretPathfindingEntity(@JvmField val entity: Ranged, @JvmField val range:
     fun x() = entity.x
     fun y() = entity.y
     @JvmField val turret = entity is Building
+    /** Which of [Navigation]'s turret grids this is in, null if neither. Client thread only. */
+    internal var indexedEnemy: Boolean? = null
+    /** Whether this is stamped in [Navigation]'s [ThreatField]. Client thread only. */
+    internal var threatening = false
+    /** [canShoot] as of the last published snapshot, for turrets only. Written on the client thread. */
+    @Volatile var shooting = false
+        internal set
+    /** The [EntityGrid] cell and side this unit was in as of the last published snapshot, so that [Navigation] only rebuilds its unit grids when one of them changes. Client thread only. */
+    internal var publishedCell = -1
+    internal var publishedEnemy: Boolean? = null
 
     companion object {
         private var nextId: Long = 0
@@ -65,23 +74,111 @@ class TurretPathfindingEntity(@JvmField val entity: Ranged, @JvmField val range:
     }
 }
 
-// FINISHME: Awful.
-class EntityTree private constructor(bounds: Rect, val lock: ReentrantLock) : QuadTree<TurretPathfindingEntity>(bounds) {
-    constructor(bounds: Rect) : this(bounds, ReentrantLock(true))
+/**
+ * Immutable grid of [TurretPathfindingEntity], bucketed by the cell containing each entity's center.
+ * [with] and [without] return a new grid that shares every untouched cell, so published grids are safe to read from any thread without locking.
+ */
+class EntityGrid private constructor(
+    val worldWidth: Float, val worldHeight: Float,
+    private val cells: Array<Array<TurretPathfindingEntity>?>,
+    /** Largest range in the grid, used to widen queries. Never shrinks on removal. */
+    private val maxRange: Float
+) {
+    companion object {
+        const val CELL_SIZE = 16 * tilesize
+        private val noEnts = emptyArray<TurretPathfindingEntity>()
+
+        @JvmStatic
+        fun of(worldWidth: Float, worldHeight: Float, ents: Iterable<TurretPathfindingEntity> = emptyList()): EntityGrid {
+            val width = cellsFor(worldWidth)
+            val lists = arrayOfNulls<Seq<TurretPathfindingEntity>>(width * cellsFor(worldHeight))
+            var maxRange = 0f
+            for (ent in ents) {
+                val cell = cellOf(ent, worldWidth, worldHeight)
+                (lists[cell] ?: Seq<TurretPathfindingEntity>().also { lists[cell] = it }).add(ent)
+                if (ent.range > maxRange) maxRange = ent.range
+            }
+            return EntityGrid(worldWidth, worldHeight, Array(lists.size) { lists[it]?.toArray(TurretPathfindingEntity::class.java) }, maxRange)
+        }
+
+        private fun cellsFor(size: Float) = max(1, ceil(size / CELL_SIZE).toInt())
+
+        internal fun cellOf(ent: TurretPathfindingEntity, worldWidth: Float, worldHeight: Float): Int {
+            val cx = (ent.x() / CELL_SIZE).toInt().coerceIn(0, cellsFor(worldWidth) - 1)
+            val cy = (ent.y() / CELL_SIZE).toInt().coerceIn(0, cellsFor(worldHeight) - 1)
+            return cx + cy * cellsFor(worldWidth)
+        }
+    }
 
-    override fun newChild(rect: Rect) = EntityTree(rect, lock)
+    private val width = cellsFor(worldWidth)
+    private val height = cellsFor(worldHeight)
 
-    inline fun <T> use(action: EntityTree.() -> T): T = lock.withLock { this.action() } // FINISHME: Use this instead of locking in each function, should improve performance
+    /** @return a copy of this grid containing [ent] */
+    fun with(ent: TurretPathfindingEntity): EntityGrid {
+        val cell = cellOf(ent, worldWidth, worldHeight)
+        val copy = cells.copyOf()
+        copy[cell] = (cells[cell] ?: noEnts) + ent
+        return EntityGrid(worldWidth, worldHeight, copy, max(maxRange, ent.range))
+    }
 
-    override fun remove(obj: TurretPathfindingEntity?): Boolean {
-        lock.withLock {
-            return super.remove(obj)
+    /** @return a copy of this grid without [ent], or this grid if it does not contain it */
+    fun without(ent: TurretPathfindingEntity): EntityGrid {
+        var cell = cellOf(ent, worldWidth, worldHeight)
+        if (cells[cell]?.contains(ent) != true) { // Moved since it was added
+            cell = cells.indexOfFirst { it?.contains(ent) == true }
+            if (cell == -1) return this
         }
+        val copy = cells.copyOf()
+        val remaining = cells[cell]!!.filter { it != ent }
+        copy[cell] = if (remaining.isEmpty()) null else remaining.toTypedArray()
+        return EntityGrid(worldWidth, worldHeight, copy, maxRange)
     }
 
-    override fun getObjects(out: Seq<TurretPathfindingEntity>?) {
-        lock.withLock {
-            super.getObjects(out)
+    /** Calls [cons] with each entity whose hitbox overlaps the rectangle */
+    fun intersect(x: Float, y: Float, w: Float, h: Float, cons: Cons<TurretPathfindingEntity>) {
+        val minX = ((x - maxRange) / CELL_SIZE).toInt().coerceIn(0, width - 1)
+        val minY = ((y - maxRange) / CELL_SIZE).toInt().coerceIn(0, height - 1)
+        val maxX = ((x + w + maxRange) / CELL_SIZE).toInt().coerceIn(0, width - 1)
+        val maxY = ((y + h + maxRange) / CELL_SIZE).toInt().coerceIn(0, height - 1)
+        for (cy in minY..maxY) {
+            for (cx in minX..maxX) {
+                for (ent in cells[cx + cy * width] ?: continue) {
+                    if (ent.x() - ent.range < x + w && ent.x() + ent.range > x && ent.y() - ent.range < y + h && ent.y() + ent.range > y) cons.get(ent)
+                }
+            }
         }
     }
-}
\ No newline at end of file
+
+    fun intersect(rect: Rect, cons: Cons<TurretPathfindingEntity>) = intersect(rect.x, rect.y, rect.width, rect.height, cons)
+
+    /** @return whether any entity's hitbox overlaps the rectangle */
+    fun any(x: Float, y: Float, w: Float, h: Float): Boolean {
+        var found = false
+        intersect(x, y, w, h) { found = true }
+        return found
+    }
+}
+
+/** One published view of the obstacles on a side. Never modified after it is published, read it from any thread. */
+class ObstacleSnapshot(
+    /** Building turrets, carried over between snapshots and only changed when turrets are added or removed */
+    val turrets: EntityGrid,
+    /** Units move, so these are rebuilt whenever a unit enters another cell */
+    val units: EntityGrid,
+    val ents: Seq<TurretPathfindingEntity>,
+    /** Changes whenever a turret is added, removed, changes team or starts or stops being able to shoot, so that anything derived from the turrets knows when to redo it */
+    val turretVersion: Int = 0
+) {
+    companion object {
+        @JvmField val empty = ObstacleSnapshot(EntityGrid.of(0f, 0f), EntityGrid.of(0f, 0f), Seq(), -1)
+    }
+
+    fun intersect(x: Float, y: Float, w: Float, h: Float, cons: Cons<TurretPathfindingEntity>) {
+        turrets.intersect(x, y, w, h, cons)
+        units.intersect(x, y, w, h, cons)
+    }
+
+    fun intersect(rect: Rect, cons: Cons<TurretPathfindingEntity>) = intersect(rect.x, rect.y, rect.width, rect.height, cons)
+
+    fun any(x: Float, y: Float, w: Float, h: Float) = turrets.any(x, y, w, h) || units.any(x, y, w, h)
+}
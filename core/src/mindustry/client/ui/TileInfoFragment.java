@@ -35,6 +35,11 @@ public class TileInfoFragment extends Table {
                 img.setDrawable(hovered.floor().uiIcon);
                 label.setText("");
                 return;
+            } else if (TileRecords.INSTANCE.getLoading()) { // Checked again once the history from before the reconnect is read back
+                img.setDrawable(hovered.block().uiIcon.found() ? hovered.block().uiIcon : hovered.floor().uiIcon);
+                label.setText(Core.bundle.get("loading"));
+                lastPos.set(-1);
+                return;
             } else if (hovered.pos() == lastPos.get()) {
                 return;
             }
@@ -43,7 +48,10 @@ public class TileInfoFragment extends Table {
             TextureRegion icon = hovered.block().uiIcon;
             img.setDrawable(icon.found() ? icon : hovered.floor().uiIcon);
             var record = TileRecords.INSTANCE.get(hovered);
-            if (record == null) return;
+            if (record == null) { // Tiles only get a record once something is logged on them
+                label.setText("");
+                return;
+            }
             var logs = record.lastLogs(7);
 
             builder.setLength(0);
@@ -54,8 +54,7 @@ object UploadDialog : BaseDialog("@client.uploadtitle") { // FINISHME: Somehow s
             } else if (false in imgs) {
                 if (true in imgs) Vars.ui.chatfrag.addMessage(Core.bundle["client.imagetoobig"]) // Any of the images was removed for being too large.
                 for (image in imgs[false]!!) {
-                    Main.send(ImageTransmission(id, image)) {
-                        image.dispose()
+                    Main.sendImage(id, image) {
                         doneCount++
                         if (doneCount == imgs[false]!!.size) Core.app.post { Vars.ui.showInfoToast(Core.bundle["client.finisheduploading"], 3f) } // Thread safety doesn't exist
                     }
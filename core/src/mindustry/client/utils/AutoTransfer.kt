@@ -12,6 +12,7 @@ import mindustry.entities.bullet.*
 import mindustry.gen.*
 import mindustry.graphics.*
 import mindustry.type.*
+import mindustry.world.*
 import mindustry.world.blocks.defense.turrets.*
 import mindustry.world.blocks.power.NuclearReactor.*
 import mindustry.world.blocks.production.*
@@ -46,8 +47,35 @@ class AutoTransfer {
         }
     }
 
+    /** What a block takes in and puts out, worked out once per block instead of on every building on every transfer */
+    private inner class Demand(block: Block) {
+        val consumer: Consume? = block.findConsumer<Consume> { it is ConsumeItems || it is ConsumeItemFilter || it is ConsumeItemDynamic }
+        val explodes = block.findConsumer<Consume> { it is ConsumeItemExplode } != null
+        /** Ids of the items a [ConsumeItemFilter] block takes, and the score of each as ammo */
+        val filterItems: IntArray
+        val ammoScores: FloatArray
+        val outputs: Array<ItemStack>? = (block as? GenericCrafter)?.outputItems
+
+        init {
+            if (consumer is ConsumeItemFilter) {
+                val items = content.items().select { block.consumesItem(it) && !(explodes && it == Items.blastCompound) }
+                filterItems = IntArray(items.size) { items[it].id.toInt() }
+                ammoScores = FloatArray(items.size) { getAmmoScore((block as? ItemTurret)?.ammoTypes?.get(items[it])) }
+            } else {
+                filterItems = IntArray(0)
+                ammoScores = FloatArray(0)
+            }
+        }
+    }
+
+    private val demands = arrayOfNulls<Demand>(content.blocks().size)
+    private fun demandOf(block: Block) = demands[block.id.toInt()] ?: Demand(block).also { demands[block.id.toInt()] = it }
+
     val builds = Seq<Building>()
     val containers = Seq<Building>()
+    private val targets = Seq<Building>()
+    /** How much of the held item each target takes, by building id, so that sorting doesn't ask again for every comparison */
+    private val accepted = IntIntMap()
     var item: Item? = null
     var timer = 0F
     val counts = IntArray(content.items().size)
@@ -88,45 +116,58 @@ class AutoTransfer {
 
         if (fromContainers && (core == null || !player.within(core, itemTransferRange))) core = containers.selectFrom(builds) { it.block is StorageBlock && (item == null || it.items.has(item)) }.min { it -> it.dst(player) }
 
-        builds.filter { it.block.findConsumer<Consume?> { it is ConsumeItems || it is ConsumeItemFilter || it is ConsumeItemDynamic } != null && it !is NuclearReactorBuild && player.within(it, itemTransferRange) }
-        .sort { b -> -b.acceptStack(player.unit().item(), player.unit().stack.amount, player.unit()).toFloat() }
-        .forEach {
-            if (ratelimitRemaining <= 1) return@forEach
+        val unit = player.unit()
+        val heldItem = unit.item()
+        targets.clear()
+        accepted.clear()
+        for (build in builds) {
+            if (demandOf(build.block).consumer == null || build is NuclearReactorBuild || !player.within(build, itemTransferRange)) continue
+            targets.add(build)
+            accepted.put(build.id, build.acceptStack(heldItem, unit.stack.amount, unit))
+        }
+        targets.sort { a, b -> accepted[b.id].compareTo(accepted[a.id]) }
+
+        val source = core
+        val minItems = if (source is CoreBlock.CoreBuild) minCoreItems else 1
+        for (build in targets) {
+            if (ratelimitRemaining <= 1) break
+            val demand = demandOf(build.block)
 
-            if (player.unit().item() != Items.blastCompound || it.block.findConsumer<ConsumeItems> { it is ConsumeItemExplode } == null ) {
-                val accepted = it.acceptStack(player.unit().item(), player.unit().stack.amount, player.unit())
-                if (accepted > 0 && held > 0) {
-                    Call.transferInventory(player, it)
-                    held -= accepted
+            if (heldItem != Items.blastCompound || !demand.explodes) {
+                val amount = accepted[build.id]
+                if (amount > 0 && held > 0) {
+                    Call.transferInventory(player, build)
+                    held -= amount
                     ratelimitRemaining--
                 }
             }
 
-            val minItems = if (core is CoreBlock.CoreBuild) minCoreItems else 1
-            if (core != null) { // Automatically take needed item from core
-                when (val cons = it.block.findConsumer<Consume> { it is ConsumeItems || it is ConsumeItemFilter || it is ConsumeItemDynamic }) { // Cursed af
+            if (source != null) { // Automatically take needed item from core
+                when (val cons = demand.consumer) {
                     is ConsumeItems -> {
-                        cons.items.forEach { i ->
-                            val acceptedC = it.acceptStack(i.item, it.getMaximumAccepted(i.item), player.unit())
-                            if (acceptedC >= minTransfer && core!!.items.has(i.item, max(i.amount, minItems))) {
+                        for (i in cons.items) {
+                            val acceptedC = build.acceptStack(i.item, build.getMaximumAccepted(i.item), unit)
+                            if (acceptedC >= minTransfer && source.items.has(i.item, max(i.amount, minItems))) {
                                 counts[i.item.id.toInt()] += acceptedC
                             }
                         }
                     }
                     is ConsumeItemFilter -> {
-                        content.items().each { i ->
-                            val acceptedC = if (i == Items.blastCompound && it.block.findConsumer<Consume> { it is ConsumeItemExplode } != null) 0 else it.acceptStack(i, Int.MAX_VALUE, player.unit())
-                            if (acceptedC >= minTransfer && it.block.consumesItem(i) && core!!.items.has(i, minItems)) {
+                        for (j in demand.filterItems.indices) {
+                            val id = demand.filterItems[j]
+                            val i = content.item(id)
+                            val acceptedC = build.acceptStack(i, Int.MAX_VALUE, unit)
+                            if (acceptedC >= minTransfer && source.items.has(i, minItems)) {
                                 // Turrets have varying ammo, add an offset to prioritize some than others
-                                ammoCounts[i.id.toInt()] += acceptedC
-                                dpsCounts[i.id.toInt()] += acceptedC * getAmmoScore((it.block as? ItemTurret)?.ammoTypes?.get(i))
+                                ammoCounts[id] += acceptedC
+                                dpsCounts[id] += acceptedC * demand.ammoScores[j]
                             }
                         }
                     }
                     is ConsumeItemDynamic -> {
-                        cons.items.get(it).forEach { i -> // Get the current requirements
-                            val acceptedC = it.getMaximumAccepted(i.item) - it.items.get(i.item)
-                            if (acceptedC >= minTransfer && core!!.items.has(i.item, max(i.amount, minItems))) {
+                        for (i in cons.items.get(build)) { // Get the current requirements
+                            val acceptedC = build.getMaximumAccepted(i.item) - build.items.get(i.item)
+                            if (acceptedC >= minTransfer && source.items.has(i.item, max(i.amount, minItems))) {
                                 counts[i.item.id.toInt()] += acceptedC
                             }
                         }
@@ -173,11 +214,11 @@ class AutoTransfer {
         buildTree.intersect(player.x - itemTransferRange, player.y - itemTransferRange, itemTransferRange * 2, itemTransferRange * 2, builds.clear()) // grab all buildings in range
 
         counts.fill(0)
-        builds.filter { it is GenericCrafterBuild && !it.shouldConsume() }.forEach { // Crafters that are completely full FINISHME: Do for all buildings with >= mintransfer instead
-            val block = it.block as GenericCrafter
-            if (block.outputItems == null) return@forEach
+        for (build in builds) { // Crafters that are completely full FINISHME: Do for all buildings with >= mintransfer instead
+            val outputs = demandOf(build.block).outputs ?: continue
+            if (build !is GenericCrafterBuild || build.shouldConsume()) continue
 
-            for (out in block.outputItems) counts[out.item.id.toInt()] += it.items[out.item.id.toInt()]
+            for (out in outputs) counts[out.item.id.toInt()] += build.items[out.item.id.toInt()]
         }
 
         var maxID = 0; var maxCount = counts[0]
@@ -35,6 +35,11 @@ public class BiasedLevenshtein {
     }
 
     public static float biasedLevenshteinLengthIndependent(String x, String y) {
+        return biasedLevenshteinLengthIndependent(x, y, new int[2 * (Math.max(x.length(), y.length()) + 1)]);
+    }
+
+    /** Same as {@link #biasedLevenshteinLengthIndependent(String, String)} but keeps its two rows in {@code dp}, which needs room for {@code 2 * (longer length + 1)} ints. */
+    public static float biasedLevenshteinLengthIndependent(String x, String y, int[] dp) {
         if (x.length() > y.length()){
             String temp = x;
             x = y;
@@ -42,7 +47,6 @@ public class BiasedLevenshtein {
         }
         int xl = x.length(), yl = y.length();
         int yw = yl + 1;
-        int[] dp = new int[2 * yw];
 
         for(int j=0; j <= yl; ++j){
             dp[j] = 0; // Insertions at the beginning are free
@@ -111,8 +111,11 @@ object Compression {
         return output
     }
 
-    fun inflate(input: ByteArray): ByteArray {
-        val inflater = InflaterInputStream(input.inputStream())
+    fun inflate(input: ByteArray): ByteArray = inflate(input, 0, input.size)
+
+    /** Inflates [length] bytes of [input] starting at [offset] without copying them out first. */
+    fun inflate(input: ByteArray, offset: Int, length: Int): ByteArray {
+        val inflater = InflaterInputStream(input.inputStream(offset, length))
         val output = inflater.readBytes()
         inflater.close()
         return output
@@ -300,11 +303,11 @@ fun pixmapFromClipboard(): Pixmap? {
 
 inline fun <T : Disposable, V> T.use(lambda: T.() -> V) = lambda().also { this.dispose() }
 
-private val bytes = ByteArrayOutputStream()
-
-fun compressImage(img: Pixmap): ByteArray {
+/** Encodes [img] as a jpeg of the given [quality], or a png if it is 0 or jpegs aren't available.  Safe to call from any thread. */
+fun compressImage(img: Pixmap, quality: Float = ClientVars.jpegQuality): ByteArray {
+    val bytes = ByteArrayOutputStream()
     try {
-        if (ClientVars.jpegQuality == 0f) {
+        if (quality == 0f) {
             throw ClassNotFoundException("I am lazy so we might use an already-implemented function")
         }
         val imgIO = Class.forName("javax.imageio.ImageIO")
@@ -345,7 +348,7 @@ fun compressImage(img: Pixmap): ByteArray {
 
         jpgParamCls.getMethod("setCompressionMode", Int::class.java)
             .invoke(param, Class.forName("javax.imageio.ImageWriteParam").getField("MODE_EXPLICIT").get(null))
-        jpgParamCls.getMethod("setCompressionQuality", Float::class.java).invoke(param, ClientVars.jpegQuality)
+        jpgParamCls.getMethod("setCompressionQuality", Float::class.java).invoke(param, quality)
 
         val imgTypeSpec = Class.forName("javax.imageio.ImageTypeSpecifier")
         val paramCls = Class.forName("javax.imageio.ImageWriteParam")
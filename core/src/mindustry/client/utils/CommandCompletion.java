@@ -8,6 +8,10 @@ import mindustry.client.*;
 
 public class CommandCompletion implements Autocompleter {
     private static final Seq<CommandCompletable> commands = new Seq<>();
+    /** Commands by the order they were added in, {@link #commands} itself gets sorted */
+    private static final CompletionIndex index = new CompletionIndex();
+    private static final IntFloatMap scores = new IntFloatMap();
+    private static String lastInput;
 
     @Override
     public void initialize() {
@@ -21,7 +25,7 @@ public class CommandCompletion implements Autocompleter {
                 reset(false);
                 var prefix = json.getString("prefix", "/");
                 for (var c : cmds) {
-                    commands.add(new CommandCompletable(c.key, c.key + " " + c.value.asString(), prefix));
+                    add(new CommandCompletable(c.key, c.key + " " + c.value.asString(), prefix));
                 }
             }
         });
@@ -29,12 +33,36 @@ public class CommandCompletion implements Autocompleter {
 
     public static void reset(boolean addServer) {
         commands.clear();
+        index.clear();
+        lastInput = null;
         addCommands(ClientVars.clientCommandHandler);
         if (addServer) addCommands(Vars.netServer.clientCommands);
     }
 
     private static void addCommands(CommandHandler handler) {
-        commands.addAll(handler.getCommandList().map(c -> new CommandCompletable(c.text, c.text + " " + c.paramText, handler.getPrefix())));
+        for (var c : handler.getCommandList()) add(new CommandCompletable(c.text, c.text + " " + c.paramText, handler.getPrefix()));
+    }
+
+    private static void add(CommandCompletable command) {
+        command.id = commands.size;
+        index.put(command.id, command.matchName);
+        commands.add(command);
+        lastInput = null;
+    }
+
+    /** Scores every command against {@code input} through the index, once per distinct input */
+    private static void search(String input) {
+        if (input.equals(lastInput)) return;
+        lastInput = input;
+        int end = input.length();
+        while (end > 0 && Character.isWhitespace(input.charAt(end - 1))) end--;
+        for (int i = 0; i < end; i++) {
+            if (Character.isWhitespace(input.charAt(i))) { // Arguments are being typed, nothing to complete
+                scores.clear();
+                return;
+            }
+        }
+        index.search(input.substring(0, end).toLowerCase(), scores);
     }
 
     @Override
@@ -59,23 +87,22 @@ public class CommandCompletion implements Autocompleter {
     private static class CommandCompletable implements Autocompleteable {
         private final String command;
         private final String usage;
+        private final String matchName;
+        private int id;
 
         public CommandCompletable(String command, String usage, String prefix) {
             this.command = prefix + command;
             this.usage = prefix + usage;
+            matchName = this.command.toLowerCase();
         }
 
         @Override
         public float matches(String input) {
-            if (input == null) return 0f;
-            if (input.split("\\s").length > 1) return 0f;
-            if (!input.startsWith(String.valueOf(command.charAt(0)))) return 0f;
-
-            float dst = BiasedLevenshtein.biasedLevenshteinInsensitive(input, command);
-            dst *= -1;
-            dst += command.length();
-            dst /= command.length();
-            return dst;
+            if (input == null || input.isEmpty()) return 0f;
+            if (input.charAt(0) != command.charAt(0)) return 0f;
+
+            search(input);
+            return scores.get(id, 0f);
         }
 
         @Override
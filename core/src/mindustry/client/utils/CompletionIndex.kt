@@ -0,0 +1,90 @@
+package mindustry.client.utils
+
+import arc.struct.*
+import arc.util.*
+import kotlin.math.*
+
+/**
+ * Fuzzy matches queries against a set of names for autocompletion.  Names are normalized once when they are put in, and a [TrigramIndex]
+ * picks out the ones worth scoring.  Typing onto the end of the last query only looks up the trigrams that are new.
+ * Not thread safe, only use it from the main thread.
+ */
+class CompletionIndex {
+    private val names = IntMap<String>()
+    private val index = TrigramIndex()
+    /** Number of the last query's trigrams each name has */
+    private val counts = IntIntMap()
+    private var lastQuery = ""
+    private var lastGrams = LongArray(0)
+    /** Rows for [BiasedLevenshtein], grown as needed */
+    private var buffer = IntArray(64)
+
+    val size get() = names.size
+
+    /** Indexes [name] under [id], see [normalize]. */
+    fun put(id: Int, name: String) {
+        names.put(id, name)
+        index.put(id, name)
+        lastQuery = ""
+    }
+
+    fun remove(id: Int) {
+        names.remove(id) ?: return
+        index.remove(id)
+        lastQuery = ""
+    }
+
+    fun clear() {
+        names.clear()
+        index.clear()
+        lastQuery = ""
+    }
+
+    /**
+     * Puts the score of each name against [query] into [out] by id, see [score].  Only the names sharing a trigram with [query] are scored.
+     * Every name is scored only when there is nothing to go on, for short queries that have no trigrams or when no name shares one.
+     */
+    fun search(query: String, out: IntFloatMap) {
+        out.clear()
+        if (lastQuery.isEmpty() || !query.startsWith(lastQuery)) {
+            counts.clear()
+            lastGrams = LongArray(0)
+        }
+        val grams = TrigramIndex.trigrams(query)
+        index.count(grams.filter { lastGrams.binarySearch(it) < 0 }.toLongArray(), counts)
+        lastQuery = query
+        lastGrams = grams
+
+        val iter = counts.keys()
+        while (iter.hasNext) {
+            val id = iter.next()
+            out.put(id, score(query, names.get(id) ?: continue))
+        }
+        if (grams.isNotEmpty() && out.size > 0) return
+        for (entry in names) out.put(entry.key, score(query, entry.value))
+    }
+
+    /**
+     * How well [query] matches [name] from 0 to 1, from [BiasedLevenshtein.biasedLevenshteinLengthIndependent] over the shorter of the two.
+     * Names closer in length to the query come first among equal matches.
+     */
+    fun score(query: String, name: String): Float {
+        if (query.isEmpty() || name.isEmpty()) return 0f
+        val needed = 2 * (max(query.length, name.length) + 1)
+        if (buffer.size < needed) buffer = IntArray(needed)
+        val distance = BiasedLevenshtein.biasedLevenshteinLengthIndependent(query, name, buffer)
+        val shorter = min(query.length, name.length)
+        return max(0f, 1f - distance / shorter) - 0.01f * abs(name.length - query.length) / max(query.length, name.length)
+    }
+
+    companion object {
+        /** Strips colors and whitespace and lowercases [name], as names are matched. */
+        @JvmStatic
+        fun normalize(name: String): String {
+            val stripped = Strings.stripColors(name)
+            val out = StringBuilder(stripped.length)
+            for (c in stripped) if (!c.isWhitespace()) out.append(c.lowercaseChar())
+            return out.toString()
+        }
+    }
+}
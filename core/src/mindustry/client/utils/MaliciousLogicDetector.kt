@@ -2,7 +2,9 @@
 
 package mindustry.client.utils
 
+import mindustry.client.navigation.*
 import mindustry.world.blocks.logic.*
+import java.util.concurrent.*
 
 // enum class LogicDetectionType(
 
@@ -17,100 +19,209 @@ enum class LogicDetectionLevel {
 	Safe, SlightlySus, Sus, Malicious
 }
 
-val SusFlagInstruction = Regex("^ucontrol flag \\d+", RegexOption.MULTILINE)
-val FlagInstruction = Regex("^ucontrol flag", RegexOption.MULTILINE)
-
-val ControlFlowInstruction = Regex("^jump ", RegexOption.MULTILINE)
-
-val SusMoveInstruction = Regex("^ucontrol move \\d+ \\d+", RegexOption.MULTILINE)
-val MoveInstruction = Regex("^ucontrol move|approach|pathfind", RegexOption.MULTILINE)
-
-val ItemTakeInstruction = Regex("^ucontrol itemTake", RegexOption.MULTILINE)
-val ItemDropAirInstruction = Regex("^ucontrol itemDrop @air", RegexOption.MULTILINE)
-val LookupInstruction = Regex("^lookup", RegexOption.MULTILINE)
-
-val ForceShootInstruction = Regex("^ucontrol targetp @unit (1|true)", RegexOption.MULTILINE)
-
-val Crawler = Regex("@crawler")
-val Flammable = Regex("@coal|@pyratite|@blast-compound|@surge-alloy")
-
-val UnitBindInstruction = Regex("^ubind ", RegexOption.MULTILINE)
+// Features of the code, found in one pass by scanFeatures. "Line" features must be at the start of a line, the rest can be anywhere.
+private const val LogicVsFish = 1 // logicvsfish
+private const val SusFlagInstruction = 1 shl 1 // Line: ucontrol flag <digits>
+private const val FlagInstruction = 1 shl 2 // Line: ucontrol flag
+private const val ControlFlowInstruction = 1 shl 3 // Line: jump
+private const val SusMoveInstruction = 1 shl 4 // Line: ucontrol move <digits> <digits>
+private const val MoveInstruction = 1 shl 5 // Line: ucontrol move, or approach/pathfind anywhere
+private const val ItemTakeInstruction = 1 shl 6 // Line: ucontrol itemTake
+private const val ItemDropAirInstruction = 1 shl 7 // Line: ucontrol itemDrop @air
+private const val LookupInstruction = 1 shl 8 // Line: lookup
+private const val ForceShootInstruction = 1 shl 9 // Line: ucontrol targetp @unit 1 or true
+private const val Crawler = 1 shl 10 // @crawler
+private const val Flammable = 1 shl 11 // @coal, @pyratite, @blast-compound or @surge-alloy
+private const val UnitBindInstruction = 1 shl 12 // Line: ubind
+private const val CheckFlagZeroInstruction = 1 shl 13 // sensor <var> @unit @flag, then on a later line jump <label> notEqual/equal <var> 0
+
+private val flammables = arrayOf("@coal", "@pyratite", "@blast-compound", "@surge-alloy")
+
+/**
+ * Verdicts by the code itself, shared between processors running the same code.  Keyed by the full string rather than its hash, hashes are
+ * easy to collide on purpose and a colliding harmless processor would hide a malicious one.
+ */
+private val verdicts = ConcurrentHashMap<String, LogicDetectionLevel>()
+/** The code each processor was last checked with, by position */
+private val checked = ConcurrentHashMap<Int, String>()
+
+private infix fun Int.has(feature: Int) = (this and feature) != 0
+
+/** Whether [code] has [token] followed by a space and at least one digit at [index] */
+private fun numberAfter(code: String, index: Int, token: String): Boolean {
+	val at = index + token.length
+	return code.startsWith(token, index) && at + 1 < code.length && code[at] == ' ' && code[at + 1].isDigit()
+}
 
-val SensorFlagInstruction = Regex("^sensor \\S+ @unit @flag", RegexOption.MULTILINE)
-val CheckFlagZeroInstruction = Regex("^sensor (\\S+) @unit @flag[\\s\\S]*\njump \\S+ (?:notEqual|equal) \\1 0", RegexOption.MULTILINE) //regex is awesome, this tests if the logic: sensors the flag of @unit, then jumps if the flag is not zero
+/** The index of the space ending the token starting at [start], or -1 if the line or code ends first */
+private fun tokenEnd(code: String, start: Int, lineEnd: Int): Int {
+	if (start >= lineEnd || code[start] == ' ') return -1
+	for (i in start until lineEnd) if (code[i] == ' ') return i
+	return -1
+}
 
-infix fun String.has(regex:Regex):Boolean = regex.containsMatchIn(this)
+/** Scans [code] once and returns the features it has */
+private fun scanFeatures(code: String): Int {
+	var features = 0
+	var flagVars: MutableList<String>? = null // Variables holding @unit's flag, see CheckFlagZeroInstruction
+	var lineStart = 0
+	while (lineStart <= code.length) {
+		var lineEnd = code.indexOf('\n', lineStart)
+		if (lineEnd == -1) lineEnd = code.length
+
+		// Instructions at the start of the line
+		when {
+			code.startsWith("ucontrol ", lineStart) -> {
+				val i = lineStart + "ucontrol ".length
+				when {
+					code.startsWith("flag", i) -> {
+						features = features or FlagInstruction
+						if (numberAfter(code, i, "flag")) features = features or SusFlagInstruction
+					}
+					code.startsWith("move", i) -> {
+						features = features or MoveInstruction
+						val x = i + "move ".length
+						if (numberAfter(code, i, "move")) {
+							var end = x
+							while (end < code.length && code[end].isDigit()) end++
+							if (end + 1 < code.length && code[end] == ' ' && code[end + 1].isDigit()) features = features or SusMoveInstruction
+						}
+					}
+					code.startsWith("itemTake", i) -> features = features or ItemTakeInstruction
+					code.startsWith("itemDrop @air", i) -> features = features or ItemDropAirInstruction
+					code.startsWith("targetp @unit 1", i) || code.startsWith("targetp @unit true", i) -> features = features or ForceShootInstruction
+				}
+			}
+			code.startsWith("jump ", lineStart) -> {
+				features = features or ControlFlowInstruction
+				if (flagVars != null && !(features has CheckFlagZeroInstruction)) { // jump <label> notEqual/equal <var> 0
+					val labelEnd = tokenEnd(code, lineStart + "jump ".length, lineEnd)
+					val op = labelEnd + 1
+					val varStart = when {
+						labelEnd == -1 -> -1
+						code.startsWith("notEqual ", op) -> op + "notEqual ".length
+						code.startsWith("equal ", op) -> op + "equal ".length
+						else -> -1
+					}
+					val varEnd = if (varStart == -1) -1 else tokenEnd(code, varStart, lineEnd)
+					if (varEnd != -1 && varEnd + 1 < lineEnd && code[varEnd + 1] == '0') {
+						for (name in flagVars) {
+							if (name.length == varEnd - varStart && code.startsWith(name, varStart)) {
+								features = features or CheckFlagZeroInstruction
+								break
+							}
+						}
+					}
+				}
+			}
+			code.startsWith("sensor ", lineStart) -> { // sensor <var> @unit @flag
+				val varEnd = tokenEnd(code, lineStart + "sensor ".length, lineEnd)
+				if (varEnd != -1 && code.startsWith("@unit @flag", varEnd + 1)) {
+					if (flagVars == null) flagVars = mutableListOf()
+					flagVars.add(code.substring(lineStart + "sensor ".length, varEnd))
+				}
+			}
+			code.startsWith("ubind ", lineStart) -> features = features or UnitBindInstruction
+			code.startsWith("lookup", lineStart) -> features = features or LookupInstruction
+		}
+
+		// Tokens anywhere in the line
+		for (i in lineStart until lineEnd) {
+			when (code[i]) {
+				'@' -> {
+					if (code.startsWith("@crawler", i)) features = features or Crawler
+					else if (!(features has Flammable)) for (item in flammables) if (code.startsWith(item, i)) features = features or Flammable
+				}
+				'a' -> if (code.startsWith("approach", i)) features = features or MoveInstruction
+				'p' -> if (code.startsWith("pathfind", i)) features = features or MoveInstruction
+				'l' -> if (code.startsWith("logicvsfish", i)) features = features or LogicVsFish
+			}
+		}
+		lineStart = lineEnd + 1
+	}
+	return features
+}
 
-fun isMalicious(proc:LogicBlock.LogicBuild):LogicDetectionLevel {
-	val code = proc.code
+/** Classifies [code] without going through the cache */
+fun detectMalicious(code: String): LogicDetectionLevel {
 	if(code.isEmpty()) return LogicDetectionLevel.Safe
+	val features = scanFeatures(code)
 
 	//Detect "logicvsfish"
-	if(code.contains("logicvsfish")) return LogicDetectionLevel.Malicious
+	if(features has LogicVsFish) return LogicDetectionLevel.Malicious
 
 	//Detect flag malware
 	if(
-		code has SusFlagInstruction && //Hardcoded flag instruction
-		code has UnitBindInstruction && //Unit bind instruction
-		!(code has ControlFlowInstruction) //No control flow
+		features has SusFlagInstruction && //Hardcoded flag instruction
+		features has UnitBindInstruction && //Unit bind instruction
+		!(features has ControlFlowInstruction) //No control flow
 	) return LogicDetectionLevel.Malicious //Probably flagging all units
 
 	if(
-		code has FlagInstruction && //Any flag instruction
-		code has UnitBindInstruction && //Unit bind instruction
-		!(code has CheckFlagZeroInstruction) //No flag zero check
+		features has FlagInstruction && //Any flag instruction
+		features has UnitBindInstruction && //Unit bind instruction
+		!(features has CheckFlagZeroInstruction) //No flag zero check
 	) return LogicDetectionLevel.SlightlySus //Probably not flagging all units
 
 
 	//Detect suicide malware
 	if(
-		code has UnitBindInstruction && //Binds a unit
-		code has SusMoveInstruction && //Moves to hardcoded location
-		!(code has ControlFlowInstruction) //No control flow
+		features has UnitBindInstruction && //Binds a unit
+		features has SusMoveInstruction && //Moves to hardcoded location
+		!(features has ControlFlowInstruction) //No control flow
 	) return LogicDetectionLevel.Sus
 
 	if(
-		code has UnitBindInstruction && //Binds a unit
-		code has MoveInstruction && //Moves
-		!(code has CheckFlagZeroInstruction) //No flag zero check
+		features has UnitBindInstruction && //Binds a unit
+		features has MoveInstruction && //Moves
+		!(features has CheckFlagZeroInstruction) //No flag zero check
 	) return LogicDetectionLevel.SlightlySus
 
 	//Detect void items malware
 	if(
-		code has UnitBindInstruction && //Binds a unit
-		code has ItemTakeInstruction && //Takes item
-		code has ItemDropAirInstruction && //Drops to air
-		!(code has ControlFlowInstruction) //No control flow
+		features has UnitBindInstruction && //Binds a unit
+		features has ItemTakeInstruction && //Takes item
+		features has ItemDropAirInstruction && //Drops to air
+		!(features has ControlFlowInstruction) //No control flow
 	) return LogicDetectionLevel.Malicious
 
-	if(
-		code has UnitBindInstruction && //Binds a unit
-		code has MoveInstruction && //Moves
-		!(code has CheckFlagZeroInstruction) //No flag zero check
-	) return LogicDetectionLevel.Sus
-
-
 	//Detect crawler bomb malware
 	if(
-		code has UnitBindInstruction && //Binds a unit
-		code has ItemTakeInstruction && //Takes item
-		((code has Flammable &&
-		code has Crawler) || code has LookupInstruction) && //References to a flammable and crawler, or lookup
-		code has ForceShootInstruction //Tells the unit to shoot itself, for crawler this means die
-	) return if(code has ControlFlowInstruction) LogicDetectionLevel.Sus else LogicDetectionLevel.Malicious // if theres control flow instructions, then sus, otherwise malicious
+		features has UnitBindInstruction && //Binds a unit
+		features has ItemTakeInstruction && //Takes item
+		((features has Flammable &&
+		features has Crawler) || features has LookupInstruction) && //References to a flammable and crawler, or lookup
+		features has ForceShootInstruction //Tells the unit to shoot itself, for crawler this means die
+	) return if(features has ControlFlowInstruction) LogicDetectionLevel.Sus else LogicDetectionLevel.Malicious // if theres control flow instructions, then sus, otherwise malicious
 
 	//Detect crawler suicide malware
 	if(
-		code has UnitBindInstruction && //Binds a unit
-		code has Crawler && //Crawler
-		code has ForceShootInstruction && //Blows up the crawler
-		!(code has ControlFlowInstruction) //No control flow
+		features has UnitBindInstruction && //Binds a unit
+		features has Crawler && //Crawler
+		features has ForceShootInstruction && //Blows up the crawler
+		!(features has ControlFlowInstruction) //No control flow
 	) return LogicDetectionLevel.Malicious
 
 	//No checks failed
 	return LogicDetectionLevel.Safe
+}
 
-	
-	
+/** Classifies the processor's code, reusing the verdict if this code was seen before.  Safe to call from any thread. */
+fun isMalicious(proc:LogicBlock.LogicBuild):LogicDetectionLevel {
+	val code = proc.code
+	checked[proc.pos()] = code
+	return verdicts.getOrPut(code) { detectMalicious(code) }
+}
 
-}
\ No newline at end of file
+/** Called when [proc] is configured.  Drops its old verdict and checks the new code in the background so that the next scan finds it cached. */
+fun invalidateLogicVerdict(proc:LogicBlock.LogicBuild) {
+	val old = checked.remove(proc.pos())
+	if(old != null) verdicts.remove(old)
+	clientThread.post { isMalicious(proc) }
+}
+
+/** Forgets every verdict, for when a new world is loaded */
+fun clearLogicVerdicts() {
+	checked.clear()
+	verdicts.clear()
+}
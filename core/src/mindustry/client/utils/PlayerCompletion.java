@@ -1,10 +1,29 @@
 package mindustry.client.utils;
 
+import arc.*;
 import arc.struct.*;
 import arc.util.*;
+import mindustry.game.EventType.*;
 import mindustry.gen.*;
 
 public class PlayerCompletion implements Autocompleter {
+    /** Matchers by player id, updated on join and leave and checked against {@link Groups#player} before each search */
+    private final IntMap<PlayerMatcher> matchers = new IntMap<>();
+    private final CompletionIndex index = new CompletionIndex();
+    private final IntFloatMap scores = new IntFloatMap();
+    private final Seq<PlayerMatcher> results = new Seq<>();
+    private final IntSeq stale = new IntSeq();
+    private String lastInput;
+
+    @Override
+    public void initialize() {
+        Events.on(PlayerJoin.class, e -> {
+            if (e.player != null) update(e.player);
+        });
+        Events.on(PlayerLeave.class, e -> {
+            if (e.player != null) remove(e.player.id);
+        });
+    }
 
     public Autocompleteable getCompletion(String input) {
         return bestMatch(input);
@@ -22,32 +41,93 @@ public class PlayerCompletion implements Autocompleter {
     private Autocompleteable bestMatch(String input) {
         Seq<Autocompleteable> completions = closest(input);
         if (completions.isEmpty()) return null;
-        return closest(input).first();
+        return completions.peek();
     }
 
+    /** Every player, worst match first.  Only the players the index picks out are scored, the rest score 0. */
     public Seq<Autocompleteable> closest(String input) {
-        return Groups.player.array.map(PlayerMatcher::new).sort(p -> p.matches(input)).as();
+        if (!input.equals(lastInput)) {
+            sync();
+            String text = getLast(input);
+            if (text != null) index.search(text.toLowerCase(), scores);
+            else scores.clear();
+
+            results.clear();
+            for (PlayerMatcher matcher : matchers.values()) {
+                matcher.cache(input, scores.get(matcher.player.id, 0f));
+                results.add(matcher);
+            }
+            results.sort(m -> m.matches(input));
+            lastInput = input;
+        }
+        return results.<Autocompleteable>as().copy();
+    }
+
+    private void update(Player player) {
+        PlayerMatcher matcher = new PlayerMatcher(player);
+        matchers.put(player.id, matcher);
+        index.put(player.id, matcher.matchName);
+        lastInput = null;
+    }
+
+    private void remove(int id) {
+        if (matchers.remove(id) == null) return;
+        index.remove(id);
+        lastInput = null;
     }
 
-    private static class PlayerMatcher implements Autocompleteable {
+    /** Catches players that joined, left or were renamed without an event, such as while the world was loading */
+    private void sync() {
+        for (Player player : Groups.player) {
+            PlayerMatcher matcher = matchers.get(player.id);
+            if (matcher == null || matcher.player != player || matcher.rawName != player.name) update(player);
+        }
+        if (matchers.size == Groups.player.size()) return;
+        stale.clear();
+        for (IntMap.Entry<PlayerMatcher> entry : matchers) {
+            if (Groups.player.getByID(entry.key) != entry.value.player) stale.add(entry.key);
+        }
+        for (int i = 0; i < stale.size; i++) remove(stale.get(i));
+    }
+
+    /** The last word of the input without its @, or null if it doesn't start with one */
+    private static String getLast(String input) {
+        int end = input.length();
+        while (end > 0 && Character.isWhitespace(input.charAt(end - 1))) end--;
+        int start = end;
+        while (start > 0 && !Character.isWhitespace(input.charAt(start - 1))) start--;
+        if (start == end || input.charAt(start) != '@') return null;
+        return input.substring(start, end).replace("@", "");
+    }
+
+    private class PlayerMatcher implements Autocompleteable {
+        private final Player player;
+        /** The name this was made with, compared by identity to catch renames */
+        private final String rawName;
         private final String name;
         private final String matchName;
+        private String cachedInput;
+        private float cachedScore;
 
         public PlayerMatcher(Player player) {
+            this.player = player;
+            rawName = player.name;
             name = Strings.stripColors(player.name);
-            matchName = Strings.stripColors(player.name.replaceAll("\\s", ""));
+            matchName = CompletionIndex.normalize(player.name);
+        }
+
+        void cache(String input, float score) {
+            cachedInput = input;
+            cachedScore = score;
         }
 
         @Override
         public float matches(String input) {
+            if (input.equals(cachedInput)) return cachedScore;
             String text = getLast(input);
             if (text == null) return 0f;
 
-            float dst = BiasedLevenshtein.biasedLevenshteinInsensitive(text, matchName);
-            dst *= -1;
-            dst += matchName.length();
-            dst /= matchName.length();
-            return dst;
+            return index.score(text.toLowerCase(), matchName);
         }
 
         @Override
@@ -65,15 +145,5 @@ public class PlayerCompletion implements Autocompleter {
 
             return input.replace("@" + text, name);
         }
-
-        private String getLast(String input) {
-            Seq<String> strings = new Seq<>(input.split("\\s"));
-            if (strings.isEmpty()) {
-                return null;
-            }
-            String text = strings.peek();
-            if (!text.startsWith("@")) return null;
-            return text.replaceAll("@", "");
-        }
     }
 }
@@ -4,31 +4,158 @@ import arc.*
 import arc.struct.*
 import mindustry.Vars.*
 import mindustry.client.navigation.*
-import mindustry.gen.*
+import mindustry.game.*
+import mindustry.game.EventType.*
 import mindustry.graphics.*
 import mindustry.world.blocks.logic.*
 import java.util.concurrent.*
 
+/**
+ * Finds processors by their code.  Every processor in the world is kept in a [TrigramIndex] so that queries only run their regex on processors
+ * that contain the query's literals, and saved queries are rematched only on processors whose code changed, which keeps the highlights up to date.
+ * The index and saved queries belong to [clientThread], the main thread only sees [highlighted].
+ */
 object ProcessorFinder {
-    private val highlighted: CopyOnWriteArrayList<LogicBlock.LogicBuild> = CopyOnWriteArrayList()
+    private class Entry(val build: LogicBlock.LogicBuild, var code: String)
+
+    private class SavedQuery(val regex: Regex) {
+        val grams = TrigramIndex.queryOf(TrigramIndex.literalsOf(regex))
+        /** Positions of the processors that match */
+        val matches = IntSet()
+    }
+
+    /** Snapshot of the processors to highlight, replaced whole by [publish] */
+    @Volatile private var highlighted: Array<LogicBlock.LogicBuild> = emptyArray()
     val queries: CopyOnWriteArrayList<Regex> = CopyOnWriteArrayList()
 
+    // Client thread only
+    private val processors = IntMap<Entry>()
+    private val index = TrigramIndex()
+    private val saved = mutableListOf<SavedQuery>()
+    /** The queries being highlighted, the last one searched for or all of them after [searchAll] */
+    private var active = emptyList<SavedQuery>()
+    /** Only highlight processors of this team, null for every team */
+    private var activeTeam: Team? = null
+    private val candidates = IntSeq()
+    @Volatile private var invalidated = true
+
+    init {
+        Events.on(WorldLoadEvent::class.java) {
+            invalidated = true
+            highlighted = emptyArray()
+            // The client thread restarts on world load, wait for that before rebuilding
+            if (queries.isNotEmpty()) Core.app.post { clientThread.post { sync(); publish() } }
+        }
+        // Processors built with a config have their code set right after this event, so look at them next frame
+        Events.on(TileChangeEvent::class.java) { event ->
+            val build = event.tile.build as? LogicBlock.LogicBuild
+            if (build != null) Core.app.post { clientThread.post { if (!invalidated) { update(build); publish() } } }
+            else {
+                val pos = event.tile.pos() // Destroyed or deconstructed, the event comes for the processor's own tile too
+                clientThread.post { if (!invalidated && processors.containsKey(pos)) { remove(pos); publish() } }
+            }
+        }
+        Events.on(ConfigEvent::class.java) { event ->
+            val build = event.tile as? LogicBlock.LogicBuild ?: return@on
+            clientThread.post { if (!invalidated) { update(build); publish() } }
+        }
+    }
+
+    /** Brings the index up to date with the world.  Processors that were removed or changed without an event are caught here. */
+    private fun sync() {
+        if (invalidated) {
+            invalidated = false
+            processors.clear()
+            index.clear()
+            for (query in saved) query.matches.clear()
+            for (tile in world.tiles) {
+                val build = tile.build as? LogicBlock.LogicBuild ?: continue
+                if (build.tile == tile) update(build)
+            }
+            return
+        }
+
+        val iter = processors.values().iterator()
+        val stale = IntSeq()
+        while (iter.hasNext()) {
+            val entry = iter.next()
+            if (!entry.build.isValid || entry.build.tile.build !== entry.build) stale.add(entry.build.pos())
+            else if (entry.build.code !== entry.code) stale.add(entry.build.pos())
+        }
+        for (i in 0 until stale.size) {
+            val entry = processors.get(stale[i])
+            if (entry.build.isValid && entry.build.tile.build === entry.build) update(entry.build) else remove(stale[i])
+        }
+    }
+
+    /** Reindexes [build] and rematches the saved queries against it */
+    private fun update(build: LogicBlock.LogicBuild) {
+        val pos = build.pos()
+        val existing = processors.get(pos)
+        if (existing != null && existing.build === build && existing.code === build.code) return
+        if (!build.isValid) {
+            remove(pos)
+            return
+        }
+
+        val code = build.code
+        if (existing != null && existing.build === build) existing.code = code
+        else processors.put(pos, Entry(build, code))
+        index.put(pos, code)
+        for (query in saved) {
+            query.matches.remove(pos)
+            if (index.mayContain(pos, query.grams) && query.regex.containsMatchIn(code)) query.matches.add(pos)
+        }
+    }
+
+    private fun remove(pos: Int) {
+        processors.remove(pos) ?: return
+        index.remove(pos)
+        for (query in saved) query.matches.remove(pos)
+    }
+
+    /** Matches a new query against every processor, using the index to skip the ones that can't match */
+    private fun match(query: SavedQuery) {
+        candidates.clear()
+        if (index.candidates(query.grams, candidates)) {
+            for (i in 0 until candidates.size) {
+                val entry = processors.get(candidates[i]) ?: continue
+                if (query.regex.containsMatchIn(entry.code)) query.matches.add(candidates[i])
+            }
+        } else {
+            for (entry in processors.values()) if (query.regex.containsMatchIn(entry.code)) query.matches.add(entry.build.pos())
+        }
+    }
+
+    private fun matchesActive(entry: Entry) = (activeTeam == null || entry.build.team == activeTeam) && active.any { it.matches.contains(entry.build.pos()) }
+
+    /** Rebuilds [highlighted] from the active queries */
+    private fun publish() {
+        if (active.isEmpty()) {
+            highlighted = emptyArray()
+            return
+        }
+        val out = Seq<LogicBlock.LogicBuild>()
+        for (entry in processors.values()) if (matchesActive(entry)) out.add(entry.build)
+        highlighted = out.toArray(LogicBlock.LogicBuild::class.java)
+    }
+
     fun search(query: Regex) {
-        highlighted.clear()
-        val builds: Seq<Building> = player.team().data().buildings.filter { it is LogicBlock.LogicBuild }
-    
+        val team = player.team()
+
         clientThread.post {
-            var matchCount = 0
+            sync()
+            val added = SavedQuery(query)
+            match(added)
+            saved.add(added)
+            active = listOf(added)
+            activeTeam = team
+            publish()
+
+            val matchCount = highlighted.size
             var processorCount = 0
-            for (build in builds) {
-                val logicBuild = build as LogicBlock.LogicBuild
-                if (query.containsMatchIn((logicBuild.code))) {
-                    matchCount++
-                    highlighted.add(logicBuild)
-                }
-                processorCount++
-            }
-    
+            for (entry in processors.values()) if (entry.build.team == team) processorCount++
+
             Core.app.post {
                 if (matchCount == 0) player.sendMessage(Core.bundle.get("client.processorpatcher.nomatches"))
                 else player.sendMessage(Core.bundle.format("client.processorpatcher.foundmatches", matchCount, processorCount))
@@ -37,26 +164,18 @@ object ProcessorFinder {
 
         queries.add(query)
     }
-    
+
     fun searchAll() {
-        highlighted.clear()
-    
-        val tiles = world.tiles
         clientThread.post {
+            sync()
+            active = saved.toList()
+            activeTeam = null
+            publish()
+
             var matchCount = 0
-            var processorCount = 0
-            for (tile in tiles) {
-                if (tile.build is LogicBlock.LogicBuild) {
-                    for (query in queries) {
-                        if (query.containsMatchIn(((tile.build as LogicBlock.LogicBuild).code))) {
-                            matchCount++
-                            highlighted.add((tile.build as LogicBlock.LogicBuild))
-                        }
-                    }
-                    processorCount++
-                }
-            }
-    
+            for (query in active) matchCount += query.matches.size
+            val processorCount = processors.size
+
             Core.app.post {
                 if (matchCount == 0) player.sendMessage(Core.bundle.get("client.processorpatcher.nomatches"))
                 else ui.chatfrag.addMsg(Core.bundle.format("client.processorpatcher.foundmatches", matchCount, processorCount))
@@ -74,7 +193,11 @@ object ProcessorFinder {
 
     fun clear() {
         queries.clear()
-        highlighted.clear()
+        highlighted = emptyArray()
+        clientThread.post {
+            saved.clear()
+            active = emptyList()
+        }
     }
 
     fun getCount(): Int {
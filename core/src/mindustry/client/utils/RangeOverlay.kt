@@ -0,0 +1,224 @@
+package mindustry.client.utils
+
+import arc.*
+import arc.graphics.*
+import arc.graphics.g2d.*
+import arc.math.*
+import arc.math.geom.*
+import arc.struct.*
+import arc.util.*
+import mindustry.Vars.*
+import mindustry.client.ClientVars.*
+import mindustry.client.navigation.*
+import mindustry.game.*
+import mindustry.game.EventType.*
+import mindustry.graphics.*
+import kotlin.math.*
+
+/**
+ * Draws turret ranges as the outline of the area each team's turrets cover instead of one dashed circle per turret, so a dense base reads
+ * as a single border.  The outlines are baked into dashes once and only baked again when a snapshot's [ObstacleSnapshot.turretVersion]
+ * changes, drawing is then a walk over the dashes in view.  Units move, so their ranges are still drawn as circles.  Main thread only.
+ */
+object RangeOverlay {
+    /** Length of each dash and of the gap after it in world units, about what [Lines.dashCircle] uses on a mid sized turret */
+    private const val DASH = 5f
+    /** Ticks between settings reads, and between bakes when fog can reveal turrets without them changing */
+    private const val REFRESH = 60f
+
+    /** Dashes as x1, y1, x2, y2 by team id */
+    private class Layer {
+        val teams = IntMap<FloatSeq>()
+
+        fun clear() {
+            for (dashes in teams.values()) dashes.clear()
+        }
+    }
+
+    private val ground = Layer()
+    private val air = Layer()
+    private val allies = Layer()
+    private var enemyVersion = -1
+    private var allyVersion = -1
+    private var bakedTeam: Team? = null
+    private val timer = Interval(2)
+
+    private var enemyUnits = false
+    private var allyUnits = false
+    private var showAll = false
+
+    private val circles = Seq<TurretPathfindingEntity>()
+    private val covered = FloatSeq()
+
+    init {
+        Events.on(WorldLoadEvent::class.java) {
+            enemyVersion = -1
+            allyVersion = -1
+            ground.teams.clear()
+            air.teams.clear()
+            allies.teams.clear()
+        }
+        readSettings()
+    }
+
+    private fun readSettings() {
+        enemyUnits = Core.settings.getBool("enemyunitranges")
+        allyUnits = Core.settings.getBool("allyunitranges")
+        val all = Core.settings.getBool("showallturrets")
+        if (all != showAll) enemyVersion = -1
+        showAll = all
+    }
+
+    fun draw(bounds: Rect) {
+        if (!showingTurrets && !showingInvTurrets && !showingAllyTurrets) return
+        if (timer.get(0, REFRESH)) readSettings()
+        val enemy = Navigation.getTree()
+        val ally = Navigation.getAllyTree()
+        val team = player.team()
+        val fog = state.rules.fog && !showAll && timer.get(1, REFRESH)
+        if (enemy.turretVersion != enemyVersion || team != bakedTeam || fog) {
+            enemyVersion = enemy.turretVersion
+            bakedTeam = team
+            bake(ground, enemy.ents) { it.targetGround && (showAll || fogControl.isDiscovered(team, it.entity.tileX(), it.entity.tileY())) }
+            bake(air, enemy.ents) { it.targetAir && (showAll || fogControl.isDiscovered(team, it.entity.tileX(), it.entity.tileY())) }
+        }
+        if (ally.turretVersion != allyVersion) {
+            allyVersion = ally.turretVersion
+            bake(allies, ally.ents) { it.targetGround || it.targetAir }
+        }
+
+        if (showingTurrets || showingInvTurrets) {
+            val flying = player.unit().isFlying
+            val hits = if (flying) air else ground
+            val misses = if (flying) ground else air
+            val hitsColor = if (showingTurrets) null else Team.derelict.color
+            val missesColor = if (showingInvTurrets) null else Team.derelict.color
+            // Gray outlines first so that colored ones stay on top where a turret is in both layers
+            if (hitsColor == null) {
+                draw(misses, bounds, missesColor)
+                draw(hits, bounds, null)
+            } else {
+                draw(hits, bounds, hitsColor)
+                draw(misses, bounds, missesColor)
+            }
+
+            if (enemyUnits) enemy.units.intersect(bounds) {
+                if (!(showAll || fogControl.isDiscovered(team, it.entity.tileX(), it.entity.tileY()))) return@intersect
+                if (it.canShoot() && (it.targetAir || it.targetGround)) {
+                    val valid = if (flying) it.targetAir else it.targetGround
+                    val validInv = if (flying) it.targetGround else it.targetAir
+                    Drawf.dashCircle(it.x(), it.y(), it.range, if ((valid && showingTurrets) || (validInv && showingInvTurrets)) it.entity.team().color else Team.derelict.color)
+                }
+            }
+        }
+        if (showingAllyTurrets) {
+            draw(allies, bounds, null)
+            if (allyUnits) ally.units.intersect(bounds) {
+                if (it.canShoot() && (it.targetAir || it.targetGround)) Drawf.dashCircle(it.x(), it.y(), it.range, it.entity.team().color)
+            }
+        }
+    }
+
+    /** Draws the dashes in [bounds] in each team's color, or [color] if it is set */
+    private fun draw(layer: Layer, bounds: Rect, color: Color?) {
+        val x1 = bounds.x - DASH
+        val y1 = bounds.y - DASH
+        val x2 = bounds.x + bounds.width + DASH
+        val y2 = bounds.y + bounds.height + DASH
+        for (entry in layer.teams) {
+            val dashes = entry.value
+            if (dashes.isEmpty) continue
+            for (pass in 0..1) {
+                if (pass == 0) Lines.stroke(3f, Pal.gray) else Lines.stroke(1f, color ?: Team.get(entry.key).color)
+                val items = dashes.items
+                var i = 0
+                while (i < dashes.size) {
+                    val x = items[i]
+                    val y = items[i + 1]
+                    if (x in x1..x2 && y in y1..y2) Lines.line(x, y, items[i + 2], items[i + 3])
+                    i += 4
+                }
+            }
+        }
+        Draw.reset()
+    }
+
+    /** Replaces [layer] with the outlines of the turrets in [ents] that can shoot and pass [filter], unioned per team */
+    private inline fun bake(layer: Layer, ents: Seq<TurretPathfindingEntity>, filter: (TurretPathfindingEntity) -> Boolean) {
+        layer.clear()
+        circles.clear()
+        for (i in 0 until ents.size) { // Not the iterator, the snapshot's Seq is shared with other threads
+            val ent = ents.items[i]
+            if (ent.turret && ent.shooting && filter(ent)) circles.add(ent)
+        }
+        if (circles.isEmpty) return
+        val grid = EntityGrid.of(world.unitWidth().toFloat(), world.unitHeight().toFloat(), circles)
+        for (i in 0 until circles.size) {
+            val circle = circles.items[i]
+            val team = circle.entity.team().id
+            outline(circle, grid, layer.teams.get(team) ?: FloatSeq().also { layer.teams.put(team, it) })
+        }
+        circles.clear()
+    }
+
+    /** Adds dashes along the parts of [circle]'s edge that no other circle of its team in [grid] covers */
+    private fun outline(circle: TurretPathfindingEntity, grid: EntityGrid, out: FloatSeq) {
+        val r = circle.range
+        if (r <= 0f) return
+        covered.clear()
+        var hidden = false
+        grid.intersect(circle.x() - r, circle.y() - r, r * 2, r * 2) { other ->
+            if (hidden || other === circle || other.entity.team() != circle.entity.team()) return@intersect
+            val dx = other.x() - circle.x()
+            val dy = other.y() - circle.y()
+            val d = sqrt(dx * dx + dy * dy)
+            if (d + r <= other.range) { // Inside the other circle, identical circles keep the oldest
+                if (d + r < other.range || other.id < circle.id) hidden = true
+                return@intersect
+            }
+            if (d >= r + other.range || d + other.range <= r) return@intersect // Apart, or the other circle is inside this one
+            val half = acos(((r * r + d * d - other.range * other.range) / (2 * r * d)).coerceIn(-1f, 1f))
+            val start = Mathf.mod(atan2(dy, dx) - half, Mathf.PI2)
+            val end = start + half * 2
+            if (end > Mathf.PI2) {
+                cover(start, Mathf.PI2)
+                cover(0f, end - Mathf.PI2)
+            } else cover(start, end)
+        }
+        if (hidden) return
+
+        var from = 0f
+        var i = 0
+        while (i < covered.size) {
+            if (covered[i] > from) dashes(circle, from, covered[i], out)
+            from = max(from, covered[i + 1])
+            i += 2
+        }
+        if (from < Mathf.PI2) dashes(circle, from, Mathf.PI2, out)
+    }
+
+    /** Inserts the covered angles [start] to [end] into [covered], kept sorted by start.  There are only ever a handful per circle. */
+    private fun cover(start: Float, end: Float) {
+        var i = covered.size
+        covered.add(start, end)
+        while (i > 0 && covered[i - 2] > start) {
+            covered[i] = covered[i - 2]
+            covered[i + 1] = covered[i - 1]
+            i -= 2
+        }
+        covered[i] = start
+        covered[i + 1] = end
+    }
+
+    /** Adds the dashes between angles [from] and [to] on [circle], lined up with the circle's other dashes */
+    private fun dashes(circle: TurretPathfindingEntity, from: Float, to: Float, out: FloatSeq) {
+        val step = DASH / circle.range
+        var k = floor(from / (step * 2)).toInt()
+        while (k * step * 2 < to) {
+            val a = max(from, k * step * 2)
+            val b = min(to, k * step * 2 + step)
+            if (b > a) out.add(circle.x() + cos(a) * circle.range, circle.y() + sin(a) * circle.range, circle.x() + cos(b) * circle.range, circle.y() + sin(b) * circle.range)
+            k++
+        }
+    }
+}
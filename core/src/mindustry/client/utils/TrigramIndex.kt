@@ -0,0 +1,197 @@
+package mindustry.client.utils
+
+import arc.struct.*
+
+/**
+ * An inverted index from every run of three characters to the ids of the texts containing it.
+ * A text can only contain a literal if it contains all of the literal's trigrams, so this narrows down which texts are worth running a regex on.
+ * Not thread safe.
+ */
+class TrigramIndex {
+    private val postings = LongMap<IntSet>()
+    /** The sorted trigrams of each text, needed to take it back out of [postings] */
+    private val grams = IntMap<LongArray>()
+
+    val size get() = grams.size
+
+    /** Indexes [text] under [id], replacing what was there before. */
+    fun put(id: Int, text: String) {
+        remove(id)
+        val trigrams = trigrams(text)
+        grams.put(id, trigrams)
+        for (t in trigrams) {
+            val set = postings.get(t) ?: IntSet().also { postings.put(t, it) }
+            set.add(id)
+        }
+    }
+
+    fun remove(id: Int) {
+        val trigrams = grams.remove(id) ?: return
+        for (t in trigrams) {
+            val set = postings.get(t) ?: continue
+            set.remove(id)
+            if (set.isEmpty) postings.remove(t)
+        }
+    }
+
+    fun clear() {
+        postings.clear()
+        grams.clear()
+    }
+
+    /** Whether the text under [id] has every trigram in [query], see [queryOf]. */
+    fun mayContain(id: Int, query: LongArray): Boolean {
+        val trigrams = grams.get(id) ?: return false
+        for (t in query) if (trigrams.binarySearch(t) < 0) return false
+        return true
+    }
+
+    /**
+     * Adds the ids of every text that has all trigrams in [query] to [out].
+     * @return false if [query] is empty and so can't rule anything out, [out] is left alone
+     */
+    fun candidates(query: LongArray, out: IntSeq): Boolean {
+        if (query.isEmpty()) return false
+        var smallest: IntSet? = null
+        for (t in query) { // Walk the rarest trigram and check the rest against it
+            val set = postings.get(t) ?: return true
+            if (smallest == null || set.size < smallest.size) smallest = set
+        }
+        val iter = smallest!!.iterator()
+        while (iter.hasNext) {
+            val id = iter.next()
+            if (mayContain(id, query)) out.add(id)
+        }
+        return true
+    }
+
+    /** Adds one to [counts] for every text under each trigram in [query], so each text ends up with the number of them it has. */
+    fun count(query: LongArray, counts: IntIntMap) {
+        for (t in query) {
+            val set = postings.get(t) ?: continue
+            val iter = set.iterator()
+            while (iter.hasNext) counts.getAndIncrement(iter.next(), 0, 1)
+        }
+    }
+
+    companion object {
+        private fun pack(text: CharSequence, i: Int) = (text[i].code.toLong() shl 32) or (text[i + 1].code.toLong() shl 16) or text[i + 2].code.toLong()
+
+        /** The sorted, distinct trigrams of [text] */
+        fun trigrams(text: CharSequence): LongArray {
+            if (text.length < 3) return LongArray(0)
+            val out = LongArray(text.length - 2) { pack(text, it) }
+            out.sort()
+            var size = 0
+            for (i in out.indices) if (i == 0 || out[i] != out[i - 1]) out[size++] = out[i]
+            return out.copyOf(size)
+        }
+
+        /** The trigrams a text needs to have to contain all of [literals], sorted and distinct */
+        fun queryOf(literals: List<String>): LongArray = trigrams(literals.joinToString("\u0000")).filter { t ->
+            // Drop trigrams spanning the separator
+            (t shr 32).toInt() != 0 && (t shr 16 and 0xFFFF).toInt() != 0 && (t and 0xFFFF).toInt() != 0
+        }.toLongArray()
+
+        /**
+         * Literal strings that every match of [regex] must contain, for use with [queryOf].  Only looks at the top level of the pattern and
+         * gives up on anything it doesn't understand, so the result may be empty but never has a string a match could go without.
+         */
+        fun literalsOf(regex: Regex): List<String> {
+            if (regex.options.isNotEmpty()) return emptyList() // Case insensitive and such
+            val pattern = regex.pattern
+            val out = mutableListOf<String>()
+            val current = StringBuilder()
+            fun flush() {
+                if (current.length >= 3) out.add(current.toString())
+                current.setLength(0)
+            }
+
+            var depth = 0
+            var lastWasLiteral = false // The previous item is the last char of current
+            var lastWasQuantifier = false // So that lazy and possessive modifiers aren't read as quantifiers
+            var i = 0
+            while (i < pattern.length) {
+                val c = pattern[i++]
+                if (c == '\\') {
+                    if (i >= pattern.length) return emptyList()
+                    val escaped = pattern[i++]
+                    // \Q quotes, and these take arguments (\x41, \u0041, \0101, \cA, \k<name>, \p{L}, \N{name}) that aren't literals
+                    if (escaped == 'Q' || escaped in "xuc0kpPN") return emptyList()
+                    if (depth == 0 && !escaped.isLetterOrDigit()) {
+                        current.append(escaped)
+                        lastWasLiteral = true
+                    } else {
+                        if (depth == 0) flush()
+                        lastWasLiteral = false
+                    }
+                    lastWasQuantifier = false
+                    continue
+                }
+                if (c == '(' && i + 1 < pattern.length && pattern[i] == '?' && (pattern[i + 1].isLetter() || pattern[i + 1] == '-')) return emptyList() // Inline flags like (?i)
+                if (c == '[') { // Skip the class
+                    if (i < pattern.length && pattern[i] == '^') i++
+                    if (i < pattern.length && pattern[i] == ']') i++ // A leading ] is literal
+                    while (i < pattern.length && pattern[i] != ']') {
+                        if (pattern[i] == '[') return emptyList() // Nested classes
+                        if (pattern[i] == '\\') i++
+                        i++
+                    }
+                    i++
+                    if (depth == 0) flush()
+                    lastWasLiteral = false
+                    lastWasQuantifier = false
+                    continue
+                }
+                if (depth > 0) { // Groups may be optional or repeated, only track where they end
+                    when (c) {
+                        '(' -> depth++
+                        ')' -> depth--
+                    }
+                    lastWasLiteral = false
+                    lastWasQuantifier = false
+                    continue
+                }
+                when (c) {
+                    '|' -> return emptyList()
+                    '(' -> { flush(); depth++ }
+                    '?', '*' -> if (!lastWasQuantifier) {
+                        if (lastWasLiteral) current.setLength(current.length - 1) // The char may not be there
+                        flush()
+                        lastWasQuantifier = true
+                        lastWasLiteral = false
+                        continue
+                    }
+                    '+' -> if (!lastWasQuantifier) {
+                        flush() // The char is there but may be followed by more of itself
+                        lastWasQuantifier = true
+                        lastWasLiteral = false
+                        continue
+                    }
+                    '{' -> {
+                        var min = 0
+                        while (i < pattern.length && pattern[i].isDigit()) min = min * 10 + (pattern[i++] - '0')
+                        while (i < pattern.length && pattern[i] != '}') i++
+                        i++
+                        if (lastWasLiteral && min == 0) current.setLength(current.length - 1)
+                        flush()
+                        lastWasQuantifier = true
+                        lastWasLiteral = false
+                        continue
+                    }
+                    '.', '^', '$', ')' -> flush()
+                    else -> {
+                        current.append(c)
+                        lastWasLiteral = true
+                        lastWasQuantifier = false
+                        continue
+                    }
+                }
+                lastWasLiteral = false
+                lastWasQuantifier = false
+            }
+            if (depth == 0) flush()
+            return out
+        }
+    }
+}
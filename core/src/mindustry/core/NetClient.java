@@ -593,6 +593,7 @@ public class NetClient implements ApplicationListener{
 
         //read the entity
         entity.readSync(read);
+        if(entity instanceof Unit u && u.isPlayer()) BuildPlanCommunicationSystem.scan(u.getPlayer(), u.plans);
 
         if(created){
             //snap initial starting position
@@ -436,6 +436,19 @@ public class EventType{
         }
     }
 
+    /**
+     * Called when a tile may have become solid or passable without its block changing, such as a door opening or closing.
+     * Event object is reused, do not nest!
+     * */
+    public static class TileSolidityChangeEvent{
+        public Tile tile;
+
+        public TileSolidityChangeEvent set(Tile tile){
+            this.tile = tile;
+            return this;
+        }
+    }
+
     /**
      * Called after a building's team changes.
      * Event object is reused, do not nest!
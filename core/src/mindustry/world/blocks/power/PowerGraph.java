@@ -3,6 +3,7 @@ package mindustry.world.blocks.power;
 import arc.math.*;
 import arc.struct.*;
 import arc.util.*;
+import mindustry.client.antigrief.*;
 import mindustry.gen.*;
 import mindustry.world.consumers.*;
 
@@ -269,6 +270,7 @@ public class PowerGraph{
 
         //other entity should be removed as the graph was merged
         if(graph.entity != null) graph.entity.remove();
+        PowerInfo.changed(graph);
 
         all.ensureCapacity(graph.all.size);
         batteries.ensureCapacity(graph.batteries.size);
@@ -284,6 +286,7 @@ public class PowerGraph{
         //any old graph that is added here MUST be invalid, remove it
         if(build.power.graph != null && build.power.graph != this && build.power.graph.entity != null) {
             build.power.graph.entity.remove();
+            PowerInfo.changed(build.power.graph);
         }
 
         addDirectly(build);
@@ -293,6 +296,7 @@ public class PowerGraph{
         build.power.graph = this;
         build.power.init = true;
         all.add(build);
+        PowerInfo.changed(this);
 
         if(build.block.outputsPower && build.block.consumesPower && build.block.consPower.buffered){
             batteries.add(build);
@@ -308,6 +312,12 @@ public class PowerGraph{
 
     public void checkAdd(){
         if(entity != null) entity.add();
+        PowerInfo.changed(this);
+    }
+
+    /** @return whether this graph is updating and has buildings, rather than empty or invalidated by a merge or split */
+    public boolean isActive(){
+        return entity != null && entity.isAdded() && all.size > 0;
     }
 
     public void clear(){
@@ -317,6 +327,7 @@ public class PowerGraph{
         batteries.clear();
         //nothing left
         if(entity != null) entity.remove();
+        PowerInfo.changed(this);
     }
 
     public void reflow(Building tile){
@@ -381,6 +392,7 @@ public class PowerGraph{
 
         //implied empty graph here
         if(entity != null) entity.remove();
+        PowerInfo.changed(this);
     }
 
     @Deprecated
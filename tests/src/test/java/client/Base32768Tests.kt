@@ -0,0 +1,88 @@
+package client
+
+import mindustry.client.communication.*
+import org.junit.jupiter.api.*
+import java.math.*
+import java.nio.*
+import kotlin.random.*
+
+/** Checks [Base32768Coder] against the BigInteger implementation it replaced, and times the two. */
+class Base32768Tests {
+    /** The old Base32768Coder.encode */
+    private fun legacyEncode(input: ByteArray): String {
+        var inp = BigInteger(byteArrayOf(1).plus(input))
+        val out = mutableListOf<Int>()
+        val andValue = 2.toBigInteger().pow(15) - 1.toBigInteger()
+        while (inp != BigInteger.ZERO) {
+            out.add((inp and andValue).toInt() + 128)
+            inp = inp shr 15
+        }
+        return String(out.toIntArray(), 0, out.size) + String(intArrayOf(input.size + 128), 0, 1)
+    }
+
+    /** The old Base32768Coder.decode */
+    private fun legacyDecode(input: String): ByteArray {
+        val length = input.codePointAt(input.length - 1) - 128
+        var out = BigInteger("0")
+        for ((index, s) in input.dropLast(1).chunked(1).withIndex()) {
+            out += (s.codePointAt(0) - 128).toBigInteger() shl (index * 15)
+        }
+        return out.toByteArray().plus(0).sliceArray(1..length)
+    }
+
+    @Test
+    fun compatible() {
+        val random = Random(0)
+        for (size in 0..200) {
+            val bytes = random.nextBytes(size)
+            val encoded = Base32768Coder.encode(bytes)
+            Assertions.assertEquals(legacyEncode(bytes), encoded)
+            Assertions.assertEquals(Base32768Coder.encodedLengthOf(size), encoded.length)
+            Assertions.assertArrayEquals(bytes, legacyDecode(encoded))
+            Assertions.assertArrayEquals(bytes, Base32768Coder.decode(encoded))
+        }
+
+        // Buffers are read and written from their positions and reused between chunks
+        val chars = CharBuffer.allocate(Base32768Coder.encodedLengthOf(100))
+        val bytes = ByteBuffer.allocate(110)
+        repeat(5) {
+            val chunk = random.nextBytes(100)
+            chars.clear()
+            Base32768Coder.encode(ByteBuffer.wrap(chunk), chars)
+            chars.flip()
+            bytes.clear().position(10)
+            Base32768Coder.decode(chars, bytes)
+            Assertions.assertEquals(110, bytes.position())
+            Assertions.assertArrayEquals(chunk, bytes.array().copyOfRange(10, 110))
+        }
+
+        Assertions.assertThrows(java.io.IOException::class.java) { Base32768Coder.decode("not encoded") }
+    }
+
+    @Test @Tag("benchmark")
+    fun benchmark() {
+        val random = Random(0)
+        for (size in intArrayOf(16, 256, 4096, 16384)) {
+            val inputs = Array(maxOf(4, (1 shl 18) / size)) { random.nextBytes(size) } // 256KB each, the legacy coder is quadratic in the size
+            val encoded = inputs.map(Base32768Coder::encode)
+
+            repeat(2) { // Warmup
+                for (input in inputs) legacyEncode(input)
+                for (input in inputs) Base32768Coder.encode(input)
+            }
+
+            var start = System.nanoTime()
+            for (input in inputs) legacyEncode(input)
+            for (string in encoded) legacyDecode(string)
+            val legacyTime = (System.nanoTime() - start) / 1_000_000.0
+
+            start = System.nanoTime()
+            for (input in inputs) Base32768Coder.encode(input)
+            for (string in encoded) Base32768Coder.decode(string)
+            val time = (System.nanoTime() - start) / 1_000_000.0
+
+            val mb = inputs.size.toDouble() * size / (1 shl 20)
+            println("${inputs.size} x $size bytes: legacy $legacyTime ms (${mb * 2000 / legacyTime} MB/s), linear $time ms (${mb * 2000 / time} MB/s)")
+        }
+    }
+}
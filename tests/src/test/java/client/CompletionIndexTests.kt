@@ -0,0 +1,64 @@
+package client
+
+import arc.struct.*
+import mindustry.client.utils.*
+import org.junit.jupiter.api.*
+
+class CompletionIndexTests {
+    private fun best(index: CompletionIndex, query: String): Int {
+        val out = IntFloatMap()
+        index.search(query, out)
+        var best = -1
+        var bestScore = -1f
+        for (entry in out) if (entry.value > bestScore) { best = entry.key; bestScore = entry.value }
+        return best
+    }
+
+    @Test
+    fun testSearch() {
+        val index = CompletionIndex()
+        val names = listOf("[red]Foo Bar", "foobarbaz", "Buthed010203", "zxcvbnm", "someone", "anyone")
+        names.forEachIndexed { i, name -> index.put(i, CompletionIndex.normalize(name)) }
+
+        Assertions.assertEquals("foobar", CompletionIndex.normalize("[red]Foo Bar"))
+        Assertions.assertEquals(0, best(index, "foobar"))
+        Assertions.assertEquals(2, best(index, "buthed"))
+        Assertions.assertEquals(3, best(index, "zx")) // Too short for trigrams, everything gets scored
+        // Typing onto the end of the last query
+        Assertions.assertEquals(4, best(index, "some"))
+        Assertions.assertEquals(4, best(index, "someo"))
+        Assertions.assertEquals(5, best(index, "anyo"))
+
+        index.remove(0)
+        Assertions.assertEquals(1, best(index, "foobar"))
+    }
+
+    @Test
+    fun testPrunes() {
+        val index = CompletionIndex()
+        val names = List(100) { i -> "player$i" } + "zxcvbnm"
+        names.forEachIndexed { i, name -> index.put(i, name) }
+
+        val out = IntFloatMap()
+        index.search("zxcv", out)
+        Assertions.assertEquals(1, out.size) // Only the name sharing a trigram is scored
+        Assertions.assertEquals(100, best(index, "zxcv"))
+        index.search("qqqq", out)
+        Assertions.assertEquals(names.size, out.size) // Nothing shares a trigram, so everything is
+    }
+
+    @Test
+    fun testMatchesFullSearch() {
+        val index = CompletionIndex()
+        val names = List(200) { i -> "player${i * 7919 % 1000}x${i % 13}" }
+        names.forEachIndexed { i, name -> index.put(i, name) }
+
+        for (query in listOf("player12", "layer99x", "pl", "x12", "player500x")) {
+            val out = IntFloatMap()
+            index.search(query, out)
+            val expected = names.indices.maxOf { index.score(query, names[it]) }
+            val actual = out.maxOf { it.value }
+            Assertions.assertEquals(expected, actual, query)
+        }
+    }
+}
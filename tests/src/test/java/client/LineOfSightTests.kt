@@ -0,0 +1,80 @@
+package client
+
+import mindustry.client.navigation.*
+import org.junit.jupiter.api.*
+import kotlin.math.*
+import kotlin.random.*
+
+/** Checks [lineCost], and times it against the fixed 200 sample ray the A* navigators used to relax paths with. */
+class LineOfSightTests {
+    private val size = 500
+    private val costs = FloatArray(size * size) { 1f }
+
+    private fun cost(x: Int, y: Int) = costs[x + y * size]
+
+    /** The old AStarNavigatorOptimised.lineOfSight */
+    private fun legacy(x1: Int, y1: Int, x2: Int, y2: Int): Float {
+        val length = sqrt(1f * (x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1))
+        if (abs(x1 - x2) == 1 && abs(y1 - y2) == 1) return if (cost(x1, y2).isInfinite() || cost(x2, y1).isInfinite()) Float.POSITIVE_INFINITY else length
+        var cost = 0f
+        var x = x1.toFloat()
+        var y = y1.toFloat()
+        val step = length / 200
+        val dx = (x2 - x) / 200
+        val dy = (y2 - y) / 200
+        for (i in 0 until 200) {
+            x += dx
+            y += dy
+            val c = cost(x.roundToInt(), y.roundToInt())
+            if (c.isInfinite()) return Float.POSITIVE_INFINITY
+            cost += (c - 1) * step
+        }
+        return cost + length
+    }
+
+    @Test
+    fun exact() {
+        Assertions.assertEquals(10f, lineCost(0, 0, 10, 0, ::cost), 1e-4f)
+        Assertions.assertEquals(5f, lineCost(0, 0, 3, 4, ::cost), 1e-4f)
+
+        costs[5 + 0 * size] = 3f // The line spends one tile inside this cell
+        Assertions.assertEquals(12f, lineCost(0, 0, 10, 0, ::cost), 1e-4f)
+        costs.fill(1f)
+
+        // A one tile thick diagonal wall that only touches the line at corners
+        for (i in 0 until 20) costs[(i + 1) + (20 - i) * size] = Float.POSITIVE_INFINITY
+        Assertions.assertEquals(Float.POSITIVE_INFINITY, lineCost(0, 0, 20, 20, ::cost))
+        costs.fill(1f)
+    }
+
+    @Test @Tag("benchmark")
+    fun benchmark() {
+        val random = Random(0)
+        for (i in costs.indices) if (random.nextInt(10) == 0) costs[i] = 101f // Turret coverage, nothing blocked so every ray is walked to the end
+        val segments = IntArray(4 * 100_000) { random.nextInt(size) }
+        val lengths = intArrayOf(2, 8, 32, 128, 499)
+
+        for (maxLength in lengths) {
+            for (i in segments.indices step 4) { // Clamp each segment to at most maxLength tiles per axis
+                segments[i + 2] = (segments[i] + (segments[i + 2] % (2 * maxLength + 1)) - maxLength).coerceIn(0, size - 1)
+                segments[i + 3] = (segments[i + 1] + (segments[i + 3] % (2 * maxLength + 1)) - maxLength).coerceIn(0, size - 1)
+            }
+            var legacySum = 0f
+            var exactSum = 0f
+            repeat(2) { // Warmup
+                for (i in segments.indices step 4) legacySum += legacy(segments[i], segments[i + 1], segments[i + 2], segments[i + 3])
+                for (i in segments.indices step 4) exactSum += lineCost(segments[i], segments[i + 1], segments[i + 2], segments[i + 3], ::cost)
+            }
+
+            var start = System.nanoTime()
+            for (i in segments.indices step 4) legacySum += legacy(segments[i], segments[i + 1], segments[i + 2], segments[i + 3])
+            val legacyTime = (System.nanoTime() - start) / 1_000_000.0
+            start = System.nanoTime()
+            for (i in segments.indices step 4) exactSum += lineCost(segments[i], segments[i + 1], segments[i + 2], segments[i + 3], ::cost)
+            val exactTime = (System.nanoTime() - start) / 1_000_000.0
+
+            println("${segments.size / 4} rays of up to $maxLength tiles: legacy $legacyTime ms, exact $exactTime ms (costs $legacySum vs $exactSum)")
+            Assertions.assertFalse(exactSum.isNaN())
+        }
+    }
+}
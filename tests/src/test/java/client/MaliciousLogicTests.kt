@@ -0,0 +1,36 @@
+package client
+
+import mindustry.client.utils.*
+import org.junit.jupiter.api.*
+
+class MaliciousLogicTests {
+    @Test
+    fun testDetection() {
+        Assertions.assertEquals(LogicDetectionLevel.Safe, detectMalicious(""))
+        Assertions.assertEquals(LogicDetectionLevel.Safe, detectMalicious("print \"hello\"\nprintflush message1"))
+        Assertions.assertEquals(LogicDetectionLevel.Malicious, detectMalicious("print \"logicvsfish\""))
+
+        // Flags every unit it can bind
+        Assertions.assertEquals(LogicDetectionLevel.Malicious, detectMalicious("ubind @poly\nucontrol flag 12 0 0 0 0"))
+        // Flags units, but only ones without a flag
+        val checked = "ubind @poly\nsensor f @unit @flag\njump 0 notEqual f 0\nucontrol flag 12 0 0 0 0"
+        Assertions.assertEquals(LogicDetectionLevel.Safe, detectMalicious(checked))
+        // The check has to come after the sensor
+        Assertions.assertEquals(LogicDetectionLevel.SlightlySus, detectMalicious("ubind @poly\njump 0 notEqual f 0\nsensor f @unit @flag\nucontrol flag 12 0 0 0 0"))
+        // And compare the same variable
+        Assertions.assertEquals(LogicDetectionLevel.SlightlySus, detectMalicious("ubind @poly\nsensor f @unit @flag\njump 0 notEqual g 0\nucontrol flag x 0 0 0 0"))
+
+        // Walks every unit into a hardcoded spot
+        Assertions.assertEquals(LogicDetectionLevel.Sus, detectMalicious("ubind @mono\nucontrol move 10 20 0 0 0"))
+        Assertions.assertEquals(LogicDetectionLevel.SlightlySus, detectMalicious("ubind @mono\nset x 5\nucontrol approach x 20 5 0 0"))
+
+        // Throws items away
+        Assertions.assertEquals(LogicDetectionLevel.Malicious, detectMalicious("ubind @mega\nucontrol itemTake core @copper 30 0 0\nucontrol itemDrop @air 30 0 0 0"))
+
+        // Crawler bombs
+        val bomb = "ubind @crawler\nucontrol itemTake core @blast-compound 10 0 0\nucontrol targetp @unit 1 0 0 0"
+        Assertions.assertEquals(LogicDetectionLevel.Malicious, detectMalicious(bomb))
+        Assertions.assertEquals(LogicDetectionLevel.Sus, detectMalicious("$bomb\njump 0 always 0 0"))
+        Assertions.assertEquals(LogicDetectionLevel.Malicious, detectMalicious("ubind @crawler\nucontrol targetp @unit true 0 0 0"))
+    }
+}
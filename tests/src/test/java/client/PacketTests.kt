@@ -1,5 +1,6 @@
 package client
 
+import arc.util.*
 import mindustry.client.communication.*
 import mindustry.client.communication.DummyCommunicationSystem
 import org.junit.jupiter.api.*
@@ -48,4 +49,108 @@ class PacketTests {
         Assertions.assertArrayEquals(transmission2.content, output2)
         Assertions.assertArrayEquals(transmission3.content, output3)
     }
+
+    @Test
+    fun testReassembly() {
+        val pool = mutableListOf<DummyCommunicationSystem>()
+        val client = Packets.CommunicationClient(DummyCommunicationSystem(pool))
+        val recorder = DummyCommunicationSystem(pool)
+        val packets = mutableListOf<ByteArray>()
+        recorder.addListener { bytes, _ -> packets.add(bytes) }
+
+        val transmission = DummyTransmission(Random.nextBytes(4096))
+        client.send(transmission)
+        for (i in 0..200) client.update()
+        Assertions.assertTrue(packets.size > 2)
+
+        // Deliver the packets out of order and with duplicates, the last one first so the packet size is not known yet
+        val receiver = ReplaySystem()
+        val output = mutableListOf<ByteArray>()
+        Packets.CommunicationClient(receiver).addListener { t, _ -> if (t is DummyTransmission) output.add(t.content) }
+        receiver.receive(packets.last())
+        for (bytes in packets.shuffled(Random(0))) receiver.receive(bytes)
+        receiver.receive(packets.first())
+
+        Assertions.assertEquals(1, output.size)
+        Assertions.assertArrayEquals(transmission.content, output[0])
+    }
+
+    @Test
+    fun testScheduling() {
+        val pool = mutableListOf<DummyCommunicationSystem>()
+        val client = Packets.CommunicationClient(CarrierSystem(DummyCommunicationSystem(pool), DummyCommunicationSystem(pool)))
+        val received = mutableListOf<Long>()
+        Packets.CommunicationClient(DummyCommunicationSystem(pool)).addListener { t, _ -> received.add(t.id) }
+
+        val bulk = DummyTransmission(Random.nextBytes(4096))
+        val message = MessageTransmission("hello")
+        client.send(bulk)
+        client.update()
+        client.send(message)
+        for (i in 0..300) client.update()
+
+        // The message jumps ahead of the rest of the larger transmission
+        Assertions.assertEquals(listOf(message.id, bulk.id), received)
+        val stats = client.stats.first { it.name == "MessageTransmission" }
+        Assertions.assertEquals(1, stats.sent)
+        Assertions.assertEquals(1, stats.packets)
+    }
+
+    @Test
+    fun testOrderAcrossCarriers() {
+        val pool = mutableListOf<DummyCommunicationSystem>()
+        val client = Packets.CommunicationClient(CarrierSystem(SlowSystem(DummyCommunicationSystem(pool)), DummyCommunicationSystem(pool)))
+        val received = mutableListOf<Long>()
+        Packets.CommunicationClient(DummyCommunicationSystem(pool)).addListener { t, _ -> received.add(t.id) }
+
+        // The first starts on the slow carrier, the second must not overtake it on the fast one
+        val first = DummyTransmission(Random.nextBytes(1024))
+        val second = DummyTransmission(Random.nextBytes(16))
+        client.send(first)
+        client.send(second)
+        val time = Time.time
+        try {
+            Time.time = 100f
+            for (i in 0..600) {
+                client.update()
+                Time.time++
+            }
+        } finally {
+            Time.time = time
+        }
+
+        Assertions.assertEquals(listOf(first.id, second.id), received)
+    }
+
+    /** Sends on [inner] no more than once every 5 ticks */
+    private class SlowSystem(private val inner: CommunicationSystem) : CommunicationSystem() {
+        override val listeners: MutableList<(ByteArray, Int) -> Unit> = mutableListOf()
+        override val id = inner.id
+        override val MAX_LENGTH = inner.MAX_LENGTH
+        override val RATE = 5f
+
+        override fun send(bytes: ByteArray) = inner.send(bytes)
+    }
+
+    private class CarrierSystem(vararg carriers: CommunicationSystem) : CommunicationSystem() {
+        override val listeners: MutableList<(ByteArray, Int) -> Unit> = mutableListOf()
+        override val id = 0
+        override val MAX_LENGTH = 64
+        override val RATE = 0f
+        override val secure = true
+        override val carriers = carriers.toList()
+
+        override fun send(bytes: ByteArray) = throw UnsupportedOperationException()
+    }
+
+    private class ReplaySystem : CommunicationSystem() {
+        override val listeners: MutableList<(ByteArray, Int) -> Unit> = mutableListOf()
+        override val id = 0
+        override val MAX_LENGTH = 64
+        override val RATE = 0f
+
+        override fun send(bytes: ByteArray) {}
+
+        fun receive(bytes: ByteArray) = listeners.forEach { it(bytes, 1) }
+    }
 }
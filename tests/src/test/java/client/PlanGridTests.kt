@@ -0,0 +1,53 @@
+package client
+
+import arc.struct.*
+import mindustry.Vars.*
+import mindustry.client.navigation.*
+import mindustry.entities.units.*
+import org.junit.jupiter.api.*
+import kotlin.random.*
+
+class PlanGridTests {
+    private fun plan(x: Int, y: Int) = BuildPlan(x, y, 0, null)
+
+    @Test
+    fun testAddRemove() {
+        val grid = PlanGrid()
+        val a = plan(3, 4)
+        val b = plan(3, 4)
+        Assertions.assertNull(grid.add(a))
+        Assertions.assertSame(a, grid.add(b)) // Same tile
+        Assertions.assertEquals(1, grid.size)
+        Assertions.assertFalse(grid.contains(a))
+        Assertions.assertFalse(grid.remove(a))
+        Assertions.assertTrue(grid.remove(b))
+        Assertions.assertTrue(grid.isEmpty())
+
+        val out = Seq<BuildPlan>()
+        grid.nearest(0f, 0f, 10, { true }, out)
+        Assertions.assertTrue(out.isEmpty)
+    }
+
+    @Test
+    fun testNearest() {
+        val random = Random(1)
+        val grid = PlanGrid()
+        val plans = mutableListOf<BuildPlan>()
+        repeat(2000) {
+            val plan = plan(random.nextInt(500), random.nextInt(500))
+            grid.add(plan)?.let { old -> plans.remove(old) }
+            plans.add(plan)
+        }
+
+        repeat(20) {
+            val x = random.nextFloat() * 500 * tilesize
+            val y = random.nextFloat() * 500 * tilesize
+            val out = Seq<BuildPlan>()
+            grid.nearest(x, y, 50, { it.x % 3 != 0 }, out)
+
+            fun dst2(p: BuildPlan) = (p.x * tilesize - x) * (p.x * tilesize - x) + (p.y * tilesize - y) * (p.y * tilesize - y)
+            val expected = plans.filter { it.x % 3 != 0 }.sortedBy { dst2(it) }.take(50)
+            Assertions.assertEquals(expected.map { dst2(it) }, out.map { dst2(it) })
+        }
+    }
+}
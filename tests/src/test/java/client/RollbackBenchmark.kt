@@ -0,0 +1,38 @@
+package client
+
+import mindustry.client.antigrief.*
+import org.junit.jupiter.api.*
+
+/** Times [RollbackEngine] against replaying [TileLog] views one tile at a time on 250k tiles.  Run with the benchmark task. */
+@Tag("benchmark")
+class RollbackBenchmark : RollbackEngineTests() {
+    override val size = 500
+
+    @Test
+    fun rollbackTiming() {
+        val engine = RollbackEngine(store) { records[it] }
+        val time = rollbackTime
+
+        repeat(3) { legacyStates(time); engineStates(engine, time.toEpochMilli()) } // Warmup
+
+        val legacyStart = System.nanoTime()
+        legacyStates(time)
+        val legacyTime = (System.nanoTime() - legacyStart) / 1_000_000.0
+
+        val engineStart = System.nanoTime()
+        val (positions, _) = engineStates(engine, time.toEpochMilli())
+        val engineTime = (System.nanoTime() - engineStart) / 1_000_000.0
+
+        println("Rolling back ${tiles.size} tiles (${store.size} logs, ${positions.size} touched): legacy $legacyTime ms, engine $engineTime ms")
+    }
+
+    @Test
+    fun undoTiming() {
+        val engine = RollbackEngine(store) { records[it] }
+        val positions = griefedPositions(engine)
+
+        val start = System.nanoTime()
+        engine.undoStates(positions, Griefer.playerID)
+        println("Undoing ${positions.size} griefed tiles took ${(System.nanoTime() - start) / 1_000_000.0} ms")
+    }
+}
@@ -0,0 +1,100 @@
+package client
+
+import arc.math.geom.*
+import arc.struct.*
+import mindustry.client.antigrief.*
+import mindustry.content.*
+import mindustry.world.*
+import org.junit.jupiter.api.*
+import power.*
+import java.time.*
+import kotlin.random.*
+
+/** Synthetic history on a grid of tiles, checking [RollbackEngine] against replaying [TileLog] views one tile at a time. */
+open class RollbackEngineTests : PowerTestFixture() {
+    protected object Griefer : Interactor {
+        override val name = "griefer"
+        override val shortName = "griefer"
+        override val playerID = 7
+    }
+
+    private object Builder : Interactor {
+        override val name = "builder"
+        override val shortName = "builder"
+        override val playerID = 3
+    }
+
+    protected open val size = 100
+    protected val store = TileLogStore()
+    protected val records = IntMap<TileRecord>()
+    protected val tiles = mutableListOf<Tile>()
+
+    @BeforeEach
+    fun populate() {
+        val random = Random(0)
+        for (x in 0 until size) for (y in 0 until size) tiles.add(Tile(x, y))
+        // Everything gets built, then the griefer breaks a random 5% of it late in the session
+        for ((i, tile) in tiles.withIndex()) log(tile, TilePlacedLog(area(tile), Builder, Blocks.copperWall, 0, null, true, Instant.ofEpochMilli(i.toLong())))
+        for ((i, tile) in tiles.withIndex()) if (random.nextInt(4) == 0) log(tile, ConfigureTileLog(area(tile), Builder, Blocks.copperWall, 1, i, Instant.ofEpochMilli(tiles.size + i.toLong())))
+        for ((i, tile) in tiles.withIndex()) if (random.nextInt(20) == 0) log(tile, TileBreakLog(area(tile), Griefer, Blocks.copperWall, Instant.ofEpochMilli(2L * tiles.size + i)))
+    }
+
+    private fun area(tile: Tile) = IntRectangle(tile.x.toInt(), tile.y.toInt(), 1, 1)
+
+    private fun log(tile: Tile, log: TileLog) {
+        val record = records[tile.pos()] ?: TileRecord(tile.x.toInt(), tile.y.toInt(), store).also { records.put(tile.pos(), it) }
+        record.add(store.add(tile, log), tile)
+    }
+
+    /** Right before the griefing started */
+    protected val rollbackTime get() = Instant.ofEpochMilli(2L * tiles.size - 1)
+
+    /** How Restore.kt used to compute states: every tile, sequentially, through [TileLog] objects. */
+    protected fun legacyStates(time: Instant): Array<TileState?> = Array(tiles.size) { i ->
+        val seq = records[tiles[i].pos()]?.lastSequence(time) ?: return@Array null
+        val state = seq.snapshot.clone()
+        for (diff in seq) {
+            if (diff.time > time) break
+            diff.apply(state)
+        }
+        state
+    }
+
+    protected fun engineStates(engine: RollbackEngine, time: Long): Pair<IntArray, Array<TileState?>> {
+        val touched = engine.touchedAfter(time)
+        val positions = tiles.filter { touched.contains(it.pos()) }.map { it.pos() }.toIntArray()
+        return positions to engine.statesAt(positions, time)
+    }
+
+    protected fun griefedPositions(engine: RollbackEngine): IntArray {
+        val touched = engine.touchedBy(Griefer.playerID)
+        return tiles.filter { touched.contains(it.pos()) }.map { it.pos() }.toIntArray()
+    }
+
+    @Test
+    fun rollback() {
+        val engine = RollbackEngine(store) { records[it] }
+        val legacy = legacyStates(rollbackTime)
+        val (positions, states) = engineStates(engine, rollbackTime.toEpochMilli())
+
+        Assertions.assertTrue(positions.isNotEmpty())
+        for ((i, pos) in positions.withIndex()) {
+            val expected = legacy[Point2.x(pos) * size + Point2.y(pos)]!!
+            val actual = states[i]!!
+            Assertions.assertSame(expected.block, actual.block)
+            Assertions.assertEquals(expected.rotation, actual.rotation)
+            Assertions.assertEquals(expected.configuration, actual.configuration)
+            Assertions.assertEquals(expected.isRootTile, actual.isRootTile)
+        }
+    }
+
+    @Test
+    fun undo() {
+        val engine = RollbackEngine(store) { records[it] }
+        val states = engine.undoStates(griefedPositions(engine), Griefer.playerID)
+
+        Assertions.assertEquals("griefer", engine.nameOf(Griefer.playerID))
+        Assertions.assertTrue(states.isNotEmpty())
+        for (state in states) Assertions.assertSame(Blocks.copperWall, state!!.block)
+    }
+}
@@ -1,12 +1,14 @@
 package client
 
 import mindustry.client.*
+import mindustry.client.communication.*
 import mindustry.client.crypto.*
 import org.bouncycastle.jce.provider.*
 import org.junit.jupiter.api.*
 import java.nio.file.*
 import java.security.*
 import java.time.*
+import java.util.concurrent.*
 import java.util.concurrent.atomic.*
 import kotlin.random.*
 
@@ -52,4 +54,86 @@ class SignatureTest {
         val validity = signatures2.verifySignatureTransmission(msg.encodeToByteArray(), signatureTransmission)
         Assertions.assertEquals(validity.first, Signatures.VerifyResult.VALID)
     }
+
+    /** [count] signed messages, verified either through one shared Signature behind a lock as Signatures used to, or through a [SignatureVerifier] */
+    private class Verification(count: Int) {
+        private val store = KeyStorage(Files.createTempDirectory("signatureBenchmark").toFile())
+        private val store2 = KeyStorage(Files.createTempDirectory("signatureBenchmark2").toFile())
+        val messages = List(count) { "Message number $it".encodeToByteArray() }
+        private val transmissions: List<SignatureTransmission>
+        val threads = (Runtime.getRuntime().availableProcessors() - 1).coerceIn(1, 4)
+        private val legacyLock = java.security.Signature.getInstance("ed448", "BC")
+        private val pool = Executors.newFixedThreadPool(threads)
+        private val verifier: SignatureVerifier
+
+        init {
+            val keyPair = genKey()
+            val cert = genCert(keyPair, null, "benchmarkCert")
+            store.cert(cert)
+            store.key(keyPair, listOf(cert))
+            store2.trust(cert)
+
+            val clock = AtomicReference(Clock.fixed(Instant.now(), ZoneId.of("UTC")))
+            val signatures = Signatures(store, clock)
+            transmissions = messages.mapIndexed { i, msg -> signatures.signatureTransmission(msg, 0, i.toShort())!! }
+            verifier = SignatureVerifier(Signatures(store2, clock), threads) { it.run() }
+        }
+
+        /** @return how many messages were valid */
+        fun legacy(): Int {
+            val valid = AtomicInteger()
+            val tasks = transmissions.indices.map { i ->
+                Callable {
+                    val t = transmissions[i]
+                    val ok = synchronized(legacyLock) {
+                        legacyLock.initVerify(store2.findTrusted(t.sn)!!.publicKey)
+                        legacyLock.update(t.toSignable(messages[i]))
+                        legacyLock.verify(t.signature)
+                    }
+                    if (ok) valid.incrementAndGet()
+                }
+            }
+            pool.invokeAll(tasks)
+            return valid.get()
+        }
+
+        /** @return how many messages were valid */
+        fun batched(): Int {
+            val valid = AtomicInteger()
+            val done = CountDownLatch(transmissions.size)
+            for (i in transmissions.indices) {
+                verifier.verify(messages[i], transmissions[i]) { result, _ ->
+                    if (result == Signatures.VerifyResult.VALID) valid.incrementAndGet()
+                    done.countDown()
+                }
+            }
+            Assertions.assertTrue(done.await(60, TimeUnit.SECONDS))
+            return valid.get()
+        }
+
+        fun close() = pool.shutdown()
+    }
+
+    @Test
+    fun testBatchedVerification() {
+        val verification = Verification(20)
+        Assertions.assertEquals(20, verification.legacy())
+        Assertions.assertEquals(20, verification.batched())
+        verification.close()
+    }
+
+    @Test @Tag("benchmark")
+    fun benchmarkVerification() {
+        val verification = Verification(1000)
+        verification.legacy(); verification.batched() // Warmup
+        var start = System.nanoTime()
+        verification.legacy()
+        val legacyTime = (System.nanoTime() - start) / 1_000_000.0
+        start = System.nanoTime()
+        verification.batched()
+        val batchedTime = (System.nanoTime() - start) / 1_000_000.0
+        verification.close()
+
+        println("Verified ${verification.messages.size} signed messages on ${verification.threads} threads: shared lock $legacyTime ms, per thread signatures $batchedTime ms")
+    }
 }
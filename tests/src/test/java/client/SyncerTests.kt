@@ -5,6 +5,7 @@ import mindustry.client.communication.*
 import mindustry.client.communication.syncing.*
 import org.junit.jupiter.api.*
 import java.io.*
+import kotlin.random.*
 
 class SyncerTests {
 
@@ -56,4 +57,74 @@ class SyncerTests {
 
         println(aSync.list)
     }
+
+    @Test
+    fun testRandomEdits() {
+        val pool = mutableListOf<DummyCommunicationSystem>()
+        val a = Packets.CommunicationClient(DummyCommunicationSystem(pool))
+        val b = Packets.CommunicationClient(DummyCommunicationSystem(pool))
+        val aSync = Syncer({ i, d -> d.writeInt(i) }, DataInputStream::readInt, a, 12L, Syncer.Mode.BOTH)
+        val bSync = Syncer({ i, d -> d.writeInt(i) }, DataInputStream::readInt, b, 12L, Syncer.Mode.READ_ONLY)
+
+        val random = Random(0)
+        repeat(50) {
+            // Mostly at the ends like a queue, sometimes in the middle, sometimes several at once
+            val size = aSync.list.size
+            when (random.nextInt(5)) {
+                0, 1 -> aSync.added(listOf(random.nextInt() to size))
+                2 -> if (size > 0) aSync.removed(listOf(0))
+                3 -> aSync.added(listOf(random.nextInt() to random.nextInt(size + 1), random.nextInt() to 0))
+                4 -> if (size > 2) aSync.removed(listOf(random.nextInt(size), random.nextInt(size - 1), 0))
+            }
+            repeat(10) {
+                aSync.update()
+                bSync.update()
+                a.update()
+                b.update()
+            }
+            Assertions.assertFalse(bSync.isDesynced)
+            Assertions.assertEquals(aSync.list, bSync.list)
+        }
+    }
+
+    @Test
+    fun testRangeResync() {
+        val pool = mutableListOf<DummyCommunicationSystem>()
+        val aComms = DummyCommunicationSystem(pool)
+        val bComms = DummyCommunicationSystem(pool)
+        val a = Packets.CommunicationClient(aComms)
+        val b = Packets.CommunicationClient(bComms)
+        val aSync = Syncer({ i, d -> d.writeInt(i) }, DataInputStream::readInt, a, 12L, Syncer.Mode.BOTH)
+        val bSync = Syncer({ i, d -> d.writeInt(i) }, DataInputStream::readInt, b, 12L, Syncer.Mode.BOTH)
+
+        fun pump() = repeat(100) {
+            aSync.update()
+            bSync.update()
+            a.update()
+            b.update()
+        }
+
+        val random = Random(0)
+        aSync.added(List(200) { random.nextInt() to it })
+        pump()
+        Assertions.assertEquals(aSync.list, bSync.list)
+
+        // b misses an edit in the middle, and finds out from the next one
+        pool.remove(bComms)
+        aSync.removed(listOf(100))
+        aSync.added(listOf(-1 to 100))
+        pump()
+        pool.add(bComms)
+
+        val stats = a.stats.first { it.name == "SyncerTransmission" }
+        val before = stats.bytes
+        aSync.removed(listOf(101))
+        aSync.added(listOf(-2 to 101))
+        pump()
+
+        Assertions.assertFalse(bSync.isDesynced)
+        Assertions.assertEquals(aSync.list, bSync.list)
+        // Far less than the 800 bytes of the whole list
+        Assertions.assertTrue(stats.bytes - before < 400, "Sent ${stats.bytes - before} bytes")
+    }
 }
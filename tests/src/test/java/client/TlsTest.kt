@@ -8,6 +8,7 @@ import org.bouncycastle.jce.provider.*
 import org.bouncycastle.jsse.provider.*
 import org.bouncycastle.tls.*
 import org.junit.jupiter.api.*
+import java.nio.*
 import java.security.*
 import java.util.concurrent.atomic.*
 import kotlin.random.*
@@ -137,4 +138,110 @@ class TlsTest {
 
         Assertions.assertArrayEquals(gotten, bytes)
     }
+
+    /** Collects the frames and control bytes that come out of [TlsFraming.decode] */
+    private class Collector : TlsFraming.FrameListener {
+        val frames = mutableListOf<ByteArray>()
+        var keepalives = 0
+
+        override fun control(byte: Byte): Boolean {
+            if (byte == TlsFraming.KEEPALIVE) keepalives++
+            return byte != TlsFraming.CLOSE
+        }
+
+        override fun frame(frame: ByteBuffer) {
+            frames.add(ByteArray(frame.remaining()).also { frame.get(it) })
+        }
+    }
+
+    @Test
+    fun testFraming() {
+        val sender = TlsFraming()
+        val receiver = TlsFraming()
+        val collector = Collector()
+        val random = Random(0)
+        val sent = List(50) { ByteArray(random.nextInt(300)) { (random.nextInt(8) - 2).toByte() } } // Lots of bytes that need escaping
+
+        val stream = java.io.ByteArrayOutputStream()
+        for ((i, frame) in sent.withIndex()) {
+            val encoded = sender.encode(frame)
+            stream.write(encoded.array(), encoded.position(), encoded.remaining())
+            if (i % 10 == 0) stream.write(TlsFraming.KEEPALIVE.toInt())
+        }
+        val wire = stream.toByteArray()
+
+        // Feed it in small uneven reads so that frames and escapes are split between them
+        var offset = 0
+        while (offset < wire.size) {
+            val length = minOf(wire.size - offset, 1 + random.nextInt(7))
+            Assertions.assertTrue(receiver.decode(wire, offset, length, collector))
+            offset += length
+        }
+
+        Assertions.assertEquals(sent.size, collector.frames.size)
+        for (i in sent.indices) Assertions.assertArrayEquals(sent[i], collector.frames[i])
+        Assertions.assertEquals(5, collector.keepalives)
+        Assertions.assertFalse(receiver.decode(byteArrayOf(TlsFraming.CLOSE), 0, 1, collector))
+    }
+
+    /** What TlsCommunicationSystem used to do for each frame sent and received, @return the bytes received */
+    private fun legacyFraming(frames: List<ByteArray>): Long {
+        val escapeChars = arrayOf(TlsFraming.KEEPALIVE, TlsFraming.CLOSE, TlsFraming.DELIMINATOR)
+        var received = 0L
+        for (frame in frames) {
+            val escaped = frame.toList().escape(TlsFraming.ESCAPEMENT, *escapeChars).toByteArray() + TlsFraming.DELIMINATOR
+            val current = arc.struct.ByteSeq()
+            var lastWasEscape = false
+            for (item in escaped) {
+                if (item == TlsFraming.ESCAPEMENT && !lastWasEscape) lastWasEscape = true
+                else if (!lastWasEscape && item in escapeChars) {
+                    if (item == TlsFraming.DELIMINATOR) { received += current.toArray().size; current.clear() }
+                    lastWasEscape = false
+                } else {
+                    current.add(item)
+                    lastWasEscape = false
+                }
+            }
+        }
+        return received
+    }
+
+    /** Sends [frames] through one [TlsFraming], @return the bytes received */
+    private fun bufferedFraming(framing: TlsFraming, frames: List<ByteArray>): Long {
+        val collector = object : TlsFraming.FrameListener {
+            var received = 0L
+            override fun control(byte: Byte) = true
+            override fun frame(frame: ByteBuffer) { received += frame.remaining() }
+        }
+        for (frame in frames) {
+            val encoded = framing.encode(frame)
+            framing.decode(encoded.array(), encoded.position(), encoded.remaining(), collector)
+        }
+        return collector.received
+    }
+
+    @Test
+    fun testFramingMatchesLegacy() {
+        val random = Random(0)
+        val frames = List(50) { random.nextBytes(1024) }
+        Assertions.assertEquals(legacyFraming(frames), bufferedFraming(TlsFraming(), frames))
+    }
+
+    @Test @Tag("benchmark")
+    fun framingThroughput() {
+        val random = Random(0)
+        val frames = List(2000) { random.nextBytes(1024) }
+        val framing = TlsFraming()
+
+        repeat(3) { legacyFraming(frames); bufferedFraming(framing, frames) } // Warmup
+        var start = System.nanoTime()
+        val legacyBytes = legacyFraming(frames)
+        val legacyTime = (System.nanoTime() - start) / 1_000_000.0
+        start = System.nanoTime()
+        bufferedFraming(framing, frames)
+        val bufferedTime = (System.nanoTime() - start) / 1_000_000.0
+
+        val mb = legacyBytes / 1024.0 / 1024.0
+        println("Framed ${frames.size} x 1KB: legacy $legacyTime ms (${mb * 1000 / legacyTime} MB/s), buffered $bufferedTime ms (${mb * 1000 / bufferedTime} MB/s)")
+    }
 }
@@ -0,0 +1,50 @@
+package client
+
+import arc.struct.*
+import mindustry.client.utils.*
+import org.junit.jupiter.api.*
+
+class TrigramIndexTests {
+    @Test
+    fun testLiterals() {
+        Assertions.assertEquals(listOf("ucontrol flag"), TrigramIndex.literalsOf(Regex("ucontrol flag")))
+        Assertions.assertEquals(listOf("ubind @", "poly"), TrigramIndex.literalsOf(Regex("ubind @(mono|poly)?poly")))
+        Assertions.assertEquals(listOf("sensor "), TrigramIndex.literalsOf(Regex("sensor \\S+ @unit?")).take(1))
+        Assertions.assertEquals(listOf("abc"), TrigramIndex.literalsOf(Regex("abcd?ab"))) // "ab" is too short to filter on
+        Assertions.assertEquals(listOf("1.5"), TrigramIndex.literalsOf(Regex("1\\.5")))
+        // Anything that could match without a literal gives up
+        Assertions.assertEquals(emptyList<String>(), TrigramIndex.literalsOf(Regex("foo|bar")))
+        Assertions.assertEquals(emptyList<String>(), TrigramIndex.literalsOf(Regex("(?i)foo")))
+        Assertions.assertEquals(emptyList<String>(), TrigramIndex.literalsOf(Regex("foo", RegexOption.IGNORE_CASE)))
+        Assertions.assertEquals(emptyList<String>(), TrigramIndex.literalsOf(Regex("a{0,3}bc")))
+        Assertions.assertEquals(emptyList<String>(), TrigramIndex.literalsOf(Regex("\\x41bc"))) // Matches "Abc", not "41bc"
+        Assertions.assertEquals(emptyList<String>(), TrigramIndex.literalsOf(Regex("\\p{L}abc")))
+    }
+
+    @Test
+    fun testCandidates() {
+        val index = TrigramIndex()
+        index.put(1, "ubind @poly\nucontrol flag 5")
+        index.put(2, "ubind @mono\nucontrol move 1 2")
+        index.put(3, "print \"flag\"")
+
+        fun candidates(regex: String): List<Int> {
+            val out = IntSeq()
+            if (!index.candidates(TrigramIndex.queryOf(TrigramIndex.literalsOf(Regex(regex))), out)) return listOf(-1)
+            return out.toArray().sorted()
+        }
+
+        Assertions.assertEquals(listOf(1, 2), candidates("ubind @"))
+        Assertions.assertEquals(listOf(1), candidates("ucontrol flag \\d"))
+        Assertions.assertEquals(listOf(1, 3), candidates("flag"))
+        Assertions.assertEquals(emptyList<Int>(), candidates("ucontrol approach"))
+        Assertions.assertEquals(listOf(-1), candidates("fl.g")) // Nothing to filter on
+
+        index.put(3, "ucontrol approach 1 2 3")
+        Assertions.assertEquals(listOf(3), candidates("ucontrol approach"))
+        Assertions.assertEquals(listOf(1), candidates("flag"))
+        index.remove(1)
+        Assertions.assertEquals(emptyList<Int>(), candidates("flag"))
+        Assertions.assertEquals(2, index.size)
+    }
+}